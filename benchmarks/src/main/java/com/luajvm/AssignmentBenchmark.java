@@ -0,0 +1,60 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class AssignmentBenchmark {
+    private List<LuaValue> left1;
+    private Varargs right1;
+    private List<LuaValue> left3;
+    private Varargs right3;
+
+    @Setup
+    public void setup() {
+        left1 = List.of(new LuaValue());
+        right1 = new LuaValue(1);
+        left3 = List.of(new LuaValue(), new LuaValue(), new LuaValue());
+        right3 = Varargs.varargsOf(new LuaValue(1), new LuaValue("two"), new LuaValue(3.0));
+    }
+
+    @Benchmark
+    public List<LuaValue> assignOne() {
+        LuaValue.assignment(left1, right1);
+        return left1;
+    }
+
+    @Benchmark
+    public List<LuaValue> assignThree() {
+        LuaValue.assignment(left3, right3);
+        return left3;
+    }
+
+    @Benchmark
+    public List<LuaValue> assignThreeFromOne() {
+        LuaValue.assignment(left3, right1);
+        return left3;
+    }
+
+    @Benchmark
+    public List<LuaValue> assignThreeFromFreshLists() {
+        LuaValue.assignment(left3, List.of(new LuaValue(1), new LuaValue("two"), new LuaValue(3.0)));
+        return left3;
+    }
+}
@@ -0,0 +1,74 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+// What compiled code sees through LuaBootstraps call sites compared with calling LuaOps directly.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CallSiteBenchmark {
+    private static final int LOOP = 1000;
+
+    private MethodHandle add;
+    private MethodHandle lessThan;
+    private MethodHandle call;
+    private LuaValue one;
+    private LuaValue limit;
+    private LuaValue function;
+
+    @Setup
+    public void setup() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType binary = MethodType.methodType(LuaValue.class, LuaValue.class, LuaValue.class);
+        add = LuaBootstraps.arith(lookup, "add", binary).dynamicInvoker();
+        lessThan = LuaBootstraps.compare(lookup, "lt", binary.changeReturnType(boolean.class)).dynamicInvoker();
+        try {
+            call = LuaBootstraps.call(lookup, "call", binary).dynamicInvoker();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        one = new LuaValue(1);
+        limit = new LuaValue(LOOP);
+        function = new LuaValue(LuaFunction.unary(value -> LuaOps.add(value, value)));
+    }
+
+    @Benchmark
+    public LuaValue countingLoopThroughCallSites() throws Throwable {
+        LuaValue i = new LuaValue(0);
+        while ((boolean) lessThan.invokeExact(i, limit)) {
+            i = (LuaValue) add.invokeExact(i, one);
+        }
+        return i;
+    }
+
+    @Benchmark
+    public LuaValue countingLoopThroughLuaOps() {
+        LuaValue i = new LuaValue(0);
+        while (LuaOps.lessThan(i, limit)) {
+            i = LuaOps.add(i, one);
+        }
+        return i;
+    }
+
+    @Benchmark
+    public LuaValue monomorphicCall() throws Throwable {
+        return (LuaValue) call.invokeExact(function, one);
+    }
+}
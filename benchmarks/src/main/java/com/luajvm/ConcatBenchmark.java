@@ -0,0 +1,66 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class ConcatBenchmark {
+    @Param({"10", "100", "10000"})
+    public int pieces;
+
+    private LuaValue piece;
+    private LuaValue number;
+    private LuaTable table;
+    private LuaString separator;
+
+    @Setup
+    public void setup() {
+        piece = new LuaValue("line of report output, ");
+        number = new LuaValue(1234.5);
+        table = new LuaTable();
+        for (int i = 1; i <= pieces; i++) {
+            table.rawset(i, piece);
+        }
+        separator = LuaString.valueOf("\n");
+    }
+
+    // s = s .. piece in a loop, then the result is used once
+    @Benchmark
+    public LuaString concatChain() {
+        LuaValue result = new LuaValue("");
+        for (int i = 0; i < pieces; i++) {
+            result = LuaOps.concat(result, piece);
+        }
+        return result.getLuaStringValue();
+    }
+
+    @Benchmark
+    public LuaString concatChainWithNumbers() {
+        LuaValue result = new LuaValue("");
+        for (int i = 0; i < pieces; i++) {
+            result = LuaOps.concat(LuaOps.concat(result, number), piece);
+        }
+        return result.getLuaStringValue();
+    }
+
+    @Benchmark
+    public LuaString tableConcat() {
+        return table.concat(separator, 1, pieces);
+    }
+}
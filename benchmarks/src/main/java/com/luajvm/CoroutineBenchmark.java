@@ -0,0 +1,54 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CoroutineBenchmark {
+    private LuaCoroutine echo;
+    private LuaValue value;
+    private LuaFunction body;
+
+    @Setup
+    public void setup() {
+        value = new LuaValue(1);
+        body = new LuaFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                Varargs next = args;
+                while (true) {
+                    next = LuaCoroutine.yield(next);
+                }
+            }
+        };
+        echo = new LuaCoroutine(body);
+        echo.resume(Varargs.NONE);
+    }
+
+    // One resume plus one yield on an already running coroutine.
+    @Benchmark
+    public Varargs resumeYieldRoundTrip() {
+        return echo.resume(value);
+    }
+
+    // create, first resume (starts the virtual thread) and yield
+    @Benchmark
+    public Varargs createAndFirstResume() {
+        return new LuaCoroutine(body).resume(value);
+    }
+}
@@ -0,0 +1,71 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Streaming a 100k line log through io.lines, and writing it back one line per call.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class IoBenchmark {
+    private static final int LINES = 100_000;
+
+    private LuaTable io;
+    private LuaValue input;
+    private LuaValue output;
+    private LuaValue line;
+
+    @Setup
+    public void setup() throws IOException {
+        io = LuaIoLibrary.library();
+        Path log = Files.createTempFile("log", ".txt");
+        log.toFile().deleteOnExit();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("2024-01-01 12:00:00 INFO request ").append(i).append(" served in 12ms\n");
+        }
+        Files.writeString(log, text);
+        input = new LuaValue(log.toString());
+        Path copy = Files.createTempFile("copy", ".txt");
+        copy.toFile().deleteOnExit();
+        output = new LuaValue(copy.toString());
+        line = new LuaValue("2024-01-01 12:00:00 INFO request 0 served in 12ms\n");
+    }
+
+    @Benchmark
+    public long readLines() {
+        LuaValue iterator = LuaOps.call(io.rawget("lines"), Varargs.varargsOf(input)).arg1();
+        long count = 0;
+        while (!LuaOps.call(iterator, Varargs.NONE).arg1().isNil()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public void writeLines() {
+        LuaValue file = LuaOps.call(io.rawget("open"), Varargs.varargsOf(output, new LuaValue("w"))).arg1();
+        LuaValue write = LuaOps.index(file, new LuaValue("write"));
+        Varargs args = Varargs.varargsOf(file, line);
+        for (int i = 0; i < LINES; i++) {
+            LuaOps.call(write, args);
+        }
+        LuaOps.call(LuaOps.index(file, new LuaValue("close")), Varargs.varargsOf(file));
+    }
+}
@@ -0,0 +1,81 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LuaFunctionsBenchmark {
+    private LuaValue integer;
+    private LuaValue decimalString;
+    private LuaValue realString;
+    private LuaValue hexString;
+    private LuaValue table;
+    private Varargs arguments;
+    private Varargs tailSelector;
+
+    @Setup
+    public void setup() {
+        integer = new LuaValue(42);
+        decimalString = new LuaValue("  123456789 ");
+        realString = new LuaValue("3.14159e2");
+        hexString = new LuaValue("0x7fffffff");
+        table = new LuaValue(new LuaTable());
+        arguments = Varargs.varargsOf(new LuaValue("#"), integer, decimalString, realString, table);
+        tailSelector = Varargs.varargsOf(new LuaValue(2), integer, decimalString, realString, table);
+    }
+
+    @Benchmark
+    public Varargs toNumberInteger() {
+        return LuaFunctions.toNumber(integer);
+    }
+
+    @Benchmark
+    public LuaValue toNumberDecimalString() {
+        return LuaFunctions.toNumberValue(decimalString);
+    }
+
+    @Benchmark
+    public LuaValue toNumberRealString() {
+        return LuaFunctions.toNumberValue(realString);
+    }
+
+    @Benchmark
+    public LuaValue toNumberHexString() {
+        return LuaFunctions.toNumberValue(hexString);
+    }
+
+    @Benchmark
+    public Varargs selectCount() {
+        return LuaFunctions.select(arguments);
+    }
+
+    @Benchmark
+    public Varargs selectTail() {
+        return LuaFunctions.select(tailSelector);
+    }
+
+    @Benchmark
+    public Varargs typeOfInteger() {
+        return LuaFunctions.type(integer);
+    }
+
+    @Benchmark
+    public Varargs typeOfTable() {
+        return LuaFunctions.type(table);
+    }
+}
@@ -0,0 +1,78 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MathLibraryBenchmark {
+    private Varargs numbers;
+    private Varargs interval;
+    private LuaValue real;
+    private LuaFunction random;
+
+    @Setup
+    public void setup() {
+        LuaValue[] values = new LuaValue[16];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 2 == 0 ? new LuaValue((long) (i * 7919 % 101)) : new LuaValue(i * 1.5);
+        }
+        numbers = Varargs.varargsOf(values);
+        interval = Varargs.varargsOf(new LuaValue(1), new LuaValue(100));
+        real = new LuaValue(-12.75);
+        random = LuaMathLibrary.library().rawget("random").getFunctionValue();
+    }
+
+    // a math library per thread, as with one state per worker
+    @State(Scope.Thread)
+    public static class PerThread {
+        LuaFunction random;
+
+        @Setup
+        public void setup() {
+            random = LuaMathLibrary.library().rawget("random").getFunctionValue();
+        }
+    }
+
+    @Benchmark
+    public Varargs maxOfMany() {
+        return LuaMathLibrary.max(numbers);
+    }
+
+    @Benchmark
+    public Varargs floor() {
+        return LuaMathLibrary.floor(real);
+    }
+
+    @Benchmark
+    public Varargs randomFloat() {
+        return random.invoke(Varargs.NONE);
+    }
+
+    // generator state per library: throughput should scale with the thread count
+    @Benchmark
+    @Threads(4)
+    public Varargs randomIntervalPerThread(PerThread perThread) {
+        return perThread.random.invoke(interval);
+    }
+
+    @Benchmark
+    public LuaValue integerDivision() {
+        return LuaOps.idiv(interval.arg(2), interval.arg(1));
+    }
+}
@@ -0,0 +1,81 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MetatableArithmeticBenchmark {
+    private LuaValue integer1;
+    private LuaValue integer2;
+    private LuaValue real1;
+    private LuaValue real2;
+    private LuaValue numericString;
+    private LuaFunction addFromMetatable;
+    private LuaFunction ltFromMetatable;
+
+    @Setup
+    public void setup() {
+        integer1 = new LuaValue(12345);
+        integer2 = new LuaValue(678);
+        real1 = new LuaValue(1.5);
+        real2 = new LuaValue(2.25);
+        numericString = new LuaValue("42");
+        addFromMetatable = LuaMetatable.NumberMetatable.getTableValue().getMetamethod(LuaMetamethod.add).getFunctionValue();
+        ltFromMetatable = LuaMetatable.NumberMetatable.getTableValue().getMetamethod(LuaMetamethod.lt).getFunctionValue();
+    }
+
+    @Benchmark
+    public LuaValue addIntegersThroughMetatable() {
+        return addFromMetatable.call(integer1, integer2);
+    }
+
+    @Benchmark
+    public LuaValue addIntegersThroughMetatableListCall() {
+        return addFromMetatable.apply(java.util.List.of(integer1, integer2)).getFirst();
+    }
+
+    @Benchmark
+    public LuaValue addRealsThroughMetatable() {
+        return addFromMetatable.call(real1, real2);
+    }
+
+    @Benchmark
+    public LuaValue addStringCoercionThroughMetatable() {
+        return addFromMetatable.call(numericString, integer2);
+    }
+
+    @Benchmark
+    public LuaValue ltThroughMetatable() {
+        return ltFromMetatable.call(integer1, real2);
+    }
+
+    @Benchmark
+    public LuaValue addIntegersFastPath() {
+        return LuaOps.add(integer1, integer2);
+    }
+
+    @Benchmark
+    public LuaValue mulRealsFastPath() {
+        return LuaOps.mul(real1, real2);
+    }
+
+    @Benchmark
+    public boolean lessThanMixedFastPath() {
+        return LuaOps.lessThan(integer1, real2);
+    }
+}
@@ -0,0 +1,62 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Startup cost of a lookup table of 100k records: building it anew versus loading its snapshot, where
+// only the tables that are looked at get read.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+    private static final int RECORDS = 100_000;
+
+    private Path snapshot;
+    private LuaValue key;
+
+    @Setup
+    public void setup() throws IOException {
+        snapshot = Files.createTempFile("lookup", ".snapshot");
+        snapshot.toFile().deleteOnExit();
+        LuaSnapshot.write(new LuaValue(build()), snapshot);
+        key = new LuaValue("key" + RECORDS / 2);
+    }
+
+    private static LuaTable build() {
+        LuaTable lookup = new LuaTable();
+        for (int i = 0; i < RECORDS; i++) {
+            LuaTable record = new LuaTable();
+            record.rawset("id", new LuaValue((long) i));
+            record.rawset("weight", new LuaValue(i * 0.5));
+            record.rawset("label", new LuaValue("label" + i));
+            lookup.rawset("key" + i, new LuaValue(record));
+        }
+        return lookup;
+    }
+
+    @Benchmark
+    public LuaValue buildAndLookUp() {
+        return build().rawget(key).getTableValue().rawget("label");
+    }
+
+    @Benchmark
+    public LuaValue loadAndLookUp() throws IOException {
+        return LuaSnapshot.load(snapshot).getTableValue().rawget(key).getTableValue().rawget("label");
+    }
+}
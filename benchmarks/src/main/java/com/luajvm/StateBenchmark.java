@@ -0,0 +1,59 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of an isolated global environment per request: a fresh state versus a fork of a warmed-up template.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StateBenchmark {
+    private LuaState template;
+    private LuaValue format;
+
+    @Setup
+    public void setup() {
+        template = new LuaState();
+        LuaTable settings = new LuaTable();
+        for (int i = 0; i < 1000; i++) {
+            settings.rawset("setting" + i, new LuaValue((long) i));
+        }
+        template.getGlobals().rawset("settings", new LuaValue(settings));
+        template.fork();
+        format = new LuaValue("format");
+    }
+
+    @Benchmark
+    public LuaState newState() {
+        return new LuaState();
+    }
+
+    @Benchmark
+    public LuaState fork() {
+        return template.fork();
+    }
+
+    // the string table is built or copied on first use
+    @Benchmark
+    public LuaValue newStateAndUseLibrary() {
+        return new LuaState().getGlobals().rawget("string").getTableValue().rawget(format);
+    }
+
+    @Benchmark
+    public LuaValue forkAndUseLibrary() {
+        return template.fork().getGlobals().rawget("string").getTableValue().rawget(format);
+    }
+}
@@ -0,0 +1,70 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class StringLibraryBenchmark {
+    private LuaValue line;
+    private LuaValue keyValuePattern;
+    private LuaValue wordPattern;
+    private LuaValue replacement;
+    private LuaValue plainText;
+    private LuaValue format;
+    private LuaValue number;
+
+    @Setup
+    public void setup() {
+        line = new LuaValue("timeout = 30 -- seconds before the request is abandoned and retried");
+        keyValuePattern = new LuaValue("^(%w+)%s*=%s*(%w+)");
+        wordPattern = new LuaValue("%a+");
+        replacement = new LuaValue("<%0>");
+        plainText = new LuaValue("retried");
+        format = new LuaValue("%-10s %5d %8.3f");
+        number = new LuaValue(3.14159);
+    }
+
+    @Benchmark
+    public Varargs matchCaptures() {
+        return LuaStringLibrary.match(Varargs.varargsOf(line, keyValuePattern));
+    }
+
+    @Benchmark
+    public Varargs findPlain() {
+        return LuaStringLibrary.find(Varargs.varargsOf(line, plainText));
+    }
+
+    @Benchmark
+    public void gmatchWords(Blackhole blackhole) {
+        LuaFunction iterator = LuaStringLibrary.gmatch(Varargs.varargsOf(line, wordPattern)).arg1().getFunctionValue();
+        for (LuaValue word = iterator.call(); !word.isNil(); word = iterator.call()) {
+            blackhole.consume(word);
+        }
+    }
+
+    @Benchmark
+    public Varargs gsubWords() {
+        return LuaStringLibrary.gsub(Varargs.varargsOf(new LuaValue[]{line, wordPattern, replacement}));
+    }
+
+    @Benchmark
+    public Varargs format() {
+        return LuaStringLibrary.format(Varargs.varargsOf(new LuaValue[]{format, plainText, new LuaValue(42), number}));
+    }
+}
@@ -0,0 +1,163 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TableBenchmark {
+    @Param({"16", "1024", "65536"})
+    public int size;
+
+    private LuaTable array;
+    private LuaTable record;
+    private LuaValue[] stringKeys;
+    private LuaValue[] realKeys;
+    private LuaValue value;
+
+    @Setup
+    public void setup() {
+        value = new LuaValue(7);
+        array = new LuaTable();
+        record = new LuaTable();
+        stringKeys = new LuaValue[size];
+        realKeys = new LuaValue[size];
+        for (int i = 1; i <= size; i++) {
+            array.rawset(i, new LuaValue(i));
+            stringKeys[i - 1] = new LuaValue("field" + i);
+            realKeys[i - 1] = new LuaValue((double) i);
+            record.rawset(stringKeys[i - 1], new LuaValue(i));
+        }
+    }
+
+    @Benchmark
+    public LuaTable appendArray() {
+        LuaTable table = new LuaTable();
+        for (int i = 1; i <= size; i++) {
+            table.rawset(i, value);
+        }
+        return table;
+    }
+
+    @Benchmark
+    public void getArray(Blackhole blackhole) {
+        LuaTable table = array;
+        for (int i = 1; i <= size; i++) {
+            blackhole.consume(table.rawget(i));
+        }
+    }
+
+    // from 1024 elements the integers are stored unboxed and each read boxes a value that does not escape
+    @Benchmark
+    public long sumArray() {
+        LuaTable table = array;
+        long sum = 0;
+        for (int i = 1; i <= size; i++) {
+            sum += table.rawget(i).getIntegerValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void getArrayWithRealKeys(Blackhole blackhole) {
+        for (LuaValue key : realKeys) {
+            blackhole.consume(array.rawget(key));
+        }
+    }
+
+    @Benchmark
+    public void setArray() {
+        LuaTable table = array;
+        for (int i = 1; i <= size; i++) {
+            table.rawset(i, value);
+        }
+    }
+
+    @Benchmark
+    public LuaTable fillRecord() {
+        LuaTable table = new LuaTable();
+        for (LuaValue key : stringKeys) {
+            table.rawset(key, value);
+        }
+        return table;
+    }
+
+    @Benchmark
+    public void getRecord(Blackhole blackhole) {
+        for (LuaValue key : stringKeys) {
+            blackhole.consume(record.rawget(key));
+        }
+    }
+
+    @Benchmark
+    public long length() {
+        return array.length();
+    }
+
+    @Benchmark
+    public LuaValue lengthOperator() {
+        return LuaOps.len(new LuaValue(array));
+    }
+
+    // for k, v in next, t do ... end
+    @Benchmark
+    public void nextRecord(Blackhole blackhole) {
+        LuaValue key = LuaValue.NIL_VALUE;
+        while (true) {
+            Varargs entry = record.next(key);
+            key = entry.arg1();
+            if (key.isNil()) {
+                return;
+            }
+            blackhole.consume(entry.arg(2));
+        }
+    }
+
+    // for k, v in pairs(t) do ... end through the generic call protocol
+    @Benchmark
+    public void pairsRecord(Blackhole blackhole) {
+        Varargs loop = LuaFunctions.pairs(new LuaValue(record));
+        LuaFunction iterator = loop.arg1().getFunctionValue();
+        LuaValue key = loop.arg(3);
+        while (true) {
+            Varargs entry = iterator.invoke(Varargs.varargsOf(loop.arg(2), key));
+            key = entry.arg1();
+            if (key.isNil()) {
+                return;
+            }
+            blackhole.consume(entry.arg(2));
+        }
+    }
+
+    @Benchmark
+    public void cursorRecord(Blackhole blackhole) {
+        LuaTable.Cursor cursor = record.cursor();
+        while (cursor.next()) {
+            blackhole.consume(cursor.value());
+        }
+    }
+
+    @Benchmark
+    public void cursorArray(Blackhole blackhole) {
+        LuaTable.Cursor cursor = array.cursor();
+        while (cursor.next()) {
+            blackhole.consume(cursor.value());
+        }
+    }
+}
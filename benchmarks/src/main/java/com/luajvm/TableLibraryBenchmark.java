@@ -0,0 +1,85 @@
+package com.luajvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class TableLibraryBenchmark {
+    @Param({"1000", "1000000"})
+    public int size;
+
+    private LuaValue integers;
+    private LuaValue strings;
+    private LuaValue comparator;
+    private LuaValue list;
+    private LuaValue one;
+
+    // sorting works in place, so every invocation gets freshly shuffled tables
+    @Setup(Level.Invocation)
+    public void setup() {
+        Random random = new Random(42);
+        LuaTable integerTable = new LuaTable(size, 0);
+        LuaTable stringTable = new LuaTable(size, 0);
+        for (int i = 1; i <= size; i++) {
+            integerTable.rawset(i, new LuaValue(random.nextLong()));
+            stringTable.rawset(i, new LuaValue("row-" + random.nextInt()));
+        }
+        integers = new LuaValue(integerTable);
+        strings = new LuaValue(stringTable);
+        comparator = new LuaValue(LuaFunction.binary((a, b) -> new LuaValue(LuaOps.lessThan(b, a))));
+        LuaTable listTable = new LuaTable(size, 0);
+        for (int i = 1; i <= size; i++) {
+            listTable.rawset(i, new LuaValue(i));
+        }
+        list = new LuaValue(listTable);
+        one = new LuaValue(1);
+    }
+
+    @Benchmark
+    public LuaValue sortIntegers() {
+        LuaTableLibrary.sort(integers);
+        return integers;
+    }
+
+    @Benchmark
+    public LuaValue sortStrings() {
+        LuaTableLibrary.sort(strings);
+        return strings;
+    }
+
+    @Benchmark
+    public LuaValue sortWithComparator() {
+        LuaTableLibrary.sort(Varargs.varargsOf(integers, comparator));
+        return integers;
+    }
+
+    // insert at the front and remove it again: two shifts of the whole array part
+    @Benchmark
+    public Varargs insertRemoveFront() {
+        LuaTableLibrary.insert(Varargs.varargsOf(new LuaValue[]{list, one, one}));
+        return LuaTableLibrary.remove(Varargs.varargsOf(list, one));
+    }
+
+    @Benchmark
+    public Varargs moveHalf() {
+        return LuaTableLibrary.move(Varargs.varargsOf(new LuaValue[]{list, one, new LuaValue(size / 2), new LuaValue(size / 2 + 1)}));
+    }
+}
@@ -0,0 +1,478 @@
+package com.luajvm;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.List;
+
+// invokedynamic bootstrap methods for compiled Lua code. The name of the call site selects the operation
+// ("add", "lt", ...); its type is made of LuaValue parameters. A site starts unlinked, and every time it sees
+// a new operand shape it puts a type-guarded fast path in front of its current target. A shape without a fast
+// path just takes the generic LuaOps operation. After MAX_SHAPES fast paths, or MAX_SHAPES calls with shapes
+// that have none, the site stops learning: the fast paths it has stay, and every other shape goes generic.
+final public class LuaBootstraps {
+    private static final int MAX_SHAPES = 4;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle GET_INTEGER;
+    private static final MethodHandle GET_REAL;
+    private static final MethodHandle GET_STRING;
+    private static final MethodHandle BOOLEAN_VALUE;
+    private static final MethodHandle RELINK;
+
+    static {
+        try {
+            GET_INTEGER = LOOKUP.findVirtual(LuaValue.class, "getIntegerValue", MethodType.methodType(long.class));
+            GET_REAL = LOOKUP.findVirtual(LuaValue.class, "getRealValue", MethodType.methodType(double.class));
+            GET_STRING = LOOKUP.findVirtual(LuaValue.class, "getLuaStringValue", MethodType.methodType(LuaString.class));
+            BOOLEAN_VALUE = LOOKUP.findConstructor(LuaValue.class, MethodType.methodType(void.class, boolean.class));
+            RELINK = LOOKUP.findVirtual(InlineCacheCallSite.class, "relink",
+                    MethodType.methodType(Object.class, Object[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private LuaBootstraps() {
+    }
+
+    // add, sub, mul, div, mod, pow, idiv, concat: (LuaValue, LuaValue)LuaValue; unm, len: (LuaValue)LuaValue
+    public static CallSite arith(MethodHandles.Lookup lookup, String name, MethodType type) {
+        int arity = type.parameterCount();
+        boolean unary = name.equals("unm") || name.equals("len");
+        boolean binary = switch (name) {
+            case "add", "sub", "mul", "div", "mod", "pow", "idiv", "concat" -> true;
+            default -> false;
+        };
+        if (!unary && !binary) {
+            throw new IllegalArgumentException("unknown arithmetic operation '" + name + "'");
+        }
+        checkType(type, arity == (unary ? 1 : 2), LuaValue.class);
+        MethodHandle generic = findOperation(name, type);
+        return new InlineCacheCallSite(type, generic, LuaMetamethod.valueOf(name), arguments -> arithShape(name, arguments));
+    }
+
+    // eq, lt, le: (LuaValue, LuaValue) returning boolean or LuaValue
+    public static CallSite compare(MethodHandles.Lookup lookup, String name, MethodType type) {
+        boolean asValue = type.returnType() == LuaValue.class;
+        checkType(type, type.parameterCount() == 2 && (asValue || type.returnType() == boolean.class), type.returnType());
+        String operation = switch (name) {
+            case "eq" -> "equals";
+            case "lt" -> "lessThan";
+            case "le" -> "lessEqual";
+            default -> throw new IllegalArgumentException("unknown comparison '" + name + "'");
+        };
+        MethodHandle generic = findOperation(operation, type.changeReturnType(boolean.class));
+        return new InlineCacheCallSite(type, asValue(generic, asValue), LuaMetamethod.valueOf(name), arguments -> {
+            MethodHandle[] guardAndFastPath = compareShape(name, arguments);
+            if (guardAndFastPath != null) {
+                guardAndFastPath[1] = asValue(guardAndFastPath[1], asValue);
+            }
+            return guardAndFastPath;
+        });
+    }
+
+    // (LuaValue object, LuaValue key)LuaValue
+    public static CallSite index(MethodHandles.Lookup lookup, String name, MethodType type) {
+        checkType(type, type.parameterCount() == 2, LuaValue.class);
+        MethodHandle generic = findOperation("index", type);
+        return new InlineCacheCallSite(type, generic, null, arguments -> {
+            LuaValue object = (LuaValue) arguments[0];
+            LuaValue key = (LuaValue) arguments[1];
+            if (!object.isTableValue()) {
+                return null;
+            }
+            return key.isIntegerValue()
+                    ? guarded("isTableWithIntegerKey", "indexTableInteger", type)
+                    : guarded("isTableWithOtherKey", "indexTable", type);
+        });
+    }
+
+    // (LuaValue object, LuaValue key, LuaValue value)void
+    public static CallSite newindex(MethodHandles.Lookup lookup, String name, MethodType type) {
+        checkType(type, type.parameterCount() == 3, void.class);
+        MethodHandle generic = findOperation("newindex", type);
+        return new InlineCacheCallSite(type, generic, null, arguments -> {
+            LuaValue object = (LuaValue) arguments[0];
+            LuaValue key = (LuaValue) arguments[1];
+            if (!object.isTableValue()) {
+                return null;
+            }
+            return key.isIntegerValue()
+                    ? guarded("isTableWithIntegerKey", "newindexTableInteger", type)
+                    : guarded("isTableWithOtherKey", "newindexTable", type);
+        });
+    }
+
+    // obj.name as (LuaValue)LuaValue, served by a LuaIndexCache for the constant key
+    public static CallSite getField(MethodHandles.Lookup lookup, String name, MethodType type) throws ReflectiveOperationException {
+        checkType(type, type.parameterCount() == 1, LuaValue.class);
+        MethodHandle get = LOOKUP.findVirtual(LuaIndexCache.class, "get", type);
+        return new ConstantCallSite(get.bindTo(new LuaIndexCache(name)));
+    }
+
+    // obj.name = value as (LuaValue, LuaValue)void
+    public static CallSite setField(MethodHandles.Lookup lookup, String name, MethodType type) throws ReflectiveOperationException {
+        checkType(type, type.parameterCount() == 2, void.class);
+        MethodHandle set = LOOKUP.findVirtual(LuaIndexCache.class, "set", type);
+        return new ConstantCallSite(set.bindTo(new LuaIndexCache(name)));
+    }
+
+    // (LuaValue function, LuaValue... up to three arguments)LuaValue for the first result,
+    // or (LuaValue function, Varargs arguments)Varargs for all of them.
+    // Guards on the identity of the called function, so a monomorphic site calls its target directly.
+    // With LuaInstrumentation enabled the whole site is timed.
+    public static CallSite call(MethodHandles.Lookup lookup, String name, MethodType type) throws ReflectiveOperationException {
+        MethodType calleeType = type.dropParameterTypes(0, 1);
+        boolean varargs = type.equals(MethodType.methodType(Varargs.class, LuaValue.class, Varargs.class));
+        if (!varargs) {
+            checkType(type, type.parameterCount() >= 1 && type.parameterCount() <= 4, LuaValue.class);
+        }
+        MethodHandle generic = LOOKUP.findStatic(LuaBootstraps.class, varargs ? "callValue" : "callFunction", type);
+        MethodHandle direct = LOOKUP.findVirtual(LuaFunction.class, varargs ? "invoke" : "call", calleeType);
+        MethodHandle isFunction = LOOKUP.findStatic(LuaBootstraps.class, "isFunction",
+                MethodType.methodType(boolean.class, LuaFunction.class, LuaValue.class));
+        CallSite site = new InlineCacheCallSite(type, generic, null, arguments -> {
+            LuaValue callee = (LuaValue) arguments[0];
+            if (!callee.isFunctionValue()) {
+                return null;
+            }
+            LuaFunction function = callee.getFunctionValue();
+            return new MethodHandle[] {
+                    isFunction.bindTo(function),
+                    MethodHandles.dropArguments(direct.bindTo(function), 0, LuaValue.class)
+            };
+        });
+        return LuaInstrumentation.ENABLED ? new ConstantCallSite(LuaInstrumentation.timed(site.dynamicInvoker())) : site;
+    }
+
+    private static MethodHandle[] arithShape(String name, Object[] arguments) {
+        LuaValue a = (LuaValue) arguments[0];
+        if (arguments.length == 1) {
+            if (a.isIntegerValue()) {
+                return primitive(name, 1, "isInteger", long.class, GET_INTEGER);
+            }
+            if (a.isRealValue()) {
+                return primitive(name, 1, "isReal", double.class, GET_REAL);
+            }
+            return null;
+        }
+        LuaValue b = (LuaValue) arguments[1];
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            MethodHandle[] integers = primitive(name, 2, "isIntegers", long.class, GET_INTEGER);
+            // div and pow have no integer form: they always produce a float
+            return integers != null ? integers : primitive(name, 2, "isIntegers", double.class, GET_REAL);
+        }
+        if (a.isRealValue() && b.isRealValue()) {
+            return primitive(name, 2, "isReals", double.class, GET_REAL);
+        }
+        // an integer and a float: the integer is converted, as LuaOps does
+        if (a.isNumber() && b.isNumber()) {
+            return primitive(name, 2, "isMixed", double.class, GET_REAL);
+        }
+        return null;
+    }
+
+    private static MethodHandle[] compareShape(String name, Object[] arguments) {
+        LuaValue a = (LuaValue) arguments[0];
+        LuaValue b = (LuaValue) arguments[1];
+        String guard;
+        Class<?> operandType;
+        MethodHandle unbox;
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            guard = "isIntegers";
+            operandType = long.class;
+            unbox = GET_INTEGER;
+        } else if (a.isRealValue() && b.isRealValue()) {
+            guard = "isReals";
+            operandType = double.class;
+            unbox = GET_REAL;
+        } else if (a.isStringValue() && b.isStringValue()) {
+            guard = "isStrings";
+            operandType = LuaString.class;
+            unbox = GET_STRING;
+        } else {
+            return null;
+        }
+        try {
+            MethodHandle operation = LOOKUP.findStatic(LuaBootstraps.class, name,
+                    MethodType.methodType(boolean.class, operandType, operandType));
+            return new MethodHandle[] {findGuard(guard, 2), MethodHandles.filterArguments(operation, 0, unbox, unbox)};
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle asValue(MethodHandle comparison, boolean asValue) {
+        return asValue ? MethodHandles.filterReturnValue(comparison, BOOLEAN_VALUE) : comparison;
+    }
+
+    // Guard and fast path calling LuaOps.name on unboxed operands, or null if LuaOps has no such kernel.
+    private static MethodHandle[] primitive(String name, int arity, String guard, Class<?> operandType, MethodHandle unbox) {
+        MethodType kernelType = arity == 2
+                ? MethodType.methodType(LuaValue.class, operandType, operandType)
+                : MethodType.methodType(LuaValue.class, operandType);
+        MethodHandle kernel;
+        try {
+            kernel = LOOKUP.findStatic(LuaOps.class, name, kernelType);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        MethodHandle fastPath = arity == 2
+                ? MethodHandles.filterArguments(kernel, 0, unbox, unbox)
+                : MethodHandles.filterArguments(kernel, 0, unbox);
+        return new MethodHandle[] {findGuard(guard, arity), fastPath};
+    }
+
+    private static MethodHandle[] guarded(String guard, String fastPath, MethodType type) {
+        try {
+            return new MethodHandle[] {
+                    findGuard(guard, 2),
+                    LOOKUP.findStatic(LuaBootstraps.class, fastPath, type)
+            };
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findGuard(String guard, int arity) {
+        MethodType type = arity == 2
+                ? MethodType.methodType(boolean.class, LuaValue.class, LuaValue.class)
+                : MethodType.methodType(boolean.class, LuaValue.class);
+        try {
+            return LOOKUP.findStatic(LuaBootstraps.class, guard, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle findOperation(String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(LuaOps.class, name, type);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("unknown operation '" + name + "' of type " + type);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void checkType(MethodType type, boolean valid, Class<?> returnType) {
+        boolean parametersValid = type.parameterList().stream().allMatch(parameter -> parameter == LuaValue.class);
+        if (!valid || !parametersValid || type.returnType() != returnType) {
+            throw new IllegalArgumentException("unsupported call site type " + type);
+        }
+    }
+
+    static boolean isInteger(LuaValue a) {
+        return a.isIntegerValue();
+    }
+
+    static boolean isReal(LuaValue a) {
+        return a.isRealValue();
+    }
+
+    static boolean isIntegers(LuaValue a, LuaValue b) {
+        return a.isIntegerValue() && b.isIntegerValue();
+    }
+
+    static boolean isReals(LuaValue a, LuaValue b) {
+        return a.isRealValue() && b.isRealValue();
+    }
+
+    static boolean isMixed(LuaValue a, LuaValue b) {
+        return (a.isIntegerValue() && b.isRealValue()) || (a.isRealValue() && b.isIntegerValue());
+    }
+
+    static boolean isStrings(LuaValue a, LuaValue b) {
+        return a.isStringValue() && b.isStringValue();
+    }
+
+    static boolean isTableWithIntegerKey(LuaValue object, LuaValue key) {
+        return object.isTableValue() && key.isIntegerValue();
+    }
+
+    static boolean isTableWithOtherKey(LuaValue object, LuaValue key) {
+        return object.isTableValue() && !key.isIntegerValue();
+    }
+
+    static boolean isFunction(LuaFunction expected, LuaValue callee) {
+        return callee.isFunctionValue() && callee.getFunctionValue() == expected;
+    }
+
+    static boolean eq(long a, long b) {
+        return a == b;
+    }
+
+    static boolean eq(double a, double b) {
+        return a == b;
+    }
+
+    static boolean eq(LuaString a, LuaString b) {
+        return a.equals(b);
+    }
+
+    static boolean lt(long a, long b) {
+        return a < b;
+    }
+
+    static boolean lt(double a, double b) {
+        return a < b;
+    }
+
+    static boolean lt(LuaString a, LuaString b) {
+        return a.compareTo(b) < 0;
+    }
+
+    static boolean le(long a, long b) {
+        return a <= b;
+    }
+
+    static boolean le(double a, double b) {
+        return a <= b;
+    }
+
+    static boolean le(LuaString a, LuaString b) {
+        return a.compareTo(b) <= 0;
+    }
+
+    static LuaValue indexTableInteger(LuaValue object, LuaValue key) {
+        LuaTable table = object.getTableValue();
+        LuaValue value = table.rawget(key.getIntegerValue());
+        if (!value.isNil() || table.getMetatable() == null) {
+            return value;
+        }
+        return LuaOps.index(object, key);
+    }
+
+    static LuaValue indexTable(LuaValue object, LuaValue key) {
+        LuaTable table = object.getTableValue();
+        LuaValue value = table.rawget(key);
+        if (!value.isNil() || table.getMetatable() == null) {
+            return value;
+        }
+        return LuaOps.index(object, key);
+    }
+
+    static void newindexTableInteger(LuaValue object, LuaValue key, LuaValue value) {
+        LuaTable table = object.getTableValue();
+        if (table.getMetatable() == null) {
+            table.rawset(key.getIntegerValue(), value);
+            return;
+        }
+        LuaOps.newindex(object, key, value);
+    }
+
+    static void newindexTable(LuaValue object, LuaValue key, LuaValue value) {
+        LuaTable table = object.getTableValue();
+        if (table.getMetatable() == null) {
+            table.rawset(key, value);
+            return;
+        }
+        LuaOps.newindex(object, key, value);
+    }
+
+    static LuaValue callFunction(LuaValue callee) {
+        if (callee.isFunctionValue()) {
+            return callee.getFunctionValue().call();
+        }
+        return LuaOps.dispatch(callee, Varargs.NONE).arg1();
+    }
+
+    static LuaValue callFunction(LuaValue callee, LuaValue arg) {
+        if (callee.isFunctionValue()) {
+            return callee.getFunctionValue().call(arg);
+        }
+        return LuaOps.dispatch(callee, arg).arg1();
+    }
+
+    static LuaValue callFunction(LuaValue callee, LuaValue arg1, LuaValue arg2) {
+        if (callee.isFunctionValue()) {
+            return callee.getFunctionValue().call(arg1, arg2);
+        }
+        return LuaOps.dispatch(callee, Varargs.varargsOf(arg1, arg2)).arg1();
+    }
+
+    static LuaValue callFunction(LuaValue callee, LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+        if (callee.isFunctionValue()) {
+            return callee.getFunctionValue().call(arg1, arg2, arg3);
+        }
+        return LuaOps.dispatch(callee, Varargs.varargsOf(arg1, arg2, arg3)).arg1();
+    }
+
+    static Varargs callValue(LuaValue callee, Varargs args) {
+        return LuaOps.dispatch(callee, args);
+    }
+
+    // Picks the guard and fast path for the operand shape of the given arguments, or null if there is none.
+    private interface Specializer {
+        MethodHandle[] specialize(Object[] arguments);
+    }
+
+    private static final class InlineCacheCallSite extends MutableCallSite {
+        private final MethodHandle generic;
+        private final MethodHandle relink;
+        // operator whose fast paths are counted by LuaInstrumentation, or null
+        private final LuaMetamethod operator;
+        private final Specializer specializer;
+        // guard and fast path of each shape seen, oldest first
+        private final List<MethodHandle[]> shapes = new ArrayList<>();
+        private int misses = 0;
+
+        InlineCacheCallSite(MethodType type, MethodHandle generic, LuaMetamethod operator, Specializer specializer) {
+            super(type);
+            this.generic = generic.asType(type);
+            this.relink = RELINK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type);
+            this.operator = operator;
+            this.specializer = specializer;
+            setTarget(relink);
+        }
+
+        // The operation itself runs outside the lock: it may call metamethods, which may yield or reach
+        // this site again.
+        Object relink(Object[] arguments) throws Throwable {
+            synchronized (this) {
+                if (isLearning() && !isKnown(arguments)) {
+                    MethodHandle[] guardAndFastPath = specializer.specialize(arguments);
+                    if (guardAndFastPath == null) {
+                        misses++;
+                    } else {
+                        MethodHandle fastPath = operator != null
+                                ? LuaInstrumentation.countFast(operator, guardAndFastPath[1])
+                                : guardAndFastPath[1];
+                        shapes.add(new MethodHandle[] {guardAndFastPath[0], fastPath.asType(type())});
+                    }
+                    setTarget(chain());
+                }
+            }
+            return generic.invokeWithArguments(arguments);
+        }
+
+        private boolean isLearning() {
+            return shapes.size() < MAX_SHAPES && misses < MAX_SHAPES;
+        }
+
+        // whether another thread already linked a fast path for these arguments
+        private boolean isKnown(Object[] arguments) throws Throwable {
+            for (MethodHandle[] shape : shapes) {
+                if ((boolean) shape[0].invokeWithArguments(arguments)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private MethodHandle chain() {
+            MethodHandle target = isLearning() ? relink : generic;
+            for (MethodHandle[] shape : shapes) {
+                target = MethodHandles.guardWithTest(shape[0], shape[1], target);
+            }
+            return target;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.luajvm;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Table that can be read and written from several threads at once, e.g. configuration or caches shared
+// by workers that each run their own scripts. Reads are lock-free ConcurrentHashMap lookups; writes
+// take only the lock of one hash bin.
+//
+// Memory visibility: a rawset happens-before every rawget that returns the stored value, and the same
+// holds for setMetatable and getMetatable. Each rawset stores a private copy of the value that is never
+// changed afterwards; strings in it are flattened first. So a reader always sees a complete value as
+// it was when stored, never a half-written one. Values returned by rawget must not be mutated.
+// Several rawsets together are not atomic, and the length operator returns a border of some state
+// the table was in while it ran. After freeze() every write fails.
+final public class LuaConcurrentTable extends LuaTable {
+    private static final int NEXT_CURSORS = 4;
+
+    private final ConcurrentHashMap<LuaValue, LuaValue> entries;
+    private final AtomicReferenceArray<Cursor> nextCursors = new AtomicReferenceArray<>(NEXT_CURSORS);
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile LuaTable metatable = null;
+    private volatile MetamethodCache metamethods = null;
+    private volatile boolean frozen = false;
+
+    public LuaConcurrentTable() {
+        entries = new ConcurrentHashMap<>();
+    }
+
+    public LuaConcurrentTable(Map<LuaValue, LuaValue> entries) {
+        this.entries = new ConcurrentHashMap<>(Math.max(16, entries.size() * 4 / 3 + 1));
+        for (Map.Entry<LuaValue, LuaValue> entry : entries.entrySet()) {
+            rawset(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public LuaTable getMetatable() {
+        return metatable;
+    }
+
+    @Override
+    public void setMetatable(LuaTable metatable) {
+        checkWritable();
+        this.metatable = metatable;
+        version.incrementAndGet();
+    }
+
+    // The cache remembers the version it was built at instead of being dropped on writes,
+    // so a build racing with a write can never publish stale handlers.
+    @Override
+    public LuaValue getMetamethod(LuaMetamethod event) {
+        MetamethodCache cache = metamethods;
+        int current = version.get();
+        if (cache == null || cache.version != current) {
+            LuaValue[] slots = new LuaValue[LuaMetamethod.VALUES.length];
+            for (LuaMetamethod each : LuaMetamethod.VALUES) {
+                slots[each.ordinal()] = rawget(each.keyValue);
+            }
+            cache = new MetamethodCache(current, slots);
+            metamethods = cache;
+        }
+        return cache.slots[event.ordinal()];
+    }
+
+    @Override
+    int getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public void freeze() {
+        frozen = true;
+    }
+
+    @Override
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    @Override
+    void checkWritable() {
+        if (frozen) {
+            throw new RuntimeException("attempt to modify a frozen table");
+        }
+    }
+
+    @Override
+    public LuaValue rawget(LuaValue key) {
+        if (key.isNil()) {
+            return LuaValue.NIL_VALUE;
+        }
+        LuaValue value = entries.get(key);
+        return value != null ? value : LuaValue.NIL_VALUE;
+    }
+
+    @Override
+    public LuaValue rawget(long key) {
+        return rawget(new LuaValue(key));
+    }
+
+    @Override
+    public void rawset(LuaValue key, LuaValue value) {
+        checkWritable();
+        if (key.isNil()) {
+            throw new RuntimeException("table index is nil");
+        }
+        if (key.isRealValue() && Double.isNaN(key.getRealValue())) {
+            throw new RuntimeException("table index is NaN");
+        }
+        boolean shapeChanged;
+        if (value.isNil()) {
+            shapeChanged = entries.remove(key) != null;
+        } else {
+            shapeChanged = entries.put(snapshotKey(key), snapshot(value)) == null;
+        }
+        // Only adding or removing a key, or writing a metamethod, bumps the version, so updates of
+        // existing keys do not contend on it. Caches must therefore not keep cells of this table,
+        // which updates replace rather than change.
+        if (shapeChanged || key.isStringValue() && key.getLuaStringValue().isMetamethodName()) {
+            version.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void rawset(long key, LuaValue value) {
+        rawset(new LuaValue(key), value);
+    }
+
+    // ConcurrentHashMap cannot continue from a given key, so the table keeps the cursors of a few
+    // traversals in progress. next takes the one standing on key out of its slot, so no other thread
+    // can move it meanwhile, and puts it back afterwards; it only walks from the start when none does.
+    @Override
+    public Varargs next(LuaValue key) {
+        Cursor cursor = null;
+        if (!key.isNil()) {
+            for (int i = 0; i < NEXT_CURSORS && cursor == null; i++) {
+                Cursor candidate = nextCursors.get(i);
+                if (candidate != null && key.equals(candidate.key()) && nextCursors.compareAndSet(i, candidate, null)) {
+                    cursor = candidate;
+                }
+            }
+        }
+        if (cursor == null) {
+            cursor = cursor();
+        }
+        Varargs result = cursor.continueFrom(key);
+        if (!result.arg1().isNil()) {
+            int free = 0;
+            while (free < NEXT_CURSORS && !nextCursors.compareAndSet(free, null, cursor)) {
+                free++;
+            }
+            if (free == NEXT_CURSORS) {
+                nextCursors.set(ThreadLocalRandom.current().nextInt(NEXT_CURSORS), cursor);
+            }
+        }
+        return result;
+    }
+
+    // The iterator is weakly consistent: it never fails on concurrent writes and sees every entry that
+    // was present for the whole traversal exactly once.
+    @Override
+    boolean advance(Cursor cursor) {
+        @SuppressWarnings("unchecked")
+        Iterator<LuaValue> keys = (Iterator<LuaValue>) cursor.state;
+        if (keys == null) {
+            keys = entries.keySet().iterator();
+            cursor.state = keys;
+        }
+        while (keys.hasNext()) {
+            LuaValue key = keys.next();
+            LuaValue value = entries.get(key);
+            if (value != null) {
+                return cursor.found(key, value);
+            }
+        }
+        return cursor.found(null, null);
+    }
+
+    // The bulk helpers of table.insert, remove, move and sort work on the array part, which this table
+    // does not use; the library falls back to rawget and rawset.
+    @Override
+    boolean shiftArray(long first, long last, int distance) {
+        checkWritable();
+        return false;
+    }
+
+    @Override
+    boolean moveArray(long first, long last, LuaTable target, long to) {
+        target.checkWritable();
+        return false;
+    }
+
+    @Override
+    boolean sortNumeric(long n) {
+        checkWritable();
+        return false;
+    }
+
+    @Override
+    public long length() {
+        if (rawget(1).isNil()) {
+            return 0;
+        }
+        long low = 1;
+        long high = 2;
+        while (!rawget(high).isNil()) {
+            low = high;
+            if (high > Long.MAX_VALUE / 2) {
+                while (!rawget(low + 1).isNil()) {
+                    low++;
+                }
+                return low;
+            }
+            high *= 2;
+        }
+        while (high - low > 1) {
+            long middle = (low + high) >>> 1;
+            if (rawget(middle).isNil()) {
+                high = middle;
+            } else {
+                low = middle;
+            }
+        }
+        return low;
+    }
+
+    // 2.0 and 2 are the same key; keep the integer form like the array part of LuaTable does
+    private static LuaValue snapshotKey(LuaValue key) {
+        if (key.isRealValue()) {
+            double real = key.getRealValue();
+            long integer = (long) real;
+            if (integer == real && real != 0x1p63) {
+                return new LuaValue(integer);
+            }
+        }
+        return snapshot(key);
+    }
+
+    private static LuaValue snapshot(LuaValue value) {
+        LuaValue copy = new LuaValue(value);
+        if (copy.isStringValue()) {
+            copy.getLuaStringValue();
+        }
+        return copy;
+    }
+
+    private record MetamethodCache(int version, LuaValue[] slots) {
+    }
+}
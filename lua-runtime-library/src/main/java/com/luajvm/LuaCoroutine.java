@@ -0,0 +1,292 @@
+package com.luajvm;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+// Lua coroutine running its body on a virtual thread. Resumer and coroutine never run at the same time:
+// control is handed over by flipping a volatile turn and unparking the other side, so a suspended
+// coroutine is a parked virtual thread and holds no platform thread.
+// The virtual thread only references the Body, never the LuaCoroutine itself, so once a suspended
+// coroutine becomes unreachable the Cleaner resumes it with a Kill that unwinds and ends the thread.
+// That fails when the coroutine's own stack or function refers to its handle, e.g. a body that keeps
+// coroutine.running() in a local across a yield: the parked thread then keeps the handle reachable,
+// and the thread is never ended. coroutine.close ends a suspended coroutine explicitly.
+final public class LuaCoroutine {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final ThreadLocal<Body> CURRENT = new ThreadLocal<>();
+    private static final Thread.Builder THREADS = Thread.ofVirtual().name("lua-coroutine-", 0);
+
+    private static final LuaValue SUSPENDED = new LuaValue("suspended");
+    private static final LuaValue RUNNING = new LuaValue("running");
+    private static final LuaValue NORMAL = new LuaValue("normal");
+    private static final LuaValue DEAD = new LuaValue("dead");
+
+    private final Body body;
+
+    public LuaCoroutine(LuaFunction function) {
+        body = new Body(function, this);
+        // the action holds the body and so its thread; see the limitation above
+        CLEANER.register(this, body::kill);
+    }
+
+    static public LuaCoroutine create(LuaValue function) {
+        if (!function.isFunctionValue()) {
+            throw new RuntimeException("bad argument #1 to 'create' (function expected)");
+        }
+        return new LuaCoroutine(function.getFunctionValue());
+    }
+
+    // true followed by the values passed to yield or returned by the body, or false and the error message
+    public Varargs resume(Varargs args) {
+        if (body.status != Status.suspended) {
+            String message = body.status == Status.dead
+                    ? "cannot resume dead coroutine"
+                    : "cannot resume non-suspended coroutine";
+            return Varargs.varargsOf(new LuaValue(false), new LuaValue(message));
+        }
+        Body resumer = CURRENT.get();
+        if (resumer != null) {
+            resumer.status = Status.normal;
+        }
+        try {
+            body.transferIn(args);
+        } finally {
+            if (resumer != null) {
+                resumer.status = Status.running;
+            }
+        }
+        Throwable error = body.error;
+        if (error != null) {
+            body.error = null;
+            if (error instanceof Error fatal) {
+                throw fatal;
+            }
+            body.failure = new LuaValue(String.valueOf(error.getMessage()));
+            return Varargs.varargsOf(new LuaValue(false), body.failure);
+        }
+        return Varargs.varargsOf(new LuaValue(true), body.takeTransfer());
+    }
+
+    static public Varargs yield(Varargs values) {
+        Body current = CURRENT.get();
+        if (current == null) {
+            throw new RuntimeException("attempt to yield from outside a coroutine");
+        }
+        return current.transferOut(values);
+    }
+
+    // coroutine.close: ends a suspended coroutine, unwinding its stack. true, or false and the error
+    // message if it died in an error.
+    public Varargs close() {
+        if (body.status == Status.running || body.status == Status.normal) {
+            throw new RuntimeException("cannot close a " + body.status + " coroutine");
+        }
+        if (body.status == Status.suspended) {
+            body.close();
+        }
+        return body.failure != null
+                ? Varargs.varargsOf(new LuaValue(false), body.failure)
+                : new LuaValue(true);
+    }
+
+    public LuaValue status() {
+        return switch (body.status) {
+            case suspended -> SUSPENDED;
+            case running -> RUNNING;
+            case normal -> NORMAL;
+            case dead -> DEAD;
+        };
+    }
+
+    static public boolean isYieldable() {
+        return CURRENT.get() != null;
+    }
+
+    // Coroutine currently running on this thread, or null on the main thread
+    static public LuaCoroutine running() {
+        Body current = CURRENT.get();
+        return current != null ? current.handle.get() : null;
+    }
+
+    // A function resuming the same new coroutine on every call; errors are raised instead of returned.
+    static public LuaFunction wrap(LuaValue function) {
+        LuaCoroutine coroutine = create(function);
+        return new LuaFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                Varargs results = coroutine.resume(args);
+                if (!results.arg1().getBoolValue()) {
+                    throw new RuntimeException(results.arg(2).getStringValue());
+                }
+                return results.subargs(2);
+            }
+        };
+    }
+
+    // The coroutine table: create, resume, yield, status, close, wrap, isyieldable, running
+    static public LuaTable library() {
+        return new LuaTable(Map.of(
+                new LuaValue("create"), new LuaValue(LuaFunction.unary(function -> new LuaValue(create(function)))),
+                new LuaValue("resume"), new LuaValue(new LuaFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        return checkCoroutine(args.arg1(), "resume").resume(args.subargs(2));
+                    }
+                }),
+                new LuaValue("yield"), new LuaValue(new LuaFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        return LuaCoroutine.yield(args);
+                    }
+                }),
+                new LuaValue("status"), new LuaValue(LuaFunction.unary(coroutine -> checkCoroutine(coroutine, "status").status())),
+                new LuaValue("close"), new LuaValue(new LuaFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        return checkCoroutine(args.arg1(), "close").close();
+                    }
+                }),
+                new LuaValue("wrap"), new LuaValue(LuaFunction.unary(function -> new LuaValue(wrap(function)))),
+                new LuaValue("isyieldable"), new LuaValue(new LuaFunction.ZeroArgFunction() {
+                    @Override
+                    public LuaValue call() {
+                        return new LuaValue(isYieldable());
+                    }
+                }),
+                new LuaValue("running"), new LuaValue(new LuaFunction() {
+                    @Override
+                    public Varargs invoke(Varargs args) {
+                        LuaCoroutine coroutine = running();
+                        return coroutine != null
+                                ? Varargs.varargsOf(new LuaValue(coroutine), new LuaValue(false))
+                                : Varargs.varargsOf(new LuaValue(), new LuaValue(true));
+                    }
+                })
+        ));
+    }
+
+    private static LuaCoroutine checkCoroutine(LuaValue value, String name) {
+        if (!value.isThreadValue()) {
+            throw new RuntimeException("bad argument #1 to '" + name + "' (coroutine expected)");
+        }
+        return value.getThreadValue();
+    }
+
+    enum Status {
+        suspended,
+        running,
+        normal,
+        dead,
+    }
+
+    // Unwinds the stack of a coroutine that will never be resumed again.
+    private static final class Kill extends Error {
+        private static final long serialVersionUID = 1L;
+
+        Kill() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final class Body implements Runnable {
+        private static final int RESUMER_TURN = 0;
+        private static final int COROUTINE_TURN = 1;
+
+        private final LuaFunction function;
+        private final WeakReference<LuaCoroutine> handle;
+        private volatile Status status = Status.suspended;
+        private volatile int turn = RESUMER_TURN;
+        private volatile boolean killed = false;
+        private volatile Thread thread;
+        private Thread resumer;
+        private Varargs transfer;
+        private Throwable error;
+        // the message of the error that ended the body, returned by close
+        private LuaValue failure;
+
+        Body(LuaFunction function, LuaCoroutine handle) {
+            this.function = function;
+            this.handle = new WeakReference<>(handle);
+        }
+
+        @Override
+        public void run() {
+            CURRENT.set(this);
+            try {
+                transfer = function.invoke(takeTransfer());
+            } catch (Kill kill) {
+                // the resumer is waiting only when the kill came from close
+            } catch (Throwable e) {
+                error = e;
+            }
+            status = Status.dead;
+            handOver(resumer, RESUMER_TURN);
+        }
+
+        // Called by the resumer: runs the coroutine until it yields or finishes.
+        void transferIn(Varargs args) {
+            transfer = args;
+            resumer = Thread.currentThread();
+            status = Status.running;
+            if (thread == null) {
+                thread = THREADS.unstarted(this);
+                turn = COROUTINE_TURN;
+                thread.start();
+            } else {
+                handOver(thread, COROUTINE_TURN);
+            }
+            awaitTurn(RESUMER_TURN);
+        }
+
+        // Called by the coroutine: passes values to the resumer and waits to be resumed again.
+        Varargs transferOut(Varargs values) {
+            transfer = values;
+            status = Status.suspended;
+            handOver(resumer, RESUMER_TURN);
+            awaitTurn(COROUTINE_TURN);
+            if (killed) {
+                throw new Kill();
+            }
+            return takeTransfer();
+        }
+
+        Varargs takeTransfer() {
+            Varargs values = transfer;
+            transfer = null;
+            return values;
+        }
+
+        void kill() {
+            if (status != Status.suspended || thread == null) {
+                return;
+            }
+            killed = true;
+            handOver(thread, COROUTINE_TURN);
+        }
+
+        // Called by the resumer: kills the coroutine and waits until its stack has unwound.
+        void close() {
+            if (thread == null) {
+                status = Status.dead;
+                return;
+            }
+            resumer = Thread.currentThread();
+            killed = true;
+            handOver(thread, COROUTINE_TURN);
+            awaitTurn(RESUMER_TURN);
+        }
+
+        private void handOver(Thread to, int nextTurn) {
+            turn = nextTurn;
+            LockSupport.unpark(to);
+        }
+
+        private void awaitTurn(int expected) {
+            while (turn != expected) {
+                LockSupport.park(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.luajvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// The stream behind an io library file handle. One direct buffer serves reads and writes in turn:
+// reads refill it from the channel and take lines and numerals straight out of it, so a file of any
+// size goes through the same 64 KiB, and writes collect in it and reach the channel a buffer at a time.
+// Buffers come from a small pool and go back to it on close. Operations are synchronized, so the
+// standard files can be shared by scripts running on several threads.
+final class LuaFile {
+    static final int BUFFER_SIZE = 1 << 16;
+    private static final int POOLED_BUFFERS = 16;
+    // longest numeral read("n") accepts, as in the reference implementation
+    private static final int MAX_NUMERAL = 200;
+    private static final ArrayBlockingQueue<ByteBuffer> POOL = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+
+    enum Buffering {
+        no,
+        full,
+        line
+    }
+
+    private final Channel channel;
+    private final boolean writable;
+    private final boolean append;
+    private Buffering buffering;
+    // between position and limit: input not read yet; below position: output not written yet
+    private ByteBuffer buffer = null;
+    private boolean writing = false;
+    private boolean closed = false;
+
+    LuaFile(Channel channel, boolean append, Buffering buffering) {
+        this(channel, channel instanceof WritableByteChannel, append, buffering);
+    }
+
+    // writable tells whether a channel that could be written was opened for writing
+    private LuaFile(Channel channel, boolean writable, boolean append, Buffering buffering) {
+        this.channel = channel;
+        this.writable = writable;
+        this.append = append;
+        this.buffering = buffering;
+    }
+
+    // mode as in io.open, already checked
+    static LuaFile open(Path path, String mode) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.noneOf(StandardOpenOption.class);
+        boolean update = mode.indexOf('+') >= 0;
+        switch (mode.charAt(0)) {
+            case 'r' -> options.add(StandardOpenOption.READ);
+            case 'w' -> options.addAll(Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING));
+            default -> options.addAll(Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+        }
+        if (update) {
+            options.addAll(Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        // APPEND cannot be combined with READ, so appending moves to the end before each write instead
+        return new LuaFile(FileChannel.open(path, options), options.contains(StandardOpenOption.WRITE),
+                mode.charAt(0) == 'a', Buffering.full);
+    }
+
+    static LuaFile temporary() throws IOException {
+        Path path = Files.createTempFile("lua", null);
+        return new LuaFile(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE), false, Buffering.full);
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // next line without its end of line, or with it if keepNewline; null at the end of the file
+    synchronized LuaString readLine(boolean keepNewline) throws IOException {
+        ByteBuffer buffer = input();
+        if (buffer == null) {
+            return null;
+        }
+        LuaStringBuffer out = null;
+        while (buffer != null) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            boolean found = end < limit;
+            int count = end - start + (found && keepNewline ? 1 : 0);
+            if (found && out == null) {
+                byte[] line = new byte[count];
+                buffer.get(line);
+                buffer.position(end + 1);
+                return LuaString.wrap(line);
+            }
+            if (out == null) {
+                out = new LuaStringBuffer(count * 2);
+            }
+            out.append(buffer, count);
+            if (found) {
+                buffer.position(end + 1);
+                break;
+            }
+            buffer = input();
+        }
+        return out.toLuaString();
+    }
+
+    // the rest of the file, empty at its end
+    synchronized LuaString readAll() throws IOException {
+        long expected = 16;
+        if (channel instanceof SeekableByteChannel seekable && !writing) {
+            expected = Math.max(expected, seekable.size() - seekable.position() + available());
+        }
+        LuaStringBuffer out = new LuaStringBuffer((int) Math.min(expected, Integer.MAX_VALUE - 8));
+        ByteBuffer buffer;
+        while ((buffer = input()) != null) {
+            out.append(buffer, buffer.remaining());
+        }
+        return out.toLuaString();
+    }
+
+    // up to count bytes; null at the end of the file, where even a count of 0 fails
+    synchronized LuaString read(long count) throws IOException {
+        ByteBuffer buffer = input();
+        if (buffer == null) {
+            return null;
+        }
+        if (count == 0) {
+            return LuaString.EMPTY;
+        }
+        LuaStringBuffer out = new LuaStringBuffer((int) Math.min(count, BUFFER_SIZE));
+        long left = count;
+        while (left > 0 && buffer != null) {
+            int n = (int) Math.min(left, buffer.remaining());
+            out.append(buffer, n);
+            left -= n;
+            if (left > 0) {
+                buffer = input();
+            }
+        }
+        return out.toLuaString();
+    }
+
+    // Reads the longest prefix of a numeral after optional white space, the way the reference
+    // implementation does, and stores its value into result; false if it is not a valid number.
+    // The character after the numeral is left unread.
+    synchronized boolean readNumber(LuaValue result) throws IOException {
+        int c;
+        while ((c = peek()) >= 0 && isSpace(c)) {
+            buffer.position(buffer.position() + 1);
+        }
+        Numeral numeral = new Numeral();
+        int count = 0;
+        boolean hex = false;
+        numeral.accept('-', '+');
+        if (numeral.accept('0', '0')) {
+            if (numeral.accept('x', 'X')) {
+                hex = true;
+            } else {
+                count = 1;
+            }
+        }
+        count += numeral.digits(hex);
+        if (numeral.accept('.', '.')) {
+            count += numeral.digits(hex);
+        }
+        if (count > 0 && (hex ? numeral.accept('p', 'P') : numeral.accept('e', 'E'))) {
+            numeral.accept('-', '+');
+            numeral.digits(false);
+        }
+        return numeral.valid && LuaNumberParser.parse(numeral.bytes, 0, numeral.length, result);
+    }
+
+    synchronized void write(LuaString s) throws IOException {
+        int length = s.length();
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer buffer = output();
+            int count = Math.min(buffer.remaining(), length - offset);
+            s.copyTo(offset, buffer, count);
+            offset += count;
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+        }
+        if (buffering == Buffering.no || (buffering == Buffering.line && containsNewline(s))) {
+            drain();
+        }
+    }
+
+    synchronized void flush() throws IOException {
+        drain();
+    }
+
+    // Moves to offset from the start ("set"), the current position ("cur") or the end ("end") and
+    // returns the new position.
+    synchronized long seek(String whence, long offset) throws IOException {
+        if (!(channel instanceof SeekableByteChannel seekable)) {
+            throw new IOException("Illegal seek");
+        }
+        drain();
+        long current = seekable.position() - available();
+        if (whence.equals("cur") && offset == 0) {
+            return current;
+        }
+        long base = switch (whence) {
+            case "set" -> 0;
+            case "cur" -> current;
+            default -> seekable.size();
+        };
+        long position = base + offset;
+        if (position < 0) {
+            throw new IOException("Invalid argument");
+        }
+        seekable.position(position);
+        if (buffer != null) {
+            buffer.clear().limit(0);
+        }
+        return position;
+    }
+
+    synchronized void setBuffering(Buffering buffering) throws IOException {
+        this.buffering = buffering;
+        if (buffering == Buffering.no) {
+            drain();
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            closed = true;
+            if (buffer != null) {
+                POOL.offer(buffer);
+                buffer = null;
+            }
+            channel.close();
+        }
+    }
+
+    // for the Cleaner of a handle that became unreachable
+    void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private ByteBuffer buffer() {
+        if (buffer == null) {
+            ByteBuffer pooled = POOL.poll();
+            buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.clear().limit(0);
+        }
+        return buffer;
+    }
+
+    // unread input in the buffer
+    private int available() {
+        return buffer != null && !writing ? buffer.remaining() : 0;
+    }
+
+    // the buffer with at least one byte of input left, or null at the end of the file
+    private ByteBuffer input() throws IOException {
+        ByteBuffer buffer = buffer();
+        if (writing) {
+            drain();
+        }
+        if (buffer.hasRemaining()) {
+            return buffer;
+        }
+        if (!(channel instanceof ReadableByteChannel readable)) {
+            throw new IOException("Bad file descriptor");
+        }
+        buffer.clear();
+        int n;
+        try {
+            n = readable.read(buffer);
+        } catch (NonReadableChannelException e) {
+            throw new IOException("Bad file descriptor");
+        } finally {
+            buffer.flip();
+        }
+        return n > 0 ? buffer : null;
+    }
+
+    private int peek() throws IOException {
+        ByteBuffer buffer = input();
+        return buffer == null ? -1 : buffer.get(buffer.position()) & 0xFF;
+    }
+
+    // the buffer with room for output; unread input is given back to the channel first
+    private ByteBuffer output() throws IOException {
+        if (!writable) {
+            throw new IOException("Bad file descriptor");
+        }
+        ByteBuffer buffer = buffer();
+        if (!writing) {
+            if (buffer.hasRemaining() && channel instanceof SeekableByteChannel seekable) {
+                seekable.position(seekable.position() - buffer.remaining());
+            }
+            buffer.clear();
+            writing = true;
+        }
+        return buffer;
+    }
+
+    // writes out pending output and leaves the buffer empty
+    private void drain() throws IOException {
+        if (!writing) {
+            return;
+        }
+        if (!(channel instanceof WritableByteChannel writable)) {
+            throw new IOException("Bad file descriptor");
+        }
+        buffer.flip();
+        try {
+            if (append && channel instanceof SeekableByteChannel seekable) {
+                seekable.position(seekable.size());
+            }
+            while (buffer.hasRemaining()) {
+                writable.write(buffer);
+            }
+        } catch (NonWritableChannelException e) {
+            throw new IOException("Bad file descriptor");
+        } finally {
+            buffer.clear().limit(0);
+            writing = false;
+        }
+    }
+
+    private static boolean containsNewline(LuaString s) {
+        for (int i = s.length() - 1; i >= 0; i--) {
+            if (s.byteAt(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSpace(int c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    private static boolean isDigit(int c, boolean hex) {
+        return (c >= '0' && c <= '9') || (hex && ((c | 0x20) >= 'a' && (c | 0x20) <= 'f'));
+    }
+
+    // numeral being read by readNumber; the current character is the next unread byte of the file
+    private final class Numeral {
+        final byte[] bytes = new byte[MAX_NUMERAL];
+        int length = 0;
+        boolean valid = true;
+
+        // takes the current character
+        private boolean next() throws IOException {
+            if (length >= MAX_NUMERAL) {
+                valid = false;
+                return false;
+            }
+            bytes[length++] = (byte) peek();
+            buffer.position(buffer.position() + 1);
+            return true;
+        }
+
+        boolean accept(char first, char second) throws IOException {
+            int c = peek();
+            return (c == first || c == second) && next();
+        }
+
+        int digits(boolean hex) throws IOException {
+            int count = 0;
+            while (isDigit(peek(), hex) && next()) {
+                count++;
+            }
+            return count;
+        }
+    }
+}
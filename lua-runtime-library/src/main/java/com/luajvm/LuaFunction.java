@@ -0,0 +1,255 @@
+package com.luajvm;
+
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+// Base type of every callable value. The fixed-arity call methods return only the first result
+// and let implementations avoid building argument and result lists; invoke(Varargs) is the general protocol.
+public abstract class LuaFunction implements Function<List<LuaValue>, List<LuaValue>> {
+    public static LuaFunction adapt(Function<List<LuaValue>, List<LuaValue>> function) {
+        if (function instanceof LuaFunction luaFunction) {
+            return luaFunction;
+        }
+        return new Adapter(function);
+    }
+
+    public static LuaFunction unary(UnaryOperator<LuaValue> function) {
+        return new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue arg) {
+                return function.apply(arg);
+            }
+        };
+    }
+
+    public static LuaFunction variadic(Function<Varargs, Varargs> function) {
+        return new LuaFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return function.apply(args);
+            }
+        };
+    }
+
+    // library function that keeps its per-state data in a table, see getState
+    static LuaFunction stateful(LuaTable state, BiFunction<LuaTable, Varargs, Varargs> body) {
+        return new Stateful(state, body);
+    }
+
+    public static LuaFunction binary(BinaryOperator<LuaValue> function) {
+        return new TwoArgFunction() {
+            @Override
+            public LuaValue call(LuaValue arg1, LuaValue arg2) {
+                return function.apply(arg1, arg2);
+            }
+        };
+    }
+
+    public LuaValue call() {
+        return invoke(Varargs.NONE).arg1();
+    }
+
+    public LuaValue call(LuaValue arg) {
+        return invoke(arg).arg1();
+    }
+
+    public LuaValue call(LuaValue arg1, LuaValue arg2) {
+        return invoke(Varargs.varargsOf(arg1, arg2)).arg1();
+    }
+
+    public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+        return invoke(Varargs.varargsOf(arg1, arg2, arg3)).arg1();
+    }
+
+    public abstract Varargs invoke(Varargs args);
+
+    public Varargs invoke(LuaValue... args) {
+        return invoke(Varargs.varargsOf(args));
+    }
+
+    @Override
+    public List<LuaValue> apply(List<LuaValue> args) {
+        return invoke(Varargs.valueOf(args)).toList();
+    }
+
+    // Table a library function keeps per-state data in, or null. LuaState freezes it with the rest of a
+    // template and gives each fork its own copy through withState.
+    LuaTable getState() {
+        return null;
+    }
+
+    // the same function working on the given copy of its state
+    LuaFunction withState(LuaTable state) {
+        return this;
+    }
+
+    public abstract static class ZeroArgFunction extends LuaFunction {
+        @Override
+        public abstract LuaValue call();
+
+        @Override
+        public LuaValue call(LuaValue arg) {
+            return call();
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2) {
+            return call();
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+            return call();
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return call();
+        }
+    }
+
+    public abstract static class OneArgFunction extends LuaFunction {
+        @Override
+        public LuaValue call() {
+            return call(LuaValue.NIL_VALUE);
+        }
+
+        @Override
+        public abstract LuaValue call(LuaValue arg);
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2) {
+            return call(arg1);
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+            return call(arg1);
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return call(args.arg1());
+        }
+    }
+
+    public abstract static class TwoArgFunction extends LuaFunction {
+        @Override
+        public LuaValue call() {
+            return call(LuaValue.NIL_VALUE, LuaValue.NIL_VALUE);
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg) {
+            return call(arg, LuaValue.NIL_VALUE);
+        }
+
+        @Override
+        public abstract LuaValue call(LuaValue arg1, LuaValue arg2);
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+            return call(arg1, arg2);
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return call(args.arg1(), args.arg(2));
+        }
+    }
+
+    public abstract static class ThreeArgFunction extends LuaFunction {
+        @Override
+        public LuaValue call() {
+            return call(LuaValue.NIL_VALUE, LuaValue.NIL_VALUE, LuaValue.NIL_VALUE);
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg) {
+            return call(arg, LuaValue.NIL_VALUE, LuaValue.NIL_VALUE);
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2) {
+            return call(arg1, arg2, LuaValue.NIL_VALUE);
+        }
+
+        @Override
+        public abstract LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3);
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return call(args.arg1(), args.arg(2), args.arg(3));
+        }
+    }
+
+    private static final class Stateful extends LuaFunction {
+        private final LuaTable state;
+        private final BiFunction<LuaTable, Varargs, Varargs> body;
+
+        Stateful(LuaTable state, BiFunction<LuaTable, Varargs, Varargs> body) {
+            this.state = state;
+            this.body = body;
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return body.apply(state, args);
+        }
+
+        @Override
+        LuaTable getState() {
+            return state;
+        }
+
+        @Override
+        LuaFunction withState(LuaTable state) {
+            return new Stateful(state, body);
+        }
+    }
+
+    private static final class Adapter extends LuaFunction {
+        private final Function<List<LuaValue>, List<LuaValue>> function;
+
+        Adapter(Function<List<LuaValue>, List<LuaValue>> function) {
+            this.function = function;
+        }
+
+        @Override
+        public LuaValue call() {
+            return first(function.apply(List.of()));
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg) {
+            return first(function.apply(List.of(arg)));
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2) {
+            return first(function.apply(List.of(arg1, arg2)));
+        }
+
+        @Override
+        public LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
+            return first(function.apply(List.of(arg1, arg2, arg3)));
+        }
+
+        @Override
+        public Varargs invoke(Varargs args) {
+            return Varargs.valueOf(function.apply(args.toList()));
+        }
+
+        @Override
+        public List<LuaValue> apply(List<LuaValue> args) {
+            return function.apply(args);
+        }
+
+        private static LuaValue first(List<LuaValue> results) {
+            return results.isEmpty() ? LuaValue.NIL_VALUE : results.getFirst();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.luajvm;
+
+final public class LuaFunctions {
+    private static final LuaString SELECT_COUNT = LuaString.valueOf("#");
+    private static final LuaValue ZERO = new LuaValue(0);
+    private static final LuaValue IPAIRS_ITERATOR = new LuaValue(new LuaFunction() {
+        @Override
+        public Varargs invoke(Varargs args) {
+            LuaValue list = args.arg1();
+            long index = args.arg(2).getIntegerValue() + 1;
+            LuaValue value = list.isTableValue() && list.getTableValue().getMetatable() == null
+                    ? list.getTableValue().rawget(index)
+                    : LuaOps.index(list, new LuaValue(index));
+            return value.isNil() ? LuaValue.NIL_VALUE : Varargs.varargsOf(new LuaValue(index), value);
+        }
+    });
+
+    static public LuaValue toNumberValue(LuaValue value) {
+        LuaValue.Type type = value.getType();
+        switch (type) {
+            case integer:
+            case real:
+                return value;
+            case string:
+                LuaValue result = new LuaValue();
+                LuaNumberParser.parse(value.getLuaStringValue(), result);
+                return result;
+            default:
+                return new LuaValue();
+        }
+    }
+
+    static public LuaValue toNumberValue(LuaValue value, LuaValue base) {
+        if (base.isNil()) {
+            return toNumberValue(value);
+        }
+        long radix = checkInteger(Varargs.varargsOf(value, base), 2, "tonumber");
+        if (radix < 2 || radix > 36) {
+            throw argumentError(2, "tonumber", "base out of range");
+        }
+        if (!value.isStringValue()) {
+            throw new RuntimeException("bad argument #1 to 'tonumber' (string expected, got " + value.getTypeString() + ")");
+        }
+        LuaValue result = new LuaValue();
+        LuaNumberParser.parse(value.getLuaStringValue(), (int) radix, result);
+        return result;
+    }
+
+    static public Varargs toNumber(LuaValue value) {
+        return toNumberValue(value);
+    }
+
+    static public Varargs toNumber(LuaValue value, LuaValue base) {
+        return toNumberValue(value, base);
+    }
+
+    static public Varargs toNumber(Varargs args) {
+        checkArgument(args, "tonumber");
+        return toNumberValue(args.arg1(), args.arg(2));
+    }
+
+    static public Varargs type(LuaValue value) {
+        return new LuaValue(value.getTypeString());
+    }
+
+    static public Varargs type(Varargs args) {
+        checkArgument(args, "type");
+        return type(args.arg1());
+    }
+
+    static public LuaValue toStringValue(LuaValue value) {
+        LuaValue handler = LuaMetatable.getMetamethod(value, LuaMetamethod.tostring);
+        if (!handler.isNil()) {
+            LuaValue result = LuaOps.call(handler, value).arg1();
+            if (!result.isStringValue()) {
+                throw new RuntimeException("'__tostring' must return a string");
+            }
+            return result;
+        }
+        return switch (value.getType()) {
+            case nil -> new LuaValue("nil");
+            case bool -> new LuaValue(value.getBoolValue() ? "true" : "false");
+            case integer, real -> new LuaValue(LuaMetatable.numberToString(value));
+            case string -> value;
+            default -> new LuaValue(value.getTypeString() + ": " + address(value));
+        };
+    }
+
+    static public Varargs toString(Varargs args) {
+        checkArgument(args, "tostring");
+        return toStringValue(args.arg1());
+    }
+
+    static public Varargs next(Varargs args) {
+        return checkTable(args, "next").next(args.arg(2));
+    }
+
+    // pairs(t): the results of __pairs if t has one, otherwise an iterator that keeps a cursor into t
+    // and only falls back to next when the loop passes it some other key
+    static public Varargs pairs(Varargs args) {
+        checkArgument(args, "pairs");
+        LuaValue value = args.arg1();
+        LuaValue handler = LuaMetatable.getMetamethod(value, LuaMetamethod.pairs);
+        if (!handler.isNil()) {
+            Varargs results = LuaOps.call(handler, value);
+            return Varargs.varargsOf(results.arg(1), results.arg(2), results.arg(3));
+        }
+        LuaTable table = checkTable(args, "pairs");
+        LuaTable.Cursor cursor = table.cursor();
+        LuaFunction iterator = new LuaFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                LuaValue key = args.arg(2);
+                LuaValue current = cursor.key();
+                if (key.isNil()) {
+                    cursor.reset();
+                } else if (current == null || !current.equals(key)) {
+                    return table.next(key);
+                }
+                if (!cursor.next()) {
+                    return LuaValue.NIL_VALUE;
+                }
+                LuaValue next = cursor.key();
+                LuaValue value = cursor.value();
+                return Varargs.varargsOf(next == cursor.integerKey ? new LuaValue(next) : next,
+                        value == cursor.numericValue ? new LuaValue(value) : value);
+            }
+        };
+        return Varargs.varargsOf(new LuaValue(iterator), value, LuaValue.NIL_VALUE);
+    }
+
+    // Cursor for compiled code to run a pairs loop without calls, or null when it has to use the
+    // generic protocol because the value is not a table or has __pairs.
+    static public LuaTable.Cursor pairsCursor(LuaValue value) {
+        if (!value.isTableValue() || !LuaMetatable.getMetamethod(value, LuaMetamethod.pairs).isNil()) {
+            return null;
+        }
+        return value.getTableValue().cursor();
+    }
+
+    static public Varargs ipairs(Varargs args) {
+        checkArgument(args, "ipairs");
+        return Varargs.varargsOf(IPAIRS_ITERATOR, args.arg1(), ZERO);
+    }
+
+    // select('#', ...) returns the number of extra arguments, select(n, ...) those from the n-th on
+    static public Varargs select(Varargs args) {
+        LuaValue index = args.arg1();
+        int count = args.narg() - 1;
+        if (index.isStringValue() && index.getLuaStringValue().equals(SELECT_COUNT)) {
+            return new LuaValue(count);
+        }
+        LuaValue number = toNumberValue(index);
+        if (!number.isIntegerValue()) {
+            throw new RuntimeException("bad argument #1 to 'select' (number expected, got " + index.getTypeString() + ")");
+        }
+        long n = number.getIntegerValue();
+        if (n < 0) {
+            n += count + 1;
+        } else if (n > count) {
+            return Varargs.NONE;
+        }
+        if (n < 1) {
+            throw new RuntimeException("bad argument #1 to 'select' (index out of range)");
+        }
+        return args.subargs((int) n + 1);
+    }
+
+    // identity of a table, function or coroutine as shown by tostring and %p
+    static String address(LuaValue value) {
+        return String.format("0x%08x", System.identityHashCode(value.getReference()));
+    }
+
+    static RuntimeException argumentError(int index, String name, String message) {
+        return new RuntimeException("bad argument #" + index + " to '" + name + "' (" + message + ")");
+    }
+
+    // type name of an argument as shown in errors; "no value" past the last argument
+    static String typeName(Varargs args, int index) {
+        return index > args.narg() ? "no value" : args.arg(index).getTypeString();
+    }
+
+    // integer argument; numeric strings and floats with an exact integer value are converted
+    static long checkInteger(Varargs args, int index, String name) {
+        LuaValue number = toNumberValue(args.arg(index));
+        if (number.isIntegerValue()) {
+            return number.getIntegerValue();
+        }
+        if (number.isNil()) {
+            throw argumentError(index, name, "number expected, got " + typeName(args, index));
+        }
+        double real = number.getRealValue();
+        long integer = (long) real;
+        if (integer != real || real == 0x1p63) {
+            throw argumentError(index, name, "number has no integer representation");
+        }
+        return integer;
+    }
+
+    private static LuaTable checkTable(Varargs args, String name) {
+        LuaValue value = args.arg1();
+        if (!value.isTableValue()) {
+            throw argumentError(1, name, "table expected, got " + typeName(args, 1));
+        }
+        return value.getTableValue();
+    }
+
+    private static void checkArgument(Varargs args, String name) {
+        if (args.narg() == 0) {
+            throw new RuntimeException("bad argument #1 to '" + name + "' (value expected)");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.luajvm;
+
+// Inline cache for one indexing call site with a constant key, e.g. obj.field or obj:method().
+// An entry remembers the tables its __index/__newindex walk went through together with their versions,
+// so until one of those tables changes shape a lookup costs one raw probe of the receiver
+// plus a version check per table, however deep the chain is.
+final public class LuaIndexCache {
+    private static final int MAX_CACHED_CHAIN = 16;
+
+    private final LuaValue key;
+    private Entry getEntry = null;
+    private Entry setEntry = null;
+
+    public LuaIndexCache(LuaValue key) {
+        if (key.isNil()) {
+            throw new RuntimeException("table index is nil");
+        }
+        this.key = new LuaValue(key);
+    }
+
+    public LuaIndexCache(String key) {
+        this(new LuaValue(key));
+    }
+
+    public LuaValue getKey() {
+        return key;
+    }
+
+    public LuaValue get(LuaValue object) {
+        LuaTable metatable;
+        if (object.isTableValue()) {
+            LuaTable table = object.getTableValue();
+            LuaValue value = table.rawget(key);
+            if (!value.isNil()) {
+                return value;
+            }
+            metatable = table.getMetatable();
+            if (metatable == null) {
+                return value;
+            }
+        } else {
+            metatable = LuaMetatable.metatableOf(object);
+        }
+        Entry entry = getEntry;
+        if (entry != null && entry.metatable == metatable && entry.isValid()) {
+            return entry.value;
+        }
+        return resolveGet(object, metatable);
+    }
+
+    public void set(LuaValue object, LuaValue value) {
+        if (!object.isTableValue()) {
+            LuaOps.newindex(object, key, value);
+            return;
+        }
+        LuaTable table = object.getTableValue();
+        LuaTable metatable = table.getMetatable();
+        if (metatable == null || !table.rawget(key).isNil()) {
+            table.rawset(key, value);
+            return;
+        }
+        Entry entry = setEntry;
+        if (entry != null && entry.metatable == metatable && entry.isValid()) {
+            (entry.target != null ? entry.target : table).rawset(key, value);
+            return;
+        }
+        resolveSet(object, metatable, value);
+    }
+
+    private LuaValue resolveGet(LuaValue object, LuaTable metatable) {
+        LuaTable[] chain = new LuaTable[MAX_CACHED_CHAIN];
+        int length = 0;
+        LuaTable current = metatable;
+        while (length + 2 <= MAX_CACHED_CHAIN) {
+            chain[length++] = current;
+            LuaValue handler = current.getMetamethod(LuaMetamethod.index);
+            if (handler.isNil()) {
+                if (length == 1 && !object.isTableValue()) {
+                    break;
+                }
+                getEntry = new Entry(metatable, chain, length, LuaValue.NIL_VALUE, null);
+                return LuaValue.NIL_VALUE;
+            }
+            if (!handler.isTableValue()) {
+                break;
+            }
+            LuaTable holder = handler.getTableValue();
+            chain[length++] = holder;
+            LuaValue value = holder.rawget(key);
+            if (!value.isNil()) {
+                // a cached cell would keep the value of a weak table alive, and a concurrent table
+                // replaces its cells on update without changing its version
+                if (!holder.isWeak() && !(holder instanceof LuaConcurrentTable)) {
+                    getEntry = new Entry(metatable, chain, length, value, null);
+                }
+                return value;
+            }
+            current = holder.getMetatable();
+            if (current == null) {
+                getEntry = new Entry(metatable, chain, length, LuaValue.NIL_VALUE, null);
+                return LuaValue.NIL_VALUE;
+            }
+        }
+        // function handlers, errors and very deep chains are not cached
+        return LuaOps.index(object, key);
+    }
+
+    private void resolveSet(LuaValue object, LuaTable metatable, LuaValue value) {
+        LuaTable[] chain = new LuaTable[MAX_CACHED_CHAIN];
+        int length = 0;
+        LuaTable current = metatable;
+        LuaTable target = null;
+        while (length + 2 <= MAX_CACHED_CHAIN) {
+            chain[length++] = current;
+            LuaValue handler = current.getMetamethod(LuaMetamethod.newindex);
+            if (handler.isNil()) {
+                setEntry = new Entry(metatable, chain, length, null, target);
+                (target != null ? target : object.getTableValue()).rawset(key, value);
+                return;
+            }
+            if (!handler.isTableValue()) {
+                break;
+            }
+            target = handler.getTableValue();
+            chain[length++] = target;
+            current = target.getMetatable();
+            if (current == null || !target.rawget(key).isNil()) {
+                setEntry = new Entry(metatable, chain, length, null, target);
+                target.rawset(key, value);
+                return;
+            }
+        }
+        LuaOps.newindex(object, key, value);
+    }
+
+    private static final class Entry {
+        final LuaTable metatable;
+        final LuaTable[] tables;
+        final int[] versions;
+        // resolved value for reads; the cell is owned by its table and reflects in-place updates
+        final LuaValue value;
+        // table that receives writes, null for the receiver itself
+        final LuaTable target;
+
+        Entry(LuaTable metatable, LuaTable[] chain, int length, LuaValue value, LuaTable target) {
+            this.metatable = metatable;
+            this.tables = new LuaTable[length];
+            this.versions = new int[length];
+            for (int i = 0; i < length; i++) {
+                tables[i] = chain[i];
+                versions[i] = chain[i].getVersion();
+            }
+            this.value = value;
+            this.target = target;
+        }
+
+        boolean isValid() {
+            LuaTable[] tables = this.tables;
+            int[] versions = this.versions;
+            for (int i = 0; i < tables.length; i++) {
+                if (tables[i].getVersion() != versions[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.luajvm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Opt-in runtime counters, enabled with -Dluajvm.instrumentation=true. ENABLED is a static final flag,
+// so with instrumentation off the JIT folds every hook below to nothing.
+// Operators are counted by the path that served them: fast for numbers and strings handled inline,
+// coercion for the built-in string/number handlers and metamethod for handlers found on a table.
+// A coerced arithmetic operation is counted under coercion and, once converted, under fast as well.
+// When enabled the counters are published as the MBean com.luajvm:type=Instrumentation and, once a second,
+// as the JFR event com.luajvm.Statistics; calls of 1 ms or longer are recorded as com.luajvm.Call events.
+final public class LuaInstrumentation {
+    public static final boolean ENABLED = Boolean.getBoolean("luajvm.instrumentation");
+    public static final String OBJECT_NAME = "com.luajvm:type=Instrumentation";
+    // bucket i of the call latency histogram counts calls that took [2^(i-1), 2^i) nanoseconds
+    static final int LATENCY_BUCKETS = 64;
+    static final long SLOW_CALL_NANOS = 1_000_000;
+
+    public enum Path {
+        fast,
+        coercion,
+        metamethod
+    }
+
+    private static final LuaMetamethod[] OPERATORS = {
+            LuaMetamethod.add, LuaMetamethod.sub, LuaMetamethod.mul, LuaMetamethod.div, LuaMetamethod.mod,
+            LuaMetamethod.pow, LuaMetamethod.unm, LuaMetamethod.idiv, LuaMetamethod.concat, LuaMetamethod.len,
+            LuaMetamethod.eq, LuaMetamethod.lt, LuaMetamethod.le
+    };
+    private static final int PATHS = Path.values().length;
+
+    private static final LongAdder[] OPERATIONS = ENABLED ? adders(LuaMetamethod.VALUES.length * PATHS) : null;
+    private static final LongAdder[] CALL_LATENCY = ENABLED ? adders(LATENCY_BUCKETS) : null;
+    private static final LongAdder ARRAY_RESIZES = new LongAdder();
+    private static final LongAdder REHASHES = new LongAdder();
+    private static final MethodHandle COUNT;
+    private static final MethodHandle NANO_TIME;
+    private static final MethodHandle CALL_COMPLETED;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            COUNT = lookup.findStatic(LuaInstrumentation.class, "count",
+                    MethodType.methodType(void.class, LuaMetamethod.class, Path.class));
+            NANO_TIME = lookup.findStatic(System.class, "nanoTime", MethodType.methodType(long.class));
+            CALL_COMPLETED = lookup.findStatic(LuaInstrumentation.class, "timedCompleted",
+                    MethodType.methodType(Object.class, Throwable.class, Object.class, long.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        if (ENABLED) {
+            register();
+        }
+    }
+
+    private LuaInstrumentation() {
+    }
+
+    static void count(LuaMetamethod operator, Path path) {
+        if (ENABLED) {
+            OPERATIONS[operator.ordinal() * PATHS + path.ordinal()].increment();
+        }
+    }
+
+    // path of an operator that went to a handler: the built-in ones live on the shared metatables
+    static void countHandler(LuaMetamethod operator, LuaValue a, LuaValue b) {
+        if (ENABLED) {
+            boolean own = a.isTableValue() || b.isTableValue() || a.isUserdataValue() || b.isUserdataValue();
+            count(operator, own ? Path.metamethod : Path.coercion);
+        }
+    }
+
+    static void arrayResized() {
+        if (ENABLED) {
+            ARRAY_RESIZES.increment();
+        }
+    }
+
+    static void rehashed() {
+        if (ENABLED) {
+            REHASHES.increment();
+        }
+    }
+
+    static long callStarted() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void callCompleted(long start) {
+        if (ENABLED) {
+            long duration = System.nanoTime() - start;
+            CALL_LATENCY[64 - Long.numberOfLeadingZeros(Math.max(duration, 0))].increment();
+            if (duration >= SLOW_CALL_NANOS) {
+                CallEvent event = new CallEvent();
+                if (event.isEnabled()) {
+                    event.latency = duration;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    // fastPath counted as a fast operation of operator; unchanged when instrumentation is off
+    static MethodHandle countFast(LuaMetamethod operator, MethodHandle fastPath) {
+        if (!ENABLED) {
+            return fastPath;
+        }
+        MethodHandle count = MethodHandles.insertArguments(COUNT, 0, operator, Path.fast);
+        return MethodHandles.foldArguments(fastPath, count);
+    }
+
+    // target with its latency recorded; unchanged when instrumentation is off
+    static MethodHandle timed(MethodHandle target) {
+        if (!ENABLED) {
+            return target;
+        }
+        MethodType type = target.type();
+        MethodHandle completed = CALL_COMPLETED.asType(MethodType.methodType(type.returnType(),
+                Throwable.class, type.returnType(), long.class));
+        MethodHandle body = MethodHandles.tryFinally(MethodHandles.dropArguments(target, 0, long.class), completed);
+        return MethodHandles.foldArguments(body, NANO_TIME);
+    }
+
+    private static Object timedCompleted(Throwable error, Object result, long start) {
+        callCompleted(start);
+        return result;
+    }
+
+    static public Map<String, Long> operationCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        if (ENABLED) {
+            for (LuaMetamethod operator : OPERATORS) {
+                for (Path path : Path.values()) {
+                    counts.put(operator.name() + "." + path.name(), OPERATIONS[operator.ordinal() * PATHS + path.ordinal()].sum());
+                }
+            }
+        }
+        return counts;
+    }
+
+    static public long operationCount(Path path) {
+        long total = 0;
+        if (ENABLED) {
+            for (LuaMetamethod operator : OPERATORS) {
+                total += OPERATIONS[operator.ordinal() * PATHS + path.ordinal()].sum();
+            }
+        }
+        return total;
+    }
+
+    static public long arrayResizeCount() {
+        return ARRAY_RESIZES.sum();
+    }
+
+    static public long rehashCount() {
+        return REHASHES.sum();
+    }
+
+    static public long[] callLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        if (ENABLED) {
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                histogram[i] = CALL_LATENCY[i].sum();
+            }
+        }
+        return histogram;
+    }
+
+    static public long callCount() {
+        long total = 0;
+        for (long bucket : callLatencyHistogram()) {
+            total += bucket;
+        }
+        return total;
+    }
+
+    static public void reset() {
+        if (ENABLED) {
+            for (LongAdder adder : OPERATIONS) {
+                adder.reset();
+            }
+            for (LongAdder adder : CALL_LATENCY) {
+                adder.reset();
+            }
+        }
+        ARRAY_RESIZES.reset();
+        REHASHES.reset();
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register " + OBJECT_NAME, e);
+        }
+        FlightRecorder.addPeriodicEvent(StatisticsEvent.class, () -> {
+            StatisticsEvent event = new StatisticsEvent();
+            event.fastOperations = operationCount(Path.fast);
+            event.coercions = operationCount(Path.coercion);
+            event.metamethodCalls = operationCount(Path.metamethod);
+            event.arrayResizes = arrayResizeCount();
+            event.rehashes = rehashCount();
+            event.calls = callCount();
+            event.commit();
+        });
+    }
+
+    public interface LuaInstrumentationMXBean {
+        Map<String, Long> getOperationCounts();
+
+        long getFastOperations();
+
+        long getCoercions();
+
+        long getMetamethodCalls();
+
+        long getTableArrayResizes();
+
+        long getTableRehashes();
+
+        long getCalls();
+
+        long[] getCallLatencyHistogram();
+
+        void reset();
+    }
+
+    private static final class Bean implements LuaInstrumentationMXBean {
+        @Override
+        public Map<String, Long> getOperationCounts() {
+            return operationCounts();
+        }
+
+        @Override
+        public long getFastOperations() {
+            return operationCount(Path.fast);
+        }
+
+        @Override
+        public long getCoercions() {
+            return operationCount(Path.coercion);
+        }
+
+        @Override
+        public long getMetamethodCalls() {
+            return operationCount(Path.metamethod);
+        }
+
+        @Override
+        public long getTableArrayResizes() {
+            return arrayResizeCount();
+        }
+
+        @Override
+        public long getTableRehashes() {
+            return rehashCount();
+        }
+
+        @Override
+        public long getCalls() {
+            return callCount();
+        }
+
+        @Override
+        public long[] getCallLatencyHistogram() {
+            return callLatencyHistogram();
+        }
+
+        @Override
+        public void reset() {
+            LuaInstrumentation.reset();
+        }
+    }
+
+    @Name("com.luajvm.Call")
+    @Label("Lua Call")
+    @Category("Lua")
+    @Description("A call of a Lua function that took 1 ms or longer")
+    static final class CallEvent extends Event {
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("com.luajvm.Statistics")
+    @Label("Lua Statistics")
+    @Category("Lua")
+    @Description("Running totals of the Lua runtime counters")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class StatisticsEvent extends Event {
+        @Label("Fast Operations")
+        long fastOperations;
+
+        @Label("Coercions")
+        long coercions;
+
+        @Label("Metamethod Calls")
+        long metamethodCalls;
+
+        @Label("Table Array Resizes")
+        long arrayResizes;
+
+        @Label("Table Rehashes")
+        long rehashes;
+
+        @Label("Calls")
+        long calls;
+    }
+}
@@ -0,0 +1,420 @@
+package com.luajvm;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.channels.Channels;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+// The io table and the methods of file handles. A handle is a userdata around a LuaFile stream, and all
+// handles share one frozen metatable; one that becomes unreachable is flushed and closed by a Cleaner,
+// as the reference implementation does on collection. Failing to open, read or write a file returns
+// nil, a message and an error number; only misuse raises an error. Each library() table has its own
+// default input and output, and so does each state forked from a template.
+final public class LuaIoLibrary {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final LuaTable FILE_METATABLE = fileMetatable();
+    private static final Map<String, Integer> ERROR_NUMBERS = Map.of(
+            "No such file or directory", 2,
+            "Bad file descriptor", 9,
+            "Permission denied", 13,
+            "File exists", 17,
+            "Is a directory", 21,
+            "Invalid argument", 22,
+            "Illegal seek", 29
+    );
+
+    static final LuaValue STDIN = new LuaValue(new Handle(
+            new LuaFile(Channels.newChannel(System.in), false, LuaFile.Buffering.full), true));
+    static final LuaValue STDOUT = new LuaValue(new Handle(
+            new LuaFile(Channels.newChannel(System.out), false, LuaFile.Buffering.line), true));
+    static final LuaValue STDERR = new LuaValue(new Handle(
+            new LuaFile(Channels.newChannel(System.err), false, LuaFile.Buffering.no), true));
+
+    // as the reference implementation does at exit, write out what is still buffered for stdout and stderr
+    static {
+        LuaFile stdout = ((Handle) STDOUT.getUserdataValue()).file;
+        LuaFile stderr = ((Handle) STDERR.getUserdataValue()).file;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stdout.flushQuietly();
+            stderr.flushQuietly();
+        }, "lua-io-flush"));
+    }
+
+    // file:close()
+    static public Varargs close(Varargs args) {
+        return close(checkFile(args, "close"));
+    }
+
+    // file:flush()
+    static public Varargs flush(Varargs args) {
+        LuaFile file = checkFile(args, "flush").file;
+        try {
+            file.flush();
+            return args.arg1();
+        } catch (IOException e) {
+            return failure(null, e);
+        }
+    }
+
+    // file:lines(...): iterator reading with the given formats, leaving the file open at its end
+    static public Varargs lines(Varargs args) {
+        checkFile(args, "lines");
+        return lines(args.arg1(), args.subargs(2), false);
+    }
+
+    // file:read(...): one value for each format, "l" if none; nil for the first that fails and nothing after it
+    static public Varargs read(Varargs args) {
+        return read(checkFile(args, "read").file, args, 2, "read");
+    }
+
+    // file:seek([whence [, offset]]): the position after moving, whence being "set", "cur" or "end"
+    static public Varargs seek(Varargs args) {
+        LuaFile file = checkFile(args, "seek").file;
+        String whence = args.arg(2).isNil() ? "cur" : checkString(args, 2, "seek").toString();
+        if (!whence.equals("set") && !whence.equals("cur") && !whence.equals("end")) {
+            throw LuaFunctions.argumentError(2, "seek", "invalid option '" + whence + "'");
+        }
+        long offset = args.arg(3).isNil() ? 0 : LuaFunctions.checkInteger(args, 3, "seek");
+        try {
+            return new LuaValue(file.seek(whence, offset));
+        } catch (IOException e) {
+            return failure(null, e);
+        }
+    }
+
+    // file:setvbuf(mode [, size]): "no", "full" or "line"; the buffer keeps its size
+    static public Varargs setvbuf(Varargs args) {
+        LuaFile file = checkFile(args, "setvbuf").file;
+        String mode = checkString(args, 2, "setvbuf").toString();
+        LuaFile.Buffering buffering = switch (mode) {
+            case "no" -> LuaFile.Buffering.no;
+            case "full" -> LuaFile.Buffering.full;
+            case "line" -> LuaFile.Buffering.line;
+            default -> throw LuaFunctions.argumentError(2, "setvbuf", "invalid option '" + mode + "'");
+        };
+        try {
+            file.setBuffering(buffering);
+            return new LuaValue(true);
+        } catch (IOException e) {
+            return failure(null, e);
+        }
+    }
+
+    // file:write(...): writes strings and numbers and returns the file
+    static public Varargs write(Varargs args) {
+        return write(args.arg1(), checkFile(args, "write").file, args, 2, "write");
+    }
+
+    // io.open(filename [, mode]), mode being r, w or a, optionally followed by + and b
+    static public Varargs open(Varargs args) {
+        LuaString filename = checkString(args, 1, "open");
+        String mode = args.arg(2).isNil() ? "r" : checkString(args, 2, "open").toString();
+        if (!mode.matches("[rwa]\\+?b*")) {
+            throw LuaFunctions.argumentError(2, "open", "invalid mode");
+        }
+        try {
+            return open(filename.toString(), mode);
+        } catch (IOException e) {
+            return failure(filename.toString(), e);
+        }
+    }
+
+    // io.tmpfile(): a file open for update that is removed when closed
+    static public Varargs tmpfile(Varargs args) {
+        try {
+            return new LuaValue(new Handle(LuaFile.temporary(), false));
+        } catch (IOException e) {
+            return failure(null, e);
+        }
+    }
+
+    // io.type(obj): "file", "closed file" or nil
+    static public Varargs type(Varargs args) {
+        LuaValue value = args.arg1();
+        if (value.isUserdataValue() && value.getUserdataValue() instanceof Handle handle) {
+            return new LuaValue(handle.file.isClosed() ? "closed file" : "file");
+        }
+        return new LuaValue();
+    }
+
+    // The io table: close, flush, input, lines, open, output, read, tmpfile, type, write, stdin, stdout, stderr
+    static public LuaTable library() {
+        LuaTable defaults = new LuaTable(0, 2);
+        defaults.rawset("input", STDIN);
+        defaults.rawset("output", STDOUT);
+        return new LuaTable(Map.ofEntries(
+                Map.entry(new LuaValue("close"), withDefaults(defaults, (current, args) ->
+                        args.arg1().isNil() ? close(current.rawget("output")) : close(args))),
+                Map.entry(new LuaValue("flush"), withDefaults(defaults, (current, args) -> {
+                    defaultFile(current, "output");
+                    return flush(current.rawget("output"));
+                })),
+                Map.entry(new LuaValue("input"), withDefaults(defaults, (current, args) ->
+                        select(current, args, "input", "r"))),
+                Map.entry(new LuaValue("output"), withDefaults(defaults, (current, args) ->
+                        select(current, args, "output", "w"))),
+                Map.entry(new LuaValue("lines"), withDefaults(defaults, (current, args) -> {
+                    if (args.arg1().isNil()) {
+                        defaultFile(current, "input");
+                        return lines(current.rawget("input"), args.subargs(2), false);
+                    }
+                    String filename = checkString(args, 1, "lines").toString();
+                    LuaValue file = openOrFail(filename, "r");
+                    return Varargs.varargsOf(lines(file, args.subargs(2), true), new LuaValue(), new LuaValue(), file);
+                })),
+                Map.entry(new LuaValue("read"), withDefaults(defaults, (current, args) ->
+                        read(defaultFile(current, "input").file, args, 1, "read"))),
+                Map.entry(new LuaValue("write"), withDefaults(defaults, (current, args) ->
+                        write(current.rawget("output"), defaultFile(current, "output").file, args, 1, "write"))),
+                Map.entry(new LuaValue("open"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::open))),
+                Map.entry(new LuaValue("tmpfile"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::tmpfile))),
+                Map.entry(new LuaValue("type"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::type))),
+                Map.entry(new LuaValue("stdin"), STDIN),
+                Map.entry(new LuaValue("stdout"), STDOUT),
+                Map.entry(new LuaValue("stderr"), STDERR)
+        ));
+    }
+
+    private static LuaTable fileMetatable() {
+        LuaTable methods = new LuaTable(Map.of(
+                new LuaValue("close"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::close)),
+                new LuaValue("flush"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::flush)),
+                new LuaValue("lines"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::lines)),
+                new LuaValue("read"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::read)),
+                new LuaValue("seek"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::seek)),
+                new LuaValue("setvbuf"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::setvbuf)),
+                new LuaValue("write"), new LuaValue(LuaFunction.variadic(LuaIoLibrary::write))
+        ));
+        methods.freeze();
+        LuaTable metatable = new LuaTable(Map.of(
+                LuaMetamethod.index.keyValue, new LuaValue(methods),
+                LuaMetamethod.tostring.keyValue, new LuaValue(LuaFunction.variadic(args -> {
+                    Handle handle = checkHandle(args, "tostring");
+                    return new LuaValue(handle.file.isClosed() ? "file (closed)" : "file (" + LuaFunctions.address(args.arg1()) + ")");
+                })),
+                new LuaValue("__name"), new LuaValue("FILE*")
+        ));
+        metatable.freeze();
+        return metatable;
+    }
+
+    private static Varargs close(Handle handle) {
+        if (handle.standard) {
+            return Varargs.varargsOf(new LuaValue(), new LuaValue("cannot close standard file"));
+        }
+        try {
+            handle.file.close();
+            return new LuaValue(true);
+        } catch (IOException e) {
+            return failure(null, e);
+        }
+    }
+
+    private static LuaValue open(String filename, String mode) throws IOException {
+        Path path;
+        try {
+            path = Path.of(filename);
+        } catch (InvalidPathException e) {
+            throw new NoSuchFileException(filename);
+        }
+        return new LuaValue(new Handle(LuaFile.open(path, mode), false));
+    }
+
+    private static LuaValue openOrFail(String filename, String mode) {
+        try {
+            return open(filename, mode);
+        } catch (IOException e) {
+            throw new RuntimeException("cannot open file '" + filename + "' ("
+                    + failure(null, e).arg(2).getStringValue() + ")");
+        }
+    }
+
+    private static Varargs read(LuaFile file, Varargs args, int first, String name) {
+        int count = args.narg() - first + 1;
+        try {
+            if (count <= 0) {
+                return orNil(file.readLine(false));
+            }
+            LuaValue[] results = new LuaValue[count];
+            for (int i = 0; i < count; i++) {
+                results[i] = readFormat(file, args, first + i, name);
+                if (results[i].isNil()) {
+                    return Varargs.varargsOf(results, 0, i + 1);
+                }
+            }
+            return Varargs.varargsOf(results);
+        } catch (IOException e) {
+            return failure(null, e);
+        }
+    }
+
+    private static LuaValue readFormat(LuaFile file, Varargs args, int index, String name) throws IOException {
+        if (args.arg(index).isNumber()) {
+            long count = LuaFunctions.checkInteger(args, index, name);
+            return orNil(file.read(count < 0 ? Long.MAX_VALUE : count));
+        }
+        LuaString format = checkString(args, index, name);
+        int start = format.length() > 0 && format.byteAt(0) == '*' ? 1 : 0;
+        int option = start < format.length() ? format.byteAt(start) : 0;
+        switch (option) {
+            case 'n' -> {
+                LuaValue number = new LuaValue();
+                return file.readNumber(number) ? number : new LuaValue();
+            }
+            case 'l' -> {
+                return orNil(file.readLine(false));
+            }
+            case 'L' -> {
+                return orNil(file.readLine(true));
+            }
+            case 'a' -> {
+                return new LuaValue(file.readAll());
+            }
+            default -> throw LuaFunctions.argumentError(index, name, "invalid format");
+        }
+    }
+
+    private static LuaValue orNil(LuaString s) {
+        return s != null ? new LuaValue(s) : new LuaValue();
+    }
+
+    private static Varargs write(LuaValue handle, LuaFile file, Varargs args, int first, String name) {
+        try {
+            for (int i = first; i <= args.narg(); i++) {
+                LuaValue value = args.arg(i);
+                if (value.isNumber()) {
+                    file.write(LuaMetatable.numberToString(value));
+                } else if (value.isStringValue()) {
+                    file.write(value.getLuaStringValue());
+                } else {
+                    throw LuaFunctions.argumentError(i, name, "string expected, got " + LuaFunctions.typeName(args, i));
+                }
+            }
+            return handle;
+        } catch (IOException e) {
+            return failure(null, e);
+        }
+    }
+
+    // Iterator over the results of read(formats); closes the file at its end if close is set. It holds
+    // the handle, not just its stream, so the Cleaner cannot close the file while the loop runs.
+    private static LuaValue lines(LuaValue file, Varargs formats, boolean close) {
+        LuaValue[] saved = new LuaValue[formats.narg()];
+        for (int i = 0; i < saved.length; i++) {
+            saved[i] = new LuaValue(formats.arg(i + 1));
+        }
+        Varargs arguments = Varargs.varargsOf(saved);
+        Handle handle = (Handle) file.getUserdataValue();
+        return new LuaValue(new LuaFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                if (handle.file.isClosed()) {
+                    throw new RuntimeException("file is already closed");
+                }
+                Varargs results = read(handle.file, arguments, 1, "lines");
+                if (!results.arg1().isNil()) {
+                    return results;
+                }
+                if (results.narg() > 1) {
+                    throw new RuntimeException(results.arg(2).getStringValue());
+                }
+                if (close) {
+                    handle.file.closeQuietly();
+                }
+                return LuaValue.NIL_VALUE;
+            }
+        });
+    }
+
+    private static Varargs failure(String filename, IOException e) {
+        String message;
+        if (e instanceof NoSuchFileException) {
+            message = "No such file or directory";
+        } else if (e instanceof AccessDeniedException) {
+            message = "Permission denied";
+        } else if (e instanceof FileAlreadyExistsException) {
+            message = "File exists";
+        } else if (e instanceof FileSystemException fileSystemException && fileSystemException.getReason() != null) {
+            message = fileSystemException.getReason();
+        } else {
+            message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        String text = filename != null ? filename + ": " + message : message;
+        return Varargs.varargsOf(new LuaValue(), new LuaValue(text), new LuaValue(ERROR_NUMBERS.getOrDefault(message, 0)));
+    }
+
+    private static Handle checkHandle(Varargs args, String name) {
+        LuaValue value = args.arg1();
+        if (value.isUserdataValue() && value.getUserdataValue() instanceof Handle handle) {
+            return handle;
+        }
+        throw LuaFunctions.argumentError(1, name, "FILE* expected, got " + LuaFunctions.typeName(args, 1));
+    }
+
+    private static Handle checkFile(Varargs args, String name) {
+        Handle handle = checkHandle(args, name);
+        if (handle.file.isClosed()) {
+            throw new RuntimeException("attempt to use a closed file");
+        }
+        return handle;
+    }
+
+    private static LuaString checkString(Varargs args, int index, String name) {
+        LuaValue value = args.arg(index);
+        if (value.isStringValue()) {
+            return value.getLuaStringValue();
+        }
+        if (value.isNumber()) {
+            return LuaMetatable.numberToString(value);
+        }
+        throw LuaFunctions.argumentError(index, name, "string expected, got " + LuaFunctions.typeName(args, index));
+    }
+
+    // userdata of a file handle
+    static final class Handle extends LuaUserdata {
+        final LuaFile file;
+        final boolean standard;
+
+        Handle(LuaFile file, boolean standard) {
+            super(FILE_METATABLE);
+            this.file = file;
+            this.standard = standard;
+            if (!standard) {
+                CLEANER.register(this, file::closeQuietly);
+            }
+        }
+    }
+
+    private static Handle defaultFile(LuaTable defaults, String which) {
+        Handle handle = (Handle) defaults.rawget(which).getUserdataValue();
+        if (handle.file.isClosed()) {
+            throw new RuntimeException("default " + which + " file is closed");
+        }
+        return handle;
+    }
+
+    // io.input and io.output: sets the default given as a file or a file name, if any, and returns it
+    private static Varargs select(LuaTable defaults, Varargs args, String which, String mode) {
+        LuaValue value = args.arg1();
+        if (value.isStringValue() || value.isNumber()) {
+            defaults.rawset(which, openOrFail(checkString(args, 1, which).toString(), mode));
+        } else if (!value.isNil()) {
+            checkFile(args, which);
+            defaults.rawset(which, value);
+        }
+        return defaults.rawget(which);
+    }
+
+    // io functions that use the default files keep them in a state table, so that each forked state
+    // has defaults of its own
+    private static LuaValue withDefaults(LuaTable defaults, BiFunction<LuaTable, Varargs, Varargs> body) {
+        return new LuaValue(LuaFunction.stateful(defaults, body));
+    }
+}
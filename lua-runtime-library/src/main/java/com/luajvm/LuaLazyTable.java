@@ -0,0 +1,125 @@
+package com.luajvm;
+
+import java.util.function.Supplier;
+
+// Table whose entries are supplied on first use: fill() runs once, before anything reads or changes the
+// table, and the table behaves as an ordinary one from then on. Loading is synchronized, so a lazy table
+// shared between threads is as safe to read as an ordinary table that is no longer written.
+abstract class LuaLazyTable extends LuaTable {
+    private volatile boolean loaded = false;
+    // set while fill() runs, whose own rawsets come back through load()
+    private boolean loading = false;
+
+    abstract void fill();
+
+    // stand-in for a library table that is only built when a field of it is first used
+    static LuaTable library(Supplier<LuaTable> library) {
+        return new LuaLazyTable() {
+            @Override
+            void fill() {
+                LuaTable.Cursor cursor = library.get().cursor();
+                while (cursor.next()) {
+                    rawset(cursor.key(), cursor.value());
+                }
+            }
+        };
+    }
+
+    private void load() {
+        if (!loaded) {
+            loadOnce();
+        }
+    }
+
+    private synchronized void loadOnce() {
+        if (loaded || loading) {
+            return;
+        }
+        loading = true;
+        try {
+            fill();
+            loaded = true;
+        } finally {
+            // a fill that failed runs again on the next use, so the table is never seen half filled
+            loading = false;
+        }
+    }
+
+    @Override
+    public LuaTable getMetatable() {
+        load();
+        return super.getMetatable();
+    }
+
+    @Override
+    public LuaValue getMetamethod(LuaMetamethod event) {
+        load();
+        return super.getMetamethod(event);
+    }
+
+    @Override
+    boolean isWeak() {
+        load();
+        return super.isWeak();
+    }
+
+    @Override
+    int getVersion() {
+        load();
+        return super.getVersion();
+    }
+
+    @Override
+    public void freeze() {
+        load();
+        super.freeze();
+    }
+
+    @Override
+    void checkWritable() {
+        load();
+        super.checkWritable();
+    }
+
+    @Override
+    public LuaValue rawget(LuaValue key) {
+        load();
+        return super.rawget(key);
+    }
+
+    @Override
+    public LuaValue rawget(long key) {
+        load();
+        return super.rawget(key);
+    }
+
+    @Override
+    public Varargs next(LuaValue key) {
+        load();
+        return super.next(key);
+    }
+
+    @Override
+    boolean advance(Cursor cursor) {
+        load();
+        return super.advance(cursor);
+    }
+
+    @Override
+    boolean moveArray(long first, long last, LuaTable target, long to) {
+        load();
+        return super.moveArray(first, last, target, to);
+    }
+
+    @Override
+    public LuaString concat(LuaString separator, long first, long last) {
+        load();
+        return super.concat(separator, first, last);
+    }
+
+    @Override
+    public long length() {
+        load();
+        return super.length();
+    }
+}
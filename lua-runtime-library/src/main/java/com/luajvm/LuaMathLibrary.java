@@ -0,0 +1,350 @@
+package com.luajvm;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The math table. Functions keep integers integers where Lua 5.4 does (floor, ceil, abs, fmod,
+// max, min) and map the float ones straight onto java.lang.Math, which the JIT compiles to intrinsics.
+// random uses Lua's xoshiro256** generator, so a seeded sequence matches the reference implementation.
+// Each library() table has its own generator, shared by coroutines whatever thread they run on, and a
+// state forked from a template gets a newly seeded one.
+final public class LuaMathLibrary {
+    private static final double LN2 = Math.log(2);
+
+    static public Varargs floor(Varargs args) {
+        LuaValue value = args.arg1();
+        if (value.isIntegerValue()) {
+            return value;
+        }
+        return integerIfExact(Math.floor(checkNumber(args, 1, "floor")));
+    }
+
+    static public Varargs ceil(Varargs args) {
+        LuaValue value = args.arg1();
+        if (value.isIntegerValue()) {
+            return value;
+        }
+        return integerIfExact(Math.ceil(checkNumber(args, 1, "ceil")));
+    }
+
+    // the absolute value of mininteger is mininteger, as integer negation wraps around
+    static public Varargs abs(Varargs args) {
+        LuaValue value = args.arg1();
+        if (value.isIntegerValue()) {
+            long integer = value.getIntegerValue();
+            return integer < 0 ? new LuaValue(-integer) : value;
+        }
+        return new LuaValue(Math.abs(checkNumber(args, 1, "abs")));
+    }
+
+    // max(x, ...) and min(x, ...) return one of their arguments, so they do not allocate
+    static public Varargs max(Varargs args) {
+        return extreme(args, "max", true);
+    }
+
+    static public Varargs min(Varargs args) {
+        return extreme(args, "min", false);
+    }
+
+    static public Varargs sqrt(Varargs args) {
+        return new LuaValue(Math.sqrt(checkNumber(args, 1, "sqrt")));
+    }
+
+    static public Varargs sin(Varargs args) {
+        return new LuaValue(Math.sin(checkNumber(args, 1, "sin")));
+    }
+
+    static public Varargs cos(Varargs args) {
+        return new LuaValue(Math.cos(checkNumber(args, 1, "cos")));
+    }
+
+    static public Varargs tan(Varargs args) {
+        return new LuaValue(Math.tan(checkNumber(args, 1, "tan")));
+    }
+
+    static public Varargs asin(Varargs args) {
+        return new LuaValue(Math.asin(checkNumber(args, 1, "asin")));
+    }
+
+    static public Varargs acos(Varargs args) {
+        return new LuaValue(Math.acos(checkNumber(args, 1, "acos")));
+    }
+
+    // atan(y [, x])
+    static public Varargs atan(Varargs args) {
+        double y = checkNumber(args, 1, "atan");
+        double x = args.arg(2).isNil() ? 1 : checkNumber(args, 2, "atan");
+        return new LuaValue(Math.atan2(y, x));
+    }
+
+    static public Varargs deg(Varargs args) {
+        return new LuaValue(Math.toDegrees(checkNumber(args, 1, "deg")));
+    }
+
+    static public Varargs rad(Varargs args) {
+        return new LuaValue(Math.toRadians(checkNumber(args, 1, "rad")));
+    }
+
+    static public Varargs exp(Varargs args) {
+        return new LuaValue(Math.exp(checkNumber(args, 1, "exp")));
+    }
+
+    // log(x [, base])
+    static public Varargs log(Varargs args) {
+        double x = checkNumber(args, 1, "log");
+        if (args.arg(2).isNil()) {
+            return new LuaValue(Math.log(x));
+        }
+        double base = checkNumber(args, 2, "log");
+        if (base == 2) {
+            return new LuaValue(log2(x));
+        }
+        if (base == 10) {
+            return new LuaValue(Math.log10(x));
+        }
+        return new LuaValue(Math.log(x) / Math.log(base));
+    }
+
+    // fmod(x, y) rounds the quotient towards zero, unlike the % operator
+    static public Varargs fmod(Varargs args) {
+        LuaValue a = args.arg1();
+        LuaValue b = args.arg(2);
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            long divisor = b.getIntegerValue();
+            if (divisor == 0) {
+                throw LuaFunctions.argumentError(2, "fmod", "zero");
+            }
+            return new LuaValue(a.getIntegerValue() % divisor);
+        }
+        return new LuaValue(checkNumber(args, 1, "fmod") % checkNumber(args, 2, "fmod"));
+    }
+
+    // modf(x): integral part as a float and fractional part
+    static public Varargs modf(Varargs args) {
+        LuaValue value = args.arg1();
+        if (value.isIntegerValue()) {
+            return Varargs.varargsOf(value, new LuaValue(0.0));
+        }
+        double number = checkNumber(args, 1, "modf");
+        double integral = number < 0 ? Math.ceil(number) : Math.floor(number);
+        return Varargs.varargsOf(new LuaValue(integral), new LuaValue(number == integral ? 0.0 : number - integral));
+    }
+
+    // tointeger(x): x converted to an integer if it has an exact integer value, otherwise nil
+    static public Varargs tointeger(Varargs args) {
+        checkAny(args, "tointeger");
+        LuaValue number = LuaFunctions.toNumberValue(args.arg1());
+        if (number.isIntegerValue()) {
+            return number;
+        }
+        if (number.isRealValue()) {
+            double real = number.getRealValue();
+            long integer = (long) real;
+            if (integer == real && real != 0x1p63) {
+                return new LuaValue(integer);
+            }
+        }
+        return LuaValue.NIL_VALUE;
+    }
+
+    // type(x): "integer", "float" or nil if x is not a number
+    static public Varargs type(Varargs args) {
+        checkAny(args, "type");
+        LuaValue value = args.arg1();
+        if (value.isIntegerValue()) {
+            return new LuaValue("integer");
+        }
+        return value.isRealValue() ? new LuaValue("float") : LuaValue.NIL_VALUE;
+    }
+
+    // ult(m, n): m < n as unsigned integers
+    static public Varargs ult(Varargs args) {
+        long m = LuaFunctions.checkInteger(args, 1, "ult");
+        long n = LuaFunctions.checkInteger(args, 2, "ult");
+        return new LuaValue(Long.compareUnsigned(m, n) < 0);
+    }
+
+    // random(): float in [0, 1); random(m): integer in [1, m]; random(m, n): integer in [m, n];
+    // random(0): any integer
+    private static Varargs random(LuaTable random, Varargs args) {
+        Xoshiro state = (Xoshiro) random.rawget("generator").getUserdataValue();
+        long low;
+        long high;
+        switch (args.narg()) {
+            case 0 -> {
+                return new LuaValue((state.next() >>> 11) * 0x1p-53);
+            }
+            case 1 -> {
+                low = 1;
+                high = LuaFunctions.checkInteger(args, 1, "random");
+                if (high == 0) {
+                    return new LuaValue(state.next());
+                }
+            }
+            case 2 -> {
+                low = LuaFunctions.checkInteger(args, 1, "random");
+                high = LuaFunctions.checkInteger(args, 2, "random");
+            }
+            default -> throw new RuntimeException("wrong number of arguments");
+        }
+        if (low > high) {
+            throw LuaFunctions.argumentError(1, "random", "interval is empty");
+        }
+        return new LuaValue(state.next(high - low) + low);
+    }
+
+    // randomseed([x [, y]]) seeds the generator and returns the two seed parts; without arguments the
+    // seed is random
+    private static Varargs randomseed(LuaTable random, Varargs args) {
+        long first;
+        long second;
+        if (args.narg() == 0) {
+            first = ThreadLocalRandom.current().nextLong();
+            second = System.nanoTime();
+        } else {
+            first = LuaFunctions.checkInteger(args, 1, "randomseed");
+            second = args.arg(2).isNil() ? 0 : LuaFunctions.checkInteger(args, 2, "randomseed");
+        }
+        ((Xoshiro) random.rawget("generator").getUserdataValue()).seed(first, second);
+        return Varargs.varargsOf(new LuaValue(first), new LuaValue(second));
+    }
+
+    // The math table, with the constants huge, pi, maxinteger and mininteger
+    static public LuaTable library() {
+        LuaTable random = new LuaTable(0, 1);
+        random.rawset("generator", new LuaValue(Xoshiro.seeded()));
+        return new LuaTable(Map.ofEntries(
+                Map.entry(new LuaValue("floor"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::floor))),
+                Map.entry(new LuaValue("ceil"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::ceil))),
+                Map.entry(new LuaValue("abs"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::abs))),
+                Map.entry(new LuaValue("max"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::max))),
+                Map.entry(new LuaValue("min"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::min))),
+                Map.entry(new LuaValue("sqrt"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::sqrt))),
+                Map.entry(new LuaValue("sin"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::sin))),
+                Map.entry(new LuaValue("cos"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::cos))),
+                Map.entry(new LuaValue("tan"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::tan))),
+                Map.entry(new LuaValue("asin"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::asin))),
+                Map.entry(new LuaValue("acos"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::acos))),
+                Map.entry(new LuaValue("atan"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::atan))),
+                Map.entry(new LuaValue("deg"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::deg))),
+                Map.entry(new LuaValue("rad"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::rad))),
+                Map.entry(new LuaValue("exp"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::exp))),
+                Map.entry(new LuaValue("log"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::log))),
+                Map.entry(new LuaValue("fmod"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::fmod))),
+                Map.entry(new LuaValue("modf"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::modf))),
+                Map.entry(new LuaValue("tointeger"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::tointeger))),
+                Map.entry(new LuaValue("type"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::type))),
+                Map.entry(new LuaValue("ult"), new LuaValue(LuaFunction.variadic(LuaMathLibrary::ult))),
+                Map.entry(new LuaValue("random"), new LuaValue(LuaFunction.stateful(random, LuaMathLibrary::random))),
+                Map.entry(new LuaValue("randomseed"), new LuaValue(LuaFunction.stateful(random, LuaMathLibrary::randomseed))),
+                Map.entry(new LuaValue("huge"), new LuaValue(Double.POSITIVE_INFINITY)),
+                Map.entry(new LuaValue("pi"), new LuaValue(Math.PI)),
+                Map.entry(new LuaValue("maxinteger"), new LuaValue(Long.MAX_VALUE)),
+                Map.entry(new LuaValue("mininteger"), new LuaValue(Long.MIN_VALUE))
+        ));
+    }
+
+    private static Varargs extreme(Varargs args, String name, boolean max) {
+        int count = args.narg();
+        checkNumber(args, 1, name);
+        LuaValue result = args.arg1();
+        for (int i = 2; i <= count; i++) {
+            checkNumber(args, i, name);
+            LuaValue value = args.arg(i);
+            if (max ? LuaOps.lessThan(result, value) : LuaOps.lessThan(value, result)) {
+                result = value;
+            }
+        }
+        return result;
+    }
+
+    // the integer value of a floored or ceiled float, or the float itself if it is out of range
+    private static LuaValue integerIfExact(double value) {
+        if (value >= -0x1p63 && value < 0x1p63) {
+            return new LuaValue((long) value);
+        }
+        return new LuaValue(value);
+    }
+
+    // exact for powers of two, which log(x) / log(2) is not
+    private static double log2(double x) {
+        if (!(x >= Double.MIN_NORMAL) || Double.isInfinite(x)) {
+            return Math.log(x) / LN2;
+        }
+        int exponent = Math.getExponent(x);
+        return exponent + Math.log(Math.scalb(x, -exponent)) / LN2;
+    }
+
+    private static double checkNumber(Varargs args, int index, String name) {
+        LuaValue number = LuaFunctions.toNumberValue(args.arg(index));
+        if (number.isNil()) {
+            throw LuaFunctions.argumentError(index, name, "number expected, got " + LuaFunctions.typeName(args, index));
+        }
+        return number.getRealValue();
+    }
+
+    private static void checkAny(Varargs args, String name) {
+        if (args.narg() == 0) {
+            throw LuaFunctions.argumentError(1, name, "value expected");
+        }
+    }
+
+    // xoshiro256** as used by Lua 5.4's math.random. It is kept in the state table of random and
+    // randomseed as a userdata, and synchronized since coroutines of a state may run on other threads.
+    private static final class Xoshiro extends LuaUserdata {
+        private long s0;
+        private long s1;
+        private long s2;
+        private long s3;
+
+        Xoshiro() {
+            super(null);
+        }
+
+        static Xoshiro seeded() {
+            Xoshiro state = new Xoshiro();
+            state.seed(ThreadLocalRandom.current().nextLong(), System.nanoTime());
+            return state;
+        }
+
+        @Override
+        LuaUserdata forkCopy() {
+            return seeded();
+        }
+
+        synchronized void seed(long first, long second) {
+            s0 = first;
+            s1 = 0xff;
+            s2 = second;
+            s3 = 0;
+            for (int i = 0; i < 16; i++) {
+                next();
+            }
+        }
+
+        synchronized long next() {
+            long result = Long.rotateLeft(s1 * 5, 7) * 9;
+            long t = s1 << 17;
+            s2 ^= s0;
+            s3 ^= s1;
+            s1 ^= s2;
+            s0 ^= s3;
+            s2 ^= t;
+            s3 = Long.rotateLeft(s3, 45);
+            return result;
+        }
+
+        // random in [0, n] as unsigned: masks to the smallest 2^b - 1 not below n and retries when above n
+        synchronized long next(long n) {
+            long random = next();
+            if ((n & (n + 1)) == 0) {
+                return random & n;
+            }
+            long limit = -1L >>> Long.numberOfLeadingZeros(n);
+            while (Long.compareUnsigned(random &= limit, n) > 0) {
+                random = next();
+            }
+            return random;
+        }
+    }
+}
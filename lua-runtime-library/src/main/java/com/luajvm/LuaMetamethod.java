@@ -0,0 +1,40 @@
+package com.luajvm;
+
+// Events a metatable can handle; the ordinal is the slot index in LuaTable's metamethod cache.
+public enum LuaMetamethod {
+    add("__add"),
+    sub("__sub"),
+    mul("__mul"),
+    div("__div"),
+    mod("__mod"),
+    pow("__pow"),
+    unm("__unm"),
+    idiv("__idiv"),
+    concat("__concat"),
+    len("__len"),
+    eq("__eq"),
+    lt("__lt"),
+    le("__le"),
+    index("__index"),
+    newindex("__newindex"),
+    call("__call"),
+    mode("__mode"),
+    tostring("__tostring"),
+    pairs("__pairs");
+
+    static final LuaMetamethod[] VALUES = values();
+
+    final String key;
+    final LuaValue keyValue;
+    final int mask;
+
+    LuaMetamethod(String key) {
+        this.key = key;
+        this.keyValue = new LuaValue(key);
+        this.mask = 1 << ordinal();
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,314 @@
+package com.luajvm;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Map;
+
+public class LuaMetatable {
+    public static final String ADD = "add";
+    public static final String SUB = "sub";
+    public static final String MUL = "mul";
+    public static final String DIV = "div";
+    public static final String MOD = "mod";
+    public static final String POW = "pow";
+    public static final String UNM = "unm";
+    public static final String IDIV = "idiv";
+    public static final String CONCAT = "concat";
+    public static final String LEN = "len";
+    public static final String EQ = "eq";
+    public static final String LT = "lt";
+    public static final String LE = "le";
+    public static final String INDEX = "index";
+    public static final String NEW_INDEX = "newindex";
+    public static final String CALL = "call";
+
+    public static final LuaValue ADD_VAlUE = LuaMetamethod.add.keyValue;
+    public static final LuaValue SUB_VAlUE = LuaMetamethod.sub.keyValue;
+    public static final LuaValue MUL_VAlUE = LuaMetamethod.mul.keyValue;
+    public static final LuaValue DIV_VAlUE = LuaMetamethod.div.keyValue;
+    public static final LuaValue MOD_VAlUE = LuaMetamethod.mod.keyValue;
+    public static final LuaValue POW_VAlUE = LuaMetamethod.pow.keyValue;
+    public static final LuaValue UNM_VAlUE = LuaMetamethod.unm.keyValue;
+    public static final LuaValue IDIV_VAlUE = LuaMetamethod.idiv.keyValue;
+    public static final LuaValue CONCAT_VALUE = LuaMetamethod.concat.keyValue;
+    public static final LuaValue LEN_VAlUE = LuaMetamethod.len.keyValue;
+    public static final LuaValue EQ_VAlUE = LuaMetamethod.eq.keyValue;
+    public static final LuaValue LT_VAlUE = LuaMetamethod.lt.keyValue;
+    public static final LuaValue LE_VAlUE = LuaMetamethod.le.keyValue;
+    public static final LuaValue INDEX_VALUE = LuaMetamethod.index.keyValue;
+    public static final LuaValue NEW_INDEX_VALUE = LuaMetamethod.newindex.keyValue;
+    public static final LuaValue CALL_VAlUE = LuaMetamethod.call.keyValue;
+
+    static RuntimeException getException(String operationName, LuaValue arg) {
+        return new RuntimeException("attempt to " + operationName + " a " + arg.getTypeString() + " value");
+    }
+
+    static RuntimeException getException(String operationName, LuaValue arg1, LuaValue arg2) {
+        return new RuntimeException("attempt to " + operationName + " a " + arg1.getTypeString() + " with a " + arg2.getTypeString());
+    }
+
+    private static LuaValue convertArgumentToNumber(LuaValue arg, LuaValue arg1, LuaValue arg2, String operationName) {
+        if (arg.isNumber()) {
+            return arg;
+        }
+        LuaValue value = LuaFunctions.toNumberValue(arg);
+        if (value.isNil()) {
+            throw getException(operationName, arg1, arg2);
+        }
+        return value;
+    }
+
+    // tostring of a number: floats as with C's "%.14g", plus ".0" when that looks like an integer
+    static LuaString numberToString(LuaValue value) {
+        if (value.isIntegerValue()) {
+            return LuaString.valueOf(String.valueOf(value.getIntegerValue()));
+        }
+        return LuaString.valueOf(realToString(value.getRealValue()));
+    }
+
+    private static String realToString(double value) {
+        boolean negative = Double.doubleToRawLongBits(value) < 0;
+        if (Double.isNaN(value)) {
+            return negative ? "-nan" : "nan";
+        }
+        if (Double.isInfinite(value)) {
+            return negative ? "-inf" : "inf";
+        }
+        if (value == 0) {
+            return negative ? "-0.0" : "0.0";
+        }
+        // for a normal double, the shortest decimal that reads back as value is its rounding to 14 digits
+        // when it is no longer
+        BigDecimal decimal = BigDecimal.valueOf(value);
+        if (decimal.precision() > 14 || Math.abs(value) < Double.MIN_NORMAL) {
+            decimal = new BigDecimal(value).round(new MathContext(14, RoundingMode.HALF_EVEN));
+        }
+        decimal = decimal.stripTrailingZeros();
+        int exponent = decimal.precision() - 1 - decimal.scale();
+        if (exponent >= -4 && exponent < 14) {
+            String text = decimal.toPlainString();
+            return text.indexOf('.') < 0 ? text + ".0" : text;
+        }
+        String digits = decimal.unscaledValue().abs().toString();
+        StringBuilder text = new StringBuilder(24).append(negative ? "-" : "").append(digits.charAt(0));
+        if (digits.length() > 1) {
+            text.append('.').append(digits, 1, digits.length());
+        }
+        text.append(exponent < 0 ? "e-" : "e+");
+        if (Math.abs(exponent) < 10) {
+            text.append('0');
+        }
+        return text.append(Math.abs(exponent)).toString();
+    }
+
+    private static LuaValue addFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        LuaValue val1 = convertArgumentToNumber(arg1, arg1, arg2, ADD);
+        LuaValue val2 = convertArgumentToNumber(arg2, arg1, arg2, ADD);
+        return LuaOps.add(val1, val2);
+    }
+
+    private static LuaValue subFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        LuaValue val1 = convertArgumentToNumber(arg1, arg1, arg2, SUB);
+        LuaValue val2 = convertArgumentToNumber(arg2, arg1, arg2, SUB);
+        return LuaOps.sub(val1, val2);
+    }
+
+    private static LuaValue mulFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        LuaValue val1 = convertArgumentToNumber(arg1, arg1, arg2, MUL);
+        LuaValue val2 = convertArgumentToNumber(arg2, arg1, arg2, MUL);
+        return LuaOps.mul(val1, val2);
+    }
+
+    private static LuaValue divFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        LuaValue val1 = convertArgumentToNumber(arg1, arg1, arg2, DIV);
+        LuaValue val2 = convertArgumentToNumber(arg2, arg1, arg2, DIV);
+        return LuaOps.div(val1, val2);
+    }
+
+    private static LuaValue modFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        LuaValue val1 = convertArgumentToNumber(arg1, arg1, arg2, MOD);
+        LuaValue val2 = convertArgumentToNumber(arg2, arg1, arg2, MOD);
+        return LuaOps.mod(val1, val2);
+    }
+
+    private static LuaValue powFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        LuaValue val1 = convertArgumentToNumber(arg1, arg1, arg2, POW);
+        LuaValue val2 = convertArgumentToNumber(arg2, arg1, arg2, POW);
+        return LuaOps.pow(val1, val2);
+    }
+
+    private static LuaValue unmFunctionForNumberAndString(LuaValue arg) {
+        LuaValue val = convertArgumentToNumber(arg, arg, arg, UNM);
+        return LuaOps.unm(val);
+    }
+
+    private static LuaValue idivFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        LuaValue val1 = convertArgumentToNumber(arg1, arg1, arg2, IDIV);
+        LuaValue val2 = convertArgumentToNumber(arg2, arg1, arg2, IDIV);
+        return LuaOps.idiv(val1, val2);
+    }
+
+    private static LuaValue concatFunctionForNumberAndString(LuaValue arg1, LuaValue arg2) {
+        if (!arg1.isStringValue() && !arg1.isNumber()) {
+            throw getException("concatenate", arg1);
+        }
+        if (!arg2.isStringValue() && !arg2.isNumber()) {
+            throw getException("concatenate", arg2);
+        }
+        return LuaOps.concat(arg1, arg2);
+    }
+
+    private static LuaValue lenFunctionForStringAndTable(LuaValue arg) {
+        return switch (arg.getType()) {
+            case string -> new LuaValue(LuaRope.lengthOf(arg.getStringPiece()));
+            case table -> new LuaValue(arg.getTableValue().length());
+            default -> throw getException("get length of", arg);
+        };
+    }
+
+    private static LuaValue eqFunction(LuaValue arg1, LuaValue arg2) {
+        LuaValue.Type type1 = arg1.getType();
+        LuaValue.Type type2 = arg2.getType();
+        if (type1 != type2) {
+            return new LuaValue(false);
+        }
+        boolean result = switch (type1) {
+            case nil -> arg1.isNil() == arg2.isNil();
+            case bool -> arg1.getBoolValue() == arg2.getBoolValue();
+            case integer, real -> arg1.getRealValue() == arg2.getRealValue();
+            case string -> arg1.getLuaStringValue().equals(arg2.getLuaStringValue());
+            case function -> arg1.getFunctionValue() == arg2.getFunctionValue(); // compare pointers
+            case table -> arg1.getTableValue() == arg2.getTableValue(); // compare pointers
+            case thread -> arg1.getThreadValue() == arg2.getThreadValue(); // compare pointers
+            case userdata -> arg1.getUserdataValue() == arg2.getUserdataValue(); // compare pointers
+        };
+        return new LuaValue(result);
+    }
+
+    private static LuaValue ltFunctionForStringAndTable(LuaValue arg1, LuaValue arg2) {
+        boolean result;
+        if (arg1.isNumber() && arg2.isNumber()) {
+            result = arg1.getRealValue() < arg2.getRealValue();
+        } else if (arg1.isStringValue() && arg2.isStringValue()) {
+            result = arg1.getLuaStringValue().compareTo(arg2.getLuaStringValue()) < 0;
+        } else {
+            throw getException("compare", arg1, arg2);
+        }
+        return new LuaValue(result);
+    }
+
+    public static final LuaValue ADD_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::addFunctionForNumberAndString));
+
+    public static final LuaValue SUB_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::subFunctionForNumberAndString));
+
+    public static final LuaValue MUL_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::mulFunctionForNumberAndString));
+
+    public static final LuaValue DIV_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::divFunctionForNumberAndString));
+
+    public static final LuaValue MOD_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::modFunctionForNumberAndString));
+
+    public static final LuaValue POW_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::powFunctionForNumberAndString));
+
+    public static final LuaValue UNM_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.unary(LuaMetatable::unmFunctionForNumberAndString));
+
+    public static final LuaValue IDIV_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::idivFunctionForNumberAndString));
+
+    public static final LuaValue CONCAT_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::concatFunctionForNumberAndString));
+
+    public static final LuaValue LEN_FUNC_FOR_STRING_AND_TABLE_VALUE = new LuaValue(LuaFunction.unary(LuaMetatable::lenFunctionForStringAndTable));
+
+    public static final LuaValue EQ_FUNC_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::eqFunction));
+
+    public static final LuaValue LT_FUNC_FOR_NUMBER_AND_STRING_VALUE = new LuaValue(LuaFunction.binary(LuaMetatable::ltFunctionForStringAndTable));
+
+    public static final LuaValue NilMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE)
+    ));
+
+    public static final LuaValue BoolMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE)
+    ));
+
+    public static final LuaValue NumberMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(ADD_VAlUE, ADD_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(SUB_VAlUE, SUB_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(MUL_VAlUE, MUL_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(DIV_VAlUE, DIV_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(MOD_VAlUE, MOD_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(POW_VAlUE, POW_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(UNM_VAlUE, UNM_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(IDIV_VAlUE, IDIV_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(CONCAT_VALUE, CONCAT_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE),
+            Map.entry(LT_VAlUE, LT_FUNC_FOR_NUMBER_AND_STRING_VALUE)
+    ));
+
+    // Operations reach this metatable from the string value alone, without knowing its state, so its
+    // __index is one string library shared by every state rather than the string global of any of them:
+    // s:upper() always finds the built-in function, and fields added to a state's string table are only
+    // visible through that table, not as methods of strings.
+    public static final LuaValue StringMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(ADD_VAlUE, ADD_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(SUB_VAlUE, SUB_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(MUL_VAlUE, MUL_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(DIV_VAlUE, DIV_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(MOD_VAlUE, MOD_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(POW_VAlUE, POW_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(UNM_VAlUE, UNM_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(IDIV_VAlUE, IDIV_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(CONCAT_VALUE, CONCAT_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(LEN_VAlUE, LEN_FUNC_FOR_STRING_AND_TABLE_VALUE),
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE),
+            Map.entry(LT_VAlUE, LT_FUNC_FOR_NUMBER_AND_STRING_VALUE),
+            Map.entry(INDEX_VALUE, new LuaValue(LuaLazyTable.library(LuaStringLibrary::library)))
+    ));
+
+    public static final LuaValue FunctionMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE)
+    ));
+
+    public static final LuaValue ThreadMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE)
+    ));
+
+    // for userdata without a metatable of its own
+    public static final LuaValue UserdataMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE)
+    ));
+
+    public static final LuaValue TableMetatable = new LuaValue(Map.ofEntries(
+            Map.entry(LEN_VAlUE, LEN_FUNC_FOR_STRING_AND_TABLE_VALUE),
+            Map.entry(EQ_VAlUE, EQ_FUNC_VALUE)
+    ));
+
+    // Shared metatables indexed by LuaValue.Type ordinal.
+    private static final LuaTable[] TYPE_METATABLES = {
+            NilMetatable.getTableValue(),
+            BoolMetatable.getTableValue(),
+            NumberMetatable.getTableValue(),
+            NumberMetatable.getTableValue(),
+            StringMetatable.getTableValue(),
+            FunctionMetatable.getTableValue(),
+            TableMetatable.getTableValue(),
+            ThreadMetatable.getTableValue(),
+            UserdataMetatable.getTableValue(),
+    };
+
+    // Metatable consulted for a value: a table's or userdata's own metatable, otherwise the shared one of its type.
+    static LuaTable metatableOf(LuaValue value) {
+        if (value.isTableValue() || value.isUserdataValue()) {
+            LuaTable metatable = value.isTableValue()
+                    ? value.getTableValue().getMetatable()
+                    : value.getUserdataValue().getMetatable();
+            if (metatable != null) {
+                return metatable;
+            }
+        }
+        return TYPE_METATABLES[value.getType().ordinal()];
+    }
+
+    static LuaValue getMetamethod(LuaValue value, LuaMetamethod event) {
+        return metatableOf(value).getMetamethod(event);
+    }
+}
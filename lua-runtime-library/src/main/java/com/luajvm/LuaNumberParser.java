@@ -0,0 +1,274 @@
+package com.luajvm;
+
+import java.nio.charset.StandardCharsets;
+
+// String to number conversion with the rules of the Lua reference implementation:
+// decimal and hexadecimal integers and floats, surrounding whitespace, decimal integers that
+// overflow become floats and hexadecimal integers wrap around. Digits are read in place;
+// only decimal floats that cannot be converted exactly fall back to Double.parseDouble.
+// Bounds are absolute indices into the byte array.
+final public class LuaNumberParser {
+    private static final long LIMIT_DIV_10 = Long.MAX_VALUE / 10;
+    private static final int LIMIT_LAST_DIGIT = (int) (Long.MAX_VALUE % 10);
+    private static final int MAX_DECIMAL_DIGITS = 18;
+    private static final int MAX_HEX_DIGITS = 15;
+    private static final int MAX_EXPONENT = 100_000;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    private LuaNumberParser() {
+    }
+
+    static public boolean parse(LuaString s, LuaValue result) {
+        return parse(s.bytes, s.offset, s.offset + s.length, result);
+    }
+
+    static public boolean parse(LuaString s, int base, LuaValue result) {
+        return parse(s.bytes, s.offset, s.offset + s.length, base, result);
+    }
+
+    static public boolean parse(byte[] s, int from, int to, LuaValue result) {
+        int start = skipSpaces(s, from, to);
+        int end = trimSpaces(s, start, to);
+        if (start == end) {
+            return false;
+        }
+        int i = start;
+        boolean negative = false;
+        byte sign = s[i];
+        if (sign == '-') {
+            negative = true;
+            i++;
+        } else if (sign == '+') {
+            i++;
+        }
+        if (i + 1 < end && s[i] == '0' && (s[i + 1] | 0x20) == 'x') {
+            return parseHex(s, i + 2, end, negative, result);
+        }
+        return parseDecimal(s, start, i, end, negative, result);
+    }
+
+    // tonumber(s, base): an optionally signed integer written in the given base, wrapping around on overflow.
+    static public boolean parse(byte[] s, int from, int to, int base, LuaValue result) {
+        int i = skipSpaces(s, from, to);
+        int end = trimSpaces(s, i, to);
+        boolean negative = false;
+        if (i < end && s[i] == '-') {
+            negative = true;
+            i++;
+        } else if (i < end && s[i] == '+') {
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = digitValue(s[i]);
+            if (digit >= base) {
+                return false;
+            }
+            value = value * base + digit;
+        }
+        result.setValue(negative ? -value : value);
+        return true;
+    }
+
+    private static boolean parseDecimal(byte[] s, int start, int i, int end, boolean negative, LuaValue result) {
+        long integer = 0;
+        boolean overflow = false;
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean isFloat = false;
+        byte c;
+        for (; i < end && isDigit(c = s[i]); i++) {
+            int digit = c - '0';
+            anyDigit = true;
+            if (!overflow) {
+                if (integer > LIMIT_DIV_10 || (integer == LIMIT_DIV_10 && digit > LIMIT_LAST_DIGIT + (negative ? 1 : 0))) {
+                    overflow = true;
+                } else {
+                    integer = integer * 10 + digit;
+                }
+            }
+            if (significant < MAX_DECIMAL_DIGITS) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    significant++;
+                }
+            } else {
+                exponent++;
+            }
+        }
+        if (i < end && s[i] == '.') {
+            isFloat = true;
+            for (i++; i < end && isDigit(c = s[i]); i++) {
+                anyDigit = true;
+                if (significant < MAX_DECIMAL_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                    exponent--;
+                }
+            }
+        }
+        if (!anyDigit) {
+            return false;
+        }
+        if (i < end && (s[i] | 0x20) == 'e') {
+            isFloat = true;
+            long parsed = parseExponent(s, i + 1, end);
+            if (parsed < 0) {
+                return false;
+            }
+            i = (int) (parsed >>> 32);
+            exponent += (int) parsed;
+        }
+        if (i != end) {
+            return false;
+        }
+        if (!isFloat && !overflow) {
+            result.setValue(negative ? -integer : integer);
+            return true;
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            result.setValue(Double.parseDouble(new String(s, start, end - start, StandardCharsets.ISO_8859_1)));
+            return true;
+        }
+        result.setValue(negative ? -value : value);
+        return true;
+    }
+
+    private static boolean parseHex(byte[] s, int i, int end, boolean negative, LuaValue result) {
+        long integer = 0;
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean isFloat = false;
+        int digit;
+        for (; i < end && (digit = hexDigitValue(s[i])) >= 0; i++) {
+            anyDigit = true;
+            integer = integer * 16 + digit;
+            if (significant < MAX_HEX_DIGITS) {
+                mantissa = mantissa * 16 + digit;
+                if (mantissa != 0) {
+                    significant++;
+                }
+            } else {
+                exponent += 4;
+            }
+        }
+        if (i < end && s[i] == '.') {
+            isFloat = true;
+            for (i++; i < end && (digit = hexDigitValue(s[i])) >= 0; i++) {
+                anyDigit = true;
+                if (significant < MAX_HEX_DIGITS) {
+                    mantissa = mantissa * 16 + digit;
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                    exponent -= 4;
+                }
+            }
+        }
+        if (!anyDigit) {
+            return false;
+        }
+        if (i < end && (s[i] | 0x20) == 'p') {
+            isFloat = true;
+            long parsed = parseExponent(s, i + 1, end);
+            if (parsed < 0) {
+                return false;
+            }
+            i = (int) (parsed >>> 32);
+            exponent += (int) parsed;
+        }
+        if (i != end) {
+            return false;
+        }
+        if (!isFloat) {
+            result.setValue(negative ? -integer : integer);
+            return true;
+        }
+        double value = Math.scalb((double) mantissa, exponent);
+        result.setValue(negative ? -value : value);
+        return true;
+    }
+
+    // Returns the end index in the high half and the signed exponent in the low half, or -1.
+    private static long parseExponent(byte[] s, int i, int end) {
+        boolean negative = false;
+        if (i < end && (s[i] == '-' || s[i] == '+')) {
+            negative = s[i] == '-';
+            i++;
+        }
+        if (i == end || !isDigit(s[i])) {
+            return -1;
+        }
+        int value = 0;
+        byte c;
+        for (; i < end && isDigit(c = s[i]); i++) {
+            if (value < MAX_EXPONENT) {
+                value = value * 10 + (c - '0');
+            }
+        }
+        int exponent = negative ? -value : value;
+        return ((long) i << 32) | (exponent & 0xFFFFFFFFL);
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int hexDigitValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        int lower = c | 0x20;
+        if (lower >= 'a' && lower <= 'f') {
+            return lower - 'a' + 10;
+        }
+        return -1;
+    }
+
+    private static int digitValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        int lower = c | 0x20;
+        if (lower >= 'a' && lower <= 'z') {
+            return lower - 'a' + 10;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    private static int skipSpaces(byte[] s, int from, int to) {
+        while (from < to && isSpace(s[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimSpaces(byte[] s, int from, int to) {
+        while (to > from && isSpace(s[to - 1])) {
+            to--;
+        }
+        return to;
+    }
+}
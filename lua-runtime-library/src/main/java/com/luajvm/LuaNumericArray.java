@@ -0,0 +1,155 @@
+package com.luajvm;
+
+import java.util.Arrays;
+
+// Array part of a table whose values t[1..size] are all integers or all floats, kept unboxed in a
+// long[] or double[]: 8 bytes an element instead of a LuaValue cell each. There are no holes; storing
+// nil anywhere but at the end, or a value of another type, is left to the caller, which then goes
+// back to cells.
+final class LuaNumericArray {
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 14;
+
+    private long[] integers;
+    private double[] reals;
+    private int size;
+
+    private LuaNumericArray(long[] integers, double[] reals, int size) {
+        this.integers = integers;
+        this.reals = reals;
+        this.size = size;
+    }
+
+    // The first size cells as a numeric array, or null unless they are all integers or all floats.
+    static LuaNumericArray of(LuaValue[] cells, int size, int capacity) {
+        if (size == 0 || cells[0] == null) {
+            return null;
+        }
+        if (cells[0].isIntegerValue()) {
+            long[] integers = new long[capacity];
+            for (int i = 0; i < size; i++) {
+                LuaValue cell = cells[i];
+                if (cell == null || !cell.isIntegerValue()) {
+                    return null;
+                }
+                integers[i] = cell.getIntegerValue();
+            }
+            return new LuaNumericArray(integers, null, size);
+        }
+        if (cells[0].isRealValue()) {
+            double[] reals = new double[capacity];
+            for (int i = 0; i < size; i++) {
+                LuaValue cell = cells[i];
+                if (cell == null || !cell.isRealValue()) {
+                    return null;
+                }
+                reals[i] = cell.getRealValue();
+            }
+            return new LuaNumericArray(null, reals, size);
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean accepts(LuaValue value) {
+        return integers != null ? value.isIntegerValue() : value.isRealValue();
+    }
+
+    // index is zero-based and below size
+    LuaValue get(int index) {
+        return integers != null ? new LuaValue(integers[index]) : new LuaValue(reals[index]);
+    }
+
+    void get(int index, LuaValue into) {
+        if (integers != null) {
+            into.setValue(integers[index]);
+        } else {
+            into.setValue(reals[index]);
+        }
+    }
+
+    // value must be accepted
+    void set(int index, LuaValue value) {
+        if (integers != null) {
+            integers[index] = value.getIntegerValue();
+        } else {
+            reals[index] = value.getRealValue();
+        }
+    }
+
+    void add(LuaValue value) {
+        grow();
+        set(size++, value);
+    }
+
+    // t[index + 2] = t[index + 1], ..., one more value at the end; t[index + 1] keeps its value until set
+    void insert(int index) {
+        grow();
+        if (integers != null) {
+            System.arraycopy(integers, index, integers, index + 1, size - index);
+        } else {
+            System.arraycopy(reals, index, reals, index + 1, size - index);
+        }
+        size++;
+    }
+
+    private void grow() {
+        int capacity = integers != null ? integers.length : reals.length;
+        if (size == capacity) {
+            int grown = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(4, capacity * 2L));
+            if (integers != null) {
+                integers = Arrays.copyOf(integers, grown);
+            } else {
+                reals = Arrays.copyOf(reals, grown);
+            }
+        }
+    }
+
+    void removeLast() {
+        size--;
+    }
+
+    // t[index + 1] = t[index + 2], ..., the last value dropped
+    void remove(int index) {
+        if (integers != null) {
+            System.arraycopy(integers, index + 1, integers, index, size - index - 1);
+        } else {
+            System.arraycopy(reals, index + 1, reals, index, size - index - 1);
+        }
+        size--;
+    }
+
+    // Sorts in place in Lua's < order; false without changing anything if a float is NaN.
+    boolean sort() {
+        boolean parallel = size >= PARALLEL_SORT_THRESHOLD;
+        if (integers != null) {
+            if (parallel) {
+                Arrays.parallelSort(integers, 0, size);
+            } else {
+                Arrays.sort(integers, 0, size);
+            }
+            return true;
+        }
+        for (int i = 0; i < size; i++) {
+            if (Double.isNaN(reals[i])) {
+                return false;
+            }
+        }
+        if (parallel) {
+            Arrays.parallelSort(reals, 0, size);
+        } else {
+            Arrays.sort(reals, 0, size);
+        }
+        return true;
+    }
+
+    LuaValue[] toCells() {
+        LuaValue[] cells = new LuaValue[size];
+        for (int i = 0; i < size; i++) {
+            cells[i] = get(i);
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,465 @@
+package com.luajvm;
+
+// Operators for compiled code. Numbers are handled directly on long/double values;
+// strings, tables and user metamethods go through the metatable of the operands.
+final public class LuaOps {
+    static final int MAX_META_CHAIN = 2000;
+
+    private LuaOps() {
+    }
+
+    static public LuaValue add(LuaValue a, LuaValue b) {
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.add, LuaInstrumentation.Path.fast);
+            return add(a.getIntegerValue(), b.getIntegerValue());
+        }
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.add, LuaInstrumentation.Path.fast);
+            return add(a.getRealValue(), b.getRealValue());
+        }
+        return arith(LuaMetatable.ADD, LuaMetamethod.add, a, b);
+    }
+
+    static public LuaValue sub(LuaValue a, LuaValue b) {
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.sub, LuaInstrumentation.Path.fast);
+            return sub(a.getIntegerValue(), b.getIntegerValue());
+        }
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.sub, LuaInstrumentation.Path.fast);
+            return sub(a.getRealValue(), b.getRealValue());
+        }
+        return arith(LuaMetatable.SUB, LuaMetamethod.sub, a, b);
+    }
+
+    static public LuaValue mul(LuaValue a, LuaValue b) {
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.mul, LuaInstrumentation.Path.fast);
+            return mul(a.getIntegerValue(), b.getIntegerValue());
+        }
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.mul, LuaInstrumentation.Path.fast);
+            return mul(a.getRealValue(), b.getRealValue());
+        }
+        return arith(LuaMetatable.MUL, LuaMetamethod.mul, a, b);
+    }
+
+    static public LuaValue div(LuaValue a, LuaValue b) {
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.div, LuaInstrumentation.Path.fast);
+            return div(a.getRealValue(), b.getRealValue());
+        }
+        return arith(LuaMetatable.DIV, LuaMetamethod.div, a, b);
+    }
+
+    static public LuaValue mod(LuaValue a, LuaValue b) {
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.mod, LuaInstrumentation.Path.fast);
+            return mod(a.getIntegerValue(), b.getIntegerValue());
+        }
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.mod, LuaInstrumentation.Path.fast);
+            return mod(a.getRealValue(), b.getRealValue());
+        }
+        return arith(LuaMetatable.MOD, LuaMetamethod.mod, a, b);
+    }
+
+    // Exponentiation always produces a float, as in Lua 5.4.
+    static public LuaValue pow(LuaValue a, LuaValue b) {
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.pow, LuaInstrumentation.Path.fast);
+            return pow(a.getRealValue(), b.getRealValue());
+        }
+        return arith(LuaMetatable.POW, LuaMetamethod.pow, a, b);
+    }
+
+    static public LuaValue idiv(LuaValue a, LuaValue b) {
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.idiv, LuaInstrumentation.Path.fast);
+            return idiv(a.getIntegerValue(), b.getIntegerValue());
+        }
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.idiv, LuaInstrumentation.Path.fast);
+            return idiv(a.getRealValue(), b.getRealValue());
+        }
+        return arith(LuaMetatable.IDIV, LuaMetamethod.idiv, a, b);
+    }
+
+    static public LuaValue unm(LuaValue a) {
+        if (a.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.unm, LuaInstrumentation.Path.fast);
+            return unm(a.getIntegerValue());
+        }
+        if (a.isRealValue()) {
+            LuaInstrumentation.count(LuaMetamethod.unm, LuaInstrumentation.Path.fast);
+            return unm(a.getRealValue());
+        }
+        return arith(LuaMetatable.UNM, LuaMetamethod.unm, a, a);
+    }
+
+    // Number kernels of the operators above, also linked directly by LuaBootstraps once operand types are known.
+    static LuaValue add(long a, long b) {
+        return new LuaValue(a + b);
+    }
+
+    static LuaValue add(double a, double b) {
+        return new LuaValue(a + b);
+    }
+
+    static LuaValue sub(long a, long b) {
+        return new LuaValue(a - b);
+    }
+
+    static LuaValue sub(double a, double b) {
+        return new LuaValue(a - b);
+    }
+
+    static LuaValue mul(long a, long b) {
+        return new LuaValue(a * b);
+    }
+
+    static LuaValue mul(double a, double b) {
+        return new LuaValue(a * b);
+    }
+
+    static LuaValue div(double a, double b) {
+        return new LuaValue(a / b);
+    }
+
+    // % and // round towards minus infinity, so the result of % has the sign of the divisor.
+    static LuaValue mod(long a, long b) {
+        if (b == 0) {
+            throw new RuntimeException("attempt to perform 'n%0'");
+        }
+        return new LuaValue(Math.floorMod(a, b));
+    }
+
+    static LuaValue mod(double a, double b) {
+        double m = a % b;
+        if (m > 0 ? b < 0 : (m < 0 && b != m)) {
+            m += b;
+        }
+        return new LuaValue(m);
+    }
+
+    static LuaValue pow(double a, double b) {
+        return new LuaValue(Math.pow(a, b));
+    }
+
+    static LuaValue idiv(long a, long b) {
+        if (b == 0) {
+            throw new RuntimeException("attempt to perform 'n//0'");
+        }
+        return new LuaValue(Math.floorDiv(a, b));
+    }
+
+    static LuaValue idiv(double a, double b) {
+        return new LuaValue(Math.floor(a / b));
+    }
+
+    static LuaValue unm(long a) {
+        return new LuaValue(-a);
+    }
+
+    static LuaValue unm(double a) {
+        return new LuaValue(-a);
+    }
+
+    static public LuaValue concat(LuaValue a, LuaValue b) {
+        if ((a.isStringValue() || a.isNumber()) && (b.isStringValue() || b.isNumber())) {
+            LuaInstrumentation.count(LuaMetamethod.concat, LuaInstrumentation.Path.fast);
+            return LuaValue.valueOfStringPiece(LuaRope.concat(concatPiece(a), concatPiece(b)));
+        }
+        return arith(LuaMetatable.CONCAT, LuaMetamethod.concat, a, b);
+    }
+
+    static public LuaValue len(LuaValue a) {
+        if (a.isStringValue()) {
+            LuaInstrumentation.count(LuaMetamethod.len, LuaInstrumentation.Path.fast);
+            return new LuaValue(LuaRope.lengthOf(a.getStringPiece()));
+        }
+        if (a.isTableValue()) {
+            LuaTable metatable = a.getTableValue().getMetatable();
+            if (metatable != null) {
+                LuaValue handler = metatable.getMetamethod(LuaMetamethod.len);
+                if (!handler.isNil()) {
+                    LuaInstrumentation.count(LuaMetamethod.len, LuaInstrumentation.Path.metamethod);
+                    return callHandler(handler, LuaMetatable.LEN, a, a);
+                }
+            }
+            LuaInstrumentation.count(LuaMetamethod.len, LuaInstrumentation.Path.fast);
+            return new LuaValue(a.getTableValue().length());
+        }
+        LuaValue handler = LuaMetatable.getMetamethod(a, LuaMetamethod.len);
+        if (handler.isNil()) {
+            throw LuaMetatable.getException("get length of", a);
+        }
+        LuaInstrumentation.count(LuaMetamethod.len, LuaInstrumentation.Path.metamethod);
+        return callHandler(handler, LuaMetatable.LEN, a, a);
+    }
+
+    // f(args...); a non-function with a __call handler is called as handler(f, args...)
+    static public Varargs call(LuaValue function, Varargs args) {
+        if (!LuaInstrumentation.ENABLED) {
+            return dispatch(function, args);
+        }
+        long start = LuaInstrumentation.callStarted();
+        try {
+            return dispatch(function, args);
+        } finally {
+            LuaInstrumentation.callCompleted(start);
+        }
+    }
+
+    // call without latency recording, for call sites that record it themselves
+    static Varargs dispatch(LuaValue function, Varargs args) {
+        LuaValue current = function;
+        Varargs currentArgs = args;
+        for (int loop = 0; loop < MAX_META_CHAIN; loop++) {
+            if (current.isFunctionValue()) {
+                return current.getFunctionValue().invoke(currentArgs);
+            }
+            LuaValue handler = LuaMetatable.getMetamethod(current, LuaMetamethod.call);
+            if (handler.isNil()) {
+                throw LuaMetatable.getException("call", current);
+            }
+            currentArgs = Varargs.varargsOf(current, currentArgs);
+            current = handler;
+        }
+        throw new RuntimeException("'__call' chain too long; possible loop");
+    }
+
+    static public LuaValue index(LuaValue object, LuaValue key) {
+        LuaValue current = object;
+        for (int loop = 0; loop < MAX_META_CHAIN; loop++) {
+            LuaValue handler;
+            if (current.isTableValue()) {
+                LuaTable table = current.getTableValue();
+                LuaValue value = table.rawget(key);
+                if (!value.isNil()) {
+                    return value;
+                }
+                LuaTable metatable = table.getMetatable();
+                if (metatable == null) {
+                    return value;
+                }
+                handler = metatable.getMetamethod(LuaMetamethod.index);
+                if (handler.isNil()) {
+                    return handler;
+                }
+            } else {
+                handler = LuaMetatable.getMetamethod(current, LuaMetamethod.index);
+                if (handler.isNil()) {
+                    throw LuaMetatable.getException(LuaMetatable.INDEX, current);
+                }
+            }
+            if (handler.isFunctionValue()) {
+                return handler.getFunctionValue().call(current, key);
+            }
+            current = handler;
+        }
+        throw new RuntimeException("'__index' chain too long; possible loop");
+    }
+
+    static public void newindex(LuaValue object, LuaValue key, LuaValue value) {
+        LuaValue current = object;
+        for (int loop = 0; loop < MAX_META_CHAIN; loop++) {
+            LuaValue handler;
+            if (current.isTableValue()) {
+                LuaTable table = current.getTableValue();
+                LuaTable metatable = table.getMetatable();
+                if (metatable == null || !table.rawget(key).isNil()) {
+                    table.rawset(key, value);
+                    return;
+                }
+                handler = metatable.getMetamethod(LuaMetamethod.newindex);
+                if (handler.isNil()) {
+                    table.rawset(key, value);
+                    return;
+                }
+            } else {
+                handler = LuaMetatable.getMetamethod(current, LuaMetamethod.newindex);
+                if (handler.isNil()) {
+                    throw LuaMetatable.getException(LuaMetatable.INDEX, current);
+                }
+            }
+            if (handler.isFunctionValue()) {
+                handler.getFunctionValue().call(current, key, value);
+                return;
+            }
+            current = handler;
+        }
+        throw new RuntimeException("'__newindex' chain too long; possible loop");
+    }
+
+    static Object concatPiece(LuaValue value) {
+        return value.isStringValue() ? value.getStringPiece() : LuaMetatable.numberToString(value);
+    }
+
+    static public LuaValue eq(LuaValue a, LuaValue b) {
+        return new LuaValue(equals(a, b));
+    }
+
+    static public LuaValue lt(LuaValue a, LuaValue b) {
+        return new LuaValue(lessThan(a, b));
+    }
+
+    static public LuaValue le(LuaValue a, LuaValue b) {
+        return new LuaValue(lessEqual(a, b));
+    }
+
+    static public boolean equals(LuaValue a, LuaValue b) {
+        boolean same = a.equals(b);
+        if (same || !(a.isTableValue() && b.isTableValue() || a.isUserdataValue() && b.isUserdataValue())) {
+            LuaInstrumentation.count(LuaMetamethod.eq, LuaInstrumentation.Path.fast);
+            return same;
+        }
+        LuaValue handler = metamethod(LuaMetamethod.eq, a, b);
+        if (handler.isNil()) {
+            LuaInstrumentation.count(LuaMetamethod.eq, LuaInstrumentation.Path.fast);
+            return false;
+        }
+        LuaInstrumentation.count(LuaMetamethod.eq, LuaInstrumentation.Path.metamethod);
+        return isTrue(callHandler(handler, LuaMetatable.EQ, a, b));
+    }
+
+    static public boolean lessThan(LuaValue a, LuaValue b) {
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.lt, LuaInstrumentation.Path.fast);
+            return a.getIntegerValue() < b.getIntegerValue();
+        }
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.lt, LuaInstrumentation.Path.fast);
+            return numberLessThan(a, b);
+        }
+        if (a.isStringValue() && b.isStringValue()) {
+            LuaInstrumentation.count(LuaMetamethod.lt, LuaInstrumentation.Path.fast);
+            return a.getLuaStringValue().compareTo(b.getLuaStringValue()) < 0;
+        }
+        return isTrue(compareByMetamethod(LuaMetatable.LT, LuaMetamethod.lt, a, b));
+    }
+
+    static public boolean lessEqual(LuaValue a, LuaValue b) {
+        if (a.isIntegerValue() && b.isIntegerValue()) {
+            LuaInstrumentation.count(LuaMetamethod.le, LuaInstrumentation.Path.fast);
+            return a.getIntegerValue() <= b.getIntegerValue();
+        }
+        if (a.isNumber() && b.isNumber()) {
+            LuaInstrumentation.count(LuaMetamethod.le, LuaInstrumentation.Path.fast);
+            return numberLessEqual(a, b);
+        }
+        if (a.isStringValue() && b.isStringValue()) {
+            LuaInstrumentation.count(LuaMetamethod.le, LuaInstrumentation.Path.fast);
+            return a.getLuaStringValue().compareTo(b.getLuaStringValue()) <= 0;
+        }
+        return isTrue(compareByMetamethod(LuaMetatable.LE, LuaMetamethod.le, a, b));
+    }
+
+    static public boolean isTrue(LuaValue value) {
+        return !value.isNil() && (!value.isBoolValue() || value.getBoolValue());
+    }
+
+    private static boolean numberLessThan(LuaValue a, LuaValue b) {
+        if (a.isRealValue() && b.isRealValue()) {
+            return a.getRealValue() < b.getRealValue();
+        }
+        if (a.isIntegerValue()) {
+            return integerLessThanReal(a.getIntegerValue(), b.getRealValue());
+        }
+        return realLessThanInteger(a.getRealValue(), b.getIntegerValue());
+    }
+
+    private static boolean numberLessEqual(LuaValue a, LuaValue b) {
+        if (a.isRealValue() && b.isRealValue()) {
+            return a.getRealValue() <= b.getRealValue();
+        }
+        if (a.isIntegerValue()) {
+            return integerLessEqualReal(a.getIntegerValue(), b.getRealValue());
+        }
+        return realLessEqualInteger(a.getRealValue(), b.getIntegerValue());
+    }
+
+    // Integers beyond 2^53 are not exactly representable as doubles, so mixed comparisons
+    // round the float operand to an integer instead of widening the integer operand.
+    private static final long EXACT_INTEGER_LIMIT = 1L << 53;
+
+    private static boolean integerLessThanReal(long i, double f) {
+        if (-EXACT_INTEGER_LIMIT <= i && i <= EXACT_INTEGER_LIMIT) {
+            return i < f;
+        }
+        if (f >= 0x1p63) {
+            return true;
+        }
+        return f > -0x1p63 && i < (long) Math.ceil(f);
+    }
+
+    private static boolean integerLessEqualReal(long i, double f) {
+        if (-EXACT_INTEGER_LIMIT <= i && i <= EXACT_INTEGER_LIMIT) {
+            return i <= f;
+        }
+        if (f >= 0x1p63) {
+            return true;
+        }
+        return f >= -0x1p63 && i <= (long) Math.floor(f);
+    }
+
+    private static boolean realLessThanInteger(double f, long i) {
+        if (-EXACT_INTEGER_LIMIT <= i && i <= EXACT_INTEGER_LIMIT) {
+            return f < i;
+        }
+        if (f < -0x1p63) {
+            return true;
+        }
+        return f < 0x1p63 && (long) Math.floor(f) < i;
+    }
+
+    private static boolean realLessEqualInteger(double f, long i) {
+        if (-EXACT_INTEGER_LIMIT <= i && i <= EXACT_INTEGER_LIMIT) {
+            return f <= i;
+        }
+        if (f < -0x1p63) {
+            return true;
+        }
+        return f < 0x1p63 && (long) Math.ceil(f) <= i;
+    }
+
+    // A table operand's own handler wins over the built-in number and string handlers of the other operand.
+    private static LuaValue metamethod(LuaMetamethod event, LuaValue a, LuaValue b) {
+        if (!a.isTableValue() && b.isTableValue()) {
+            LuaValue handler = LuaMetatable.getMetamethod(b, event);
+            if (!handler.isNil()) {
+                return handler;
+            }
+        }
+        LuaValue handler = LuaMetatable.getMetamethod(a, event);
+        if (handler.isNil()) {
+            handler = LuaMetatable.getMetamethod(b, event);
+        }
+        return handler;
+    }
+
+    private static LuaValue arith(String operationName, LuaMetamethod event, LuaValue a, LuaValue b) {
+        LuaValue handler = metamethod(event, a, b);
+        if (handler.isNil()) {
+            throw LuaMetatable.getException(operationName, a, b);
+        }
+        LuaInstrumentation.countHandler(event, a, b);
+        return callHandler(handler, operationName, a, b);
+    }
+
+    private static LuaValue compareByMetamethod(String operationName, LuaMetamethod event, LuaValue a, LuaValue b) {
+        LuaValue handler = metamethod(event, a, b);
+        if (handler.isNil()) {
+            throw LuaMetatable.getException("compare", a, b);
+        }
+        LuaInstrumentation.countHandler(event, a, b);
+        return callHandler(handler, operationName, a, b);
+    }
+
+    private static LuaValue callHandler(LuaValue handler, String operationName, LuaValue a, LuaValue b) {
+        if (!handler.isFunctionValue()) {
+            throw LuaMetatable.getException("call " + operationName + " handler of", handler);
+        }
+        return handler.getFunctionValue().call(a, b);
+    }
+}
@@ -0,0 +1,161 @@
+package com.luajvm;
+
+import java.nio.ByteOrder;
+
+// Reader of string.pack formats. next() reads one option at a time and leaves its kind, size and the
+// padding that aligns it in the fields below, with the same defaults and errors as the reference
+// implementation on a 64-bit machine.
+final class LuaPackFormat {
+    static final int MAX_INTEGER_SIZE = 16;
+    private static final int NATIVE_ALIGN = 8;
+    private static final int MAX_SIZE = Integer.MAX_VALUE;
+
+    enum Kind {
+        signed,
+        unsigned,
+        float32,
+        float64,
+        chars,
+        string,
+        zeroString,
+        padding,
+        align,
+        nop
+    }
+
+    private final LuaString format;
+    private final String name;
+    private int position = 0;
+    private int maxAlign = 1;
+    boolean little = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    Kind kind;
+    int size;
+    // padding bytes in front of the option
+    int alignment;
+
+    LuaPackFormat(LuaString format, String name) {
+        this.format = format;
+        this.name = name;
+    }
+
+    // Reads the next option for data that is total bytes long so far; false at the end of the format.
+    boolean next(long total) {
+        if (position >= format.length()) {
+            return false;
+        }
+        kind = option();
+        int align = size;
+        if (kind == Kind.align) {
+            if (position >= format.length() || option() == Kind.chars || size == 0) {
+                throw LuaFunctions.argumentError(1, name, "invalid next option for option 'X'");
+            }
+            align = size;
+            kind = Kind.align;
+            size = 0;
+        }
+        if (align <= 1 || kind == Kind.chars) {
+            alignment = 0;
+        } else {
+            if (align > maxAlign) {
+                align = maxAlign;
+            }
+            if ((align & (align - 1)) != 0) {
+                throw LuaFunctions.argumentError(1, name, "format asks for alignment not power of 2");
+            }
+            alignment = (align - (int) (total & (align - 1))) & (align - 1);
+        }
+        return true;
+    }
+
+    // reads one option and sets size
+    private Kind option() {
+        int c = format.byteAt(position++);
+        size = 0;
+        switch (c) {
+            case 'b', 'h', 'l', 'j' -> {
+                size = c == 'b' ? 1 : c == 'h' ? 2 : 8;
+                return Kind.signed;
+            }
+            case 'B', 'H', 'L', 'J', 'T' -> {
+                size = c == 'B' ? 1 : c == 'H' ? 2 : 8;
+                return Kind.unsigned;
+            }
+            case 'i' -> {
+                size = limit(4);
+                return Kind.signed;
+            }
+            case 'I' -> {
+                size = limit(4);
+                return Kind.unsigned;
+            }
+            case 'f' -> {
+                size = 4;
+                return Kind.float32;
+            }
+            case 'n', 'd' -> {
+                size = 8;
+                return Kind.float64;
+            }
+            case 's' -> {
+                size = limit(8);
+                return Kind.string;
+            }
+            case 'c' -> {
+                size = number(-1);
+                if (size == -1) {
+                    throw new RuntimeException("missing size for format option 'c'");
+                }
+                return Kind.chars;
+            }
+            case 'z' -> {
+                return Kind.zeroString;
+            }
+            case 'x' -> {
+                size = 1;
+                return Kind.padding;
+            }
+            case 'X' -> {
+                return Kind.align;
+            }
+            case ' ' -> {
+                return Kind.nop;
+            }
+            case '<', '>', '=' -> {
+                little = c == '<' || (c == '=' && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+                return Kind.nop;
+            }
+            case '!' -> {
+                maxAlign = limit(NATIVE_ALIGN);
+                return Kind.nop;
+            }
+            default -> throw new RuntimeException("invalid format option '" + (char) c + "'");
+        }
+    }
+
+    private int number(int defaultValue) {
+        if (!isDigit()) {
+            return defaultValue;
+        }
+        int value = 0;
+        do {
+            value = value * 10 + (format.byteAt(position++) - '0');
+        } while (isDigit() && value <= (MAX_SIZE - 9) / 10);
+        return value;
+    }
+
+    private int limit(int defaultValue) {
+        int value = number(defaultValue);
+        if (value > MAX_INTEGER_SIZE || value <= 0) {
+            throw new RuntimeException("integral size (" + value + ") out of limits [1," + MAX_INTEGER_SIZE + "]");
+        }
+        return value;
+    }
+
+    private boolean isDigit() {
+        if (position >= format.length()) {
+            return false;
+        }
+        int c = format.byteAt(position);
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,547 @@
+package com.luajvm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A Lua pattern compiled once into a list of items, each character class already turned into a
+// 256-bit set. Compiled patterns are kept in a bounded LRU cache keyed by the pattern string.
+// A Matcher runs over the subject's bytes and records captures as positions; capture strings are
+// views into the subject, created only when asked for.
+final class LuaPattern {
+    static final int MAX_CAPTURES = 32;
+    private static final int MAX_CALLS = 200;
+    private static final int CACHE_SIZE = 256;
+    private static final Map<LuaString, LuaPattern> CACHE = new LinkedHashMap<>(CACHE_SIZE * 4 / 3 + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LuaString, LuaPattern> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private static final byte[] SPECIALS = "^$*+?.([%-".getBytes();
+
+    private final Item[] items;
+    private final boolean anchored;
+
+    static LuaPattern compile(LuaString pattern) {
+        LuaPattern compiled;
+        synchronized (CACHE) {
+            compiled = CACHE.get(pattern);
+        }
+        if (compiled == null) {
+            compiled = new LuaPattern(pattern);
+            // a view would keep the whole buffer it points into alive for as long as it is cached
+            LuaString key = pattern.offset != 0 || pattern.length != pattern.bytes.length
+                    ? LuaString.wrap(pattern.toByteArray())
+                    : pattern;
+            synchronized (CACHE) {
+                CACHE.put(key, compiled);
+            }
+        }
+        return compiled;
+    }
+
+    // true if the pattern has no magic characters and can be searched for as plain text
+    static boolean isPlain(LuaString pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            int c = pattern.byteAt(i);
+            for (byte special : SPECIALS) {
+                if (c == special) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    boolean isAnchored() {
+        return anchored;
+    }
+
+    Matcher matcher(LuaString subject) {
+        return new Matcher(this, subject);
+    }
+
+    private LuaPattern(LuaString pattern) {
+        byte[] bytes = pattern.bytes;
+        int p = pattern.offset;
+        int end = p + pattern.length;
+        List<Item> items = new ArrayList<>();
+        anchored = p < end && bytes[p] == '^';
+        if (anchored) {
+            p++;
+        }
+        while (p < end) {
+            switch (bytes[p]) {
+                case '(':
+                    if (p + 1 < end && bytes[p + 1] == ')') {
+                        items.add(new Item(Kind.position));
+                        p += 2;
+                    } else {
+                        items.add(new Item(Kind.open));
+                        p++;
+                    }
+                    continue;
+                case ')':
+                    items.add(new Item(Kind.close));
+                    p++;
+                    continue;
+                case '$':
+                    if (p + 1 == end) {
+                        items.add(new Item(Kind.endAnchor));
+                        p++;
+                        continue;
+                    }
+                    break;
+                case '%':
+                    if (p + 1 < end) {
+                        int next = bytes[p + 1];
+                        if (next == 'b') {
+                            if (p + 3 >= end) {
+                                throw new RuntimeException("malformed pattern (missing arguments to '%b')");
+                            }
+                            items.add(new Item(Kind.balance, null, Quantifier.one, bytes[p + 2] & 0xFF, bytes[p + 3] & 0xFF));
+                            p += 4;
+                            continue;
+                        }
+                        if (next == 'f') {
+                            p += 2;
+                            if (p >= end || bytes[p] != '[') {
+                                throw new RuntimeException("missing '[' after '%f' in pattern");
+                            }
+                            int classEnd = classEnd(bytes, p, end);
+                            items.add(new Item(Kind.frontier, classSet(bytes, p, classEnd), Quantifier.one, 0, 0));
+                            p = classEnd;
+                            continue;
+                        }
+                        if (next >= '0' && next <= '9') {
+                            items.add(new Item(Kind.backReference, null, Quantifier.one, next - '1', 0));
+                            p += 2;
+                            continue;
+                        }
+                    }
+                    break;
+            }
+            int classEnd = classEnd(bytes, p, end);
+            long[] set = classSet(bytes, p, classEnd);
+            Quantifier quantifier = Quantifier.one;
+            if (classEnd < end) {
+                switch (bytes[classEnd]) {
+                    case '*' -> quantifier = Quantifier.star;
+                    case '+' -> quantifier = Quantifier.plus;
+                    case '-' -> quantifier = Quantifier.lazy;
+                    case '?' -> quantifier = Quantifier.optional;
+                }
+            }
+            items.add(new Item(Kind.single, set, quantifier, 0, 0));
+            p = quantifier == Quantifier.one ? classEnd : classEnd + 1;
+        }
+        this.items = items.toArray(new Item[0]);
+    }
+
+    private static int classEnd(byte[] bytes, int p, int end) {
+        int c = bytes[p++];
+        if (c == '%') {
+            if (p >= end) {
+                throw new RuntimeException("malformed pattern (ends with '%')");
+            }
+            return p + 1;
+        }
+        if (c == '[') {
+            if (p < end && bytes[p] == '^') {
+                p++;
+            }
+            do {
+                if (p >= end) {
+                    throw new RuntimeException("malformed pattern (missing ']')");
+                }
+                if (bytes[p++] == '%' && p < end) {
+                    p++;
+                }
+            } while (p >= end || bytes[p] != ']');
+            return p + 1;
+        }
+        return p;
+    }
+
+    // set of bytes matched by the single character class bytes[p..end)
+    private static long[] classSet(byte[] bytes, int p, int end) {
+        long[] set = new long[4];
+        int c = bytes[p] & 0xFF;
+        if (c == '.') {
+            fill(set, 0, 255);
+        } else if (c == '%') {
+            addEscape(set, bytes[p + 1] & 0xFF);
+        } else if (c == '[') {
+            int last = end - 1;
+            boolean negate = bytes[p + 1] == '^';
+            if (negate) {
+                p++;
+            }
+            while (++p < last) {
+                int first = bytes[p] & 0xFF;
+                if (first == '%') {
+                    p++;
+                    addEscape(set, bytes[p] & 0xFF);
+                } else if (bytes[p + 1] == '-' && p + 2 < last) {
+                    fill(set, first, bytes[p + 2] & 0xFF);
+                    p += 2;
+                } else {
+                    add(set, first);
+                }
+            }
+            if (negate) {
+                for (int i = 0; i < set.length; i++) {
+                    set[i] = ~set[i];
+                }
+            }
+        } else {
+            add(set, c);
+        }
+        return set;
+    }
+
+    // %a, %d, ... as in the C locale; an upper-case letter is the complement, anything else is literal
+    private static void addEscape(long[] set, int c) {
+        long[] classSet = new long[4];
+        switch (c | 0x20) {
+            case 'a' -> {
+                fill(classSet, 'a', 'z');
+                fill(classSet, 'A', 'Z');
+            }
+            case 'c' -> {
+                fill(classSet, 0, 31);
+                add(classSet, 127);
+            }
+            case 'd' -> fill(classSet, '0', '9');
+            case 'g' -> fill(classSet, 33, 126);
+            case 'l' -> fill(classSet, 'a', 'z');
+            case 'p' -> {
+                fill(classSet, 33, 47);
+                fill(classSet, 58, 64);
+                fill(classSet, 91, 96);
+                fill(classSet, 123, 126);
+            }
+            case 's' -> {
+                fill(classSet, 9, 13);
+                add(classSet, ' ');
+            }
+            case 'u' -> fill(classSet, 'A', 'Z');
+            case 'w' -> {
+                fill(classSet, 'a', 'z');
+                fill(classSet, 'A', 'Z');
+                fill(classSet, '0', '9');
+            }
+            case 'x' -> {
+                fill(classSet, '0', '9');
+                fill(classSet, 'a', 'f');
+                fill(classSet, 'A', 'F');
+            }
+            default -> {
+                add(set, c);
+                return;
+            }
+        }
+        boolean complement = c >= 'A' && c <= 'Z';
+        for (int i = 0; i < set.length; i++) {
+            set[i] |= complement ? ~classSet[i] : classSet[i];
+        }
+    }
+
+    private static void add(long[] set, int c) {
+        set[c >>> 6] |= 1L << c;
+    }
+
+    private static void fill(long[] set, int from, int to) {
+        for (int c = from; c <= to; c++) {
+            add(set, c);
+        }
+    }
+
+    private enum Kind {
+        single,
+        open,
+        position,
+        close,
+        balance,
+        frontier,
+        backReference,
+        endAnchor,
+    }
+
+    private enum Quantifier {
+        one,
+        star,
+        plus,
+        lazy,
+        optional,
+    }
+
+    private static final class Item {
+        final Kind kind;
+        final long[] set;
+        final Quantifier quantifier;
+        // %b delimiters, or the zero-based capture index of a back reference
+        final int first;
+        final int second;
+
+        Item(Kind kind) {
+            this(kind, null, Quantifier.one, 0, 0);
+        }
+
+        Item(Kind kind, long[] set, Quantifier quantifier, int first, int second) {
+            this.kind = kind;
+            this.set = set;
+            this.quantifier = quantifier;
+            this.first = first;
+            this.second = second;
+        }
+
+        boolean matches(int c) {
+            return (set[c >>> 6] & (1L << c)) != 0;
+        }
+    }
+
+    // Matching state for one subject. Positions are zero-based offsets into the subject.
+    static final class Matcher {
+        private static final int CAPTURE_UNFINISHED = -1;
+        private static final int CAPTURE_POSITION = -2;
+
+        private final Item[] items;
+        private final LuaString subject;
+        private final byte[] bytes;
+        private final int base;
+        private final int length;
+        private final int[] captureStart = new int[MAX_CAPTURES];
+        private final int[] captureLength = new int[MAX_CAPTURES];
+        private int level = 0;
+        private int calls = 0;
+
+        Matcher(LuaPattern pattern, LuaString subject) {
+            this.items = pattern.items;
+            this.subject = subject;
+            this.bytes = subject.bytes;
+            this.base = subject.offset;
+            this.length = subject.length;
+        }
+
+        // end of a match starting at start, or -1
+        int match(int start) {
+            level = 0;
+            calls = 0;
+            return match(start, 0);
+        }
+
+        int captureCount(boolean wholeIfNone) {
+            return level == 0 && wholeIfNone ? 1 : level;
+        }
+
+        LuaValue capture(int index, int start, int end) {
+            if (index >= level) {
+                if (index != 0) {
+                    throw new RuntimeException("invalid capture index %" + (index + 1));
+                }
+                return new LuaValue(subject.substring(start, end));
+            }
+            int captured = captureLength[index];
+            if (captured == CAPTURE_UNFINISHED) {
+                throw new RuntimeException("unfinished capture");
+            }
+            if (captured == CAPTURE_POSITION) {
+                return new LuaValue(captureStart[index] + 1);
+            }
+            return new LuaValue(subject.substring(captureStart[index], captureStart[index] + captured));
+        }
+
+        Varargs captures(int start, int end, boolean wholeIfNone) {
+            int count = captureCount(wholeIfNone);
+            return switch (count) {
+                case 0 -> Varargs.NONE;
+                case 1 -> capture(0, start, end);
+                case 2 -> Varargs.varargsOf(capture(0, start, end), capture(1, start, end));
+                default -> {
+                    LuaValue[] values = new LuaValue[count];
+                    for (int i = 0; i < count; i++) {
+                        values[i] = capture(i, start, end);
+                    }
+                    yield Varargs.varargsOf(values);
+                }
+            };
+        }
+
+        private int at(int position) {
+            return bytes[base + position] & 0xFF;
+        }
+
+        private int match(int s, int p) {
+            if (++calls > MAX_CALLS) {
+                throw new RuntimeException("pattern too complex");
+            }
+            try {
+                while (p < items.length) {
+                    Item item = items[p];
+                    switch (item.kind) {
+                        case open:
+                            return startCapture(s, p + 1, CAPTURE_UNFINISHED);
+                        case position:
+                            return startCapture(s, p + 1, CAPTURE_POSITION);
+                        case close:
+                            return endCapture(s, p + 1);
+                        case endAnchor:
+                            return s == length ? s : -1;
+                        case balance:
+                            s = matchBalance(s, item);
+                            if (s == -1) {
+                                return -1;
+                            }
+                            p++;
+                            continue;
+                        case frontier: {
+                            int previous = s == 0 ? 0 : at(s - 1);
+                            int current = s < length ? at(s) : 0;
+                            if (item.matches(previous) || !item.matches(current)) {
+                                return -1;
+                            }
+                            p++;
+                            continue;
+                        }
+                        case backReference:
+                            s = matchCapture(s, item.first);
+                            if (s == -1) {
+                                return -1;
+                            }
+                            p++;
+                            continue;
+                        default: {
+                            boolean matched = s < length && item.matches(at(s));
+                            switch (item.quantifier) {
+                                case optional:
+                                    if (matched) {
+                                        int result = match(s + 1, p + 1);
+                                        if (result != -1) {
+                                            return result;
+                                        }
+                                    }
+                                    p++;
+                                    continue;
+                                case plus:
+                                    return matched ? maxExpand(s + 1, item, p) : -1;
+                                case star:
+                                    return maxExpand(s, item, p);
+                                case lazy:
+                                    return minExpand(s, item, p);
+                                default:
+                                    if (!matched) {
+                                        return -1;
+                                    }
+                                    s++;
+                                    p++;
+                            }
+                        }
+                    }
+                }
+                return s;
+            } finally {
+                calls--;
+            }
+        }
+
+        private int maxExpand(int s, Item item, int p) {
+            int count = 0;
+            while (s + count < length && item.matches(at(s + count))) {
+                count++;
+            }
+            while (count >= 0) {
+                int result = match(s + count, p + 1);
+                if (result != -1) {
+                    return result;
+                }
+                count--;
+            }
+            return -1;
+        }
+
+        private int minExpand(int s, Item item, int p) {
+            while (true) {
+                int result = match(s, p + 1);
+                if (result != -1) {
+                    return result;
+                }
+                if (s < length && item.matches(at(s))) {
+                    s++;
+                } else {
+                    return -1;
+                }
+            }
+        }
+
+        private int startCapture(int s, int p, int what) {
+            if (level >= MAX_CAPTURES) {
+                throw new RuntimeException("too many captures");
+            }
+            captureStart[level] = s;
+            captureLength[level] = what;
+            level++;
+            int result = match(s, p);
+            if (result == -1) {
+                level--;
+            }
+            return result;
+        }
+
+        private int endCapture(int s, int p) {
+            int open = -1;
+            for (int i = level - 1; i >= 0; i--) {
+                if (captureLength[i] == CAPTURE_UNFINISHED) {
+                    open = i;
+                    break;
+                }
+            }
+            if (open < 0) {
+                throw new RuntimeException("invalid pattern capture");
+            }
+            captureLength[open] = s - captureStart[open];
+            int result = match(s, p);
+            if (result == -1) {
+                captureLength[open] = CAPTURE_UNFINISHED;
+            }
+            return result;
+        }
+
+        private int matchBalance(int s, Item item) {
+            if (s >= length || at(s) != item.first) {
+                return -1;
+            }
+            int depth = 1;
+            for (int i = s + 1; i < length; i++) {
+                int c = at(i);
+                if (c == item.second) {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                } else if (c == item.first) {
+                    depth++;
+                }
+            }
+            return -1;
+        }
+
+        private int matchCapture(int s, int index) {
+            if (index < 0 || index >= level || captureLength[index] == CAPTURE_UNFINISHED) {
+                throw new RuntimeException("invalid capture index %" + (index + 1));
+            }
+            int captured = captureLength[index];
+            if (captured < 0 || length - s < captured) {
+                return -1;
+            }
+            int from = base + captureStart[index];
+            for (int i = 0; i < captured; i++) {
+                if (bytes[from + i] != bytes[base + s + i]) {
+                    return -1;
+                }
+            }
+            return s + captured;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.luajvm;
+
+import java.util.Arrays;
+
+// Deferred result of a .. b. Concatenation only links the two operands; the bytes are copied once,
+// when the string is first needed as a key, in a comparison or for byte access, so building a string
+// piece by piece costs O(total length) instead of O(n^2).
+final class LuaRope {
+    // Below this length copying is cheaper than keeping a node around.
+    private static final int FLAT_THRESHOLD = 64;
+
+    // LuaString or LuaRope, released once the rope is flattened; flat is published before they are cleared
+    private volatile Object left;
+    private volatile Object right;
+    private final int length;
+    private volatile LuaString flat = null;
+
+    private LuaRope(Object left, Object right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    // Both pieces are LuaString or LuaRope instances; the result is one of the two as well.
+    static Object concat(Object left, Object right) {
+        int leftLength = lengthOf(left);
+        int rightLength = lengthOf(right);
+        if (rightLength == 0) {
+            return left;
+        }
+        if (leftLength == 0) {
+            return right;
+        }
+        long length = (long) leftLength + rightLength;
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("string length overflow");
+        }
+        if (length <= FLAT_THRESHOLD && left instanceof LuaString leftString && right instanceof LuaString rightString) {
+            return leftString.concat(rightString);
+        }
+        return new LuaRope(left, right, (int) length);
+    }
+
+    static int lengthOf(Object piece) {
+        return piece instanceof LuaRope rope ? rope.length : ((LuaString) piece).length();
+    }
+
+    static LuaString toLuaString(Object piece) {
+        return piece instanceof LuaRope rope ? rope.flatten() : (LuaString) piece;
+    }
+
+    int length() {
+        return length;
+    }
+
+    LuaString flatten() {
+        LuaString result = flat;
+        if (result != null) {
+            return result;
+        }
+        synchronized (this) {
+            result = flat;
+            if (result != null) {
+                return result;
+            }
+            byte[] buffer = new byte[length];
+            int position = length;
+            // fill from the end, right pieces first, with an explicit stack so deep chains cannot overflow the call stack
+            Object[] stack = new Object[16];
+            int top = 0;
+            stack[top++] = this;
+            while (top > 0) {
+                Object piece = stack[--top];
+                stack[top] = null;
+                if (piece instanceof LuaRope rope && rope != this) {
+                    LuaString ready = rope.flat;
+                    if (ready != null) {
+                        piece = ready;
+                    }
+                }
+                if (piece instanceof LuaRope rope) {
+                    Object ropeLeft = rope.left;
+                    Object ropeRight = rope.right;
+                    if (ropeLeft == null || ropeRight == null) {
+                        // flattened by another thread in the meantime
+                        stack[top++] = rope.flat;
+                        continue;
+                    }
+                    if (top + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[top++] = ropeLeft;
+                    stack[top++] = ropeRight;
+                } else {
+                    LuaString string = (LuaString) piece;
+                    position -= string.length();
+                    string.copyTo(0, buffer, position, string.length());
+                }
+            }
+            result = LuaString.wrap(buffer);
+            flat = result;
+            left = null;
+            right = null;
+        }
+        return result;
+    }
+}
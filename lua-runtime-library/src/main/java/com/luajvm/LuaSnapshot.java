@@ -0,0 +1,272 @@
+package com.luajvm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary snapshots of values and the tables reachable from them. load maps the file and returns the
+// root at once: each table is read from the mapping the first time it is used, so a large snapshot
+// costs little more than the mmap until its tables are actually looked at.
+//
+// Layout, big-endian: the magic "LJSN", the format version, the root value, one record per table,
+// the index (the number of tables and the offset of each record) and, as the last 4 bytes, the offset
+// of the index. A record holds t[1..n] (n, then n values) and the remaining entries (m, then m key
+// and value pairs). A value is a tag byte followed by nothing for nil and booleans, 8 bytes for
+// integers and floats, a length and the bytes for strings, and the table number for tables, so
+// shared tables and cycles come back shared. Metatables are not stored; functions and coroutines
+// cannot be. Snapshots are limited to 2 GB, the most a single mapped buffer can hold.
+final public class LuaSnapshot {
+    private static final int MAGIC = 0x4C4A534E;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte NIL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte REAL = 4;
+    private static final byte STRING = 5;
+    private static final byte TABLE = 6;
+
+    private LuaSnapshot() {
+    }
+
+    static public void write(LuaValue value, Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            write(value, out);
+        }
+    }
+
+    // Writes the snapshot of value to out, which is flushed but left open.
+    static public void write(LuaValue value, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        new Writer(data).write(value);
+        data.flush();
+    }
+
+    static public LuaValue load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("snapshot too large to map: " + path);
+            }
+            // the mapping stays valid after the channel is closed
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    // The root of the snapshot held by buffer from index 0 up to its limit. Tables read from it later,
+    // so the buffer must not be changed afterwards.
+    static public LuaValue read(ByteBuffer buffer) {
+        Snapshot snapshot = new Snapshot(buffer.duplicate());
+        LuaValue root = new LuaValue();
+        snapshot.value(snapshot.data.duplicate().position(HEADER_SIZE), root);
+        return root;
+    }
+
+    private static final class Writer {
+        private final DataOutputStream out;
+        private final Map<LuaTable, Integer> ids = new IdentityHashMap<>();
+        // in order of their ids; records are written while this grows
+        private final List<LuaTable> tables = new ArrayList<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(LuaValue root) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            value(root);
+            int[] offsets = new int[16];
+            for (int id = 0; id < tables.size(); id++) {
+                if (id == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, id * 2);
+                }
+                offsets[id] = position();
+                record(tables.get(id));
+            }
+            int index = position();
+            out.writeInt(tables.size());
+            for (int id = 0; id < tables.size(); id++) {
+                out.writeInt(offsets[id]);
+            }
+            out.writeInt(index);
+        }
+
+        private void record(LuaTable table) throws IOException {
+            int n = 0;
+            while (n < Integer.MAX_VALUE && !table.rawget(n + 1L).isNil()) {
+                n++;
+            }
+            int m = 0;
+            LuaTable.Cursor cursor = table.cursor();
+            while (cursor.next()) {
+                if (!inSequence(cursor.key(), n)) {
+                    m++;
+                }
+            }
+            out.writeInt(n);
+            for (int i = 1; i <= n; i++) {
+                value(table.rawget(i));
+            }
+            out.writeInt(m);
+            cursor.reset();
+            while (cursor.next()) {
+                if (!inSequence(cursor.key(), n)) {
+                    value(cursor.key());
+                    value(cursor.value());
+                }
+            }
+        }
+
+        private static boolean inSequence(LuaValue key, int n) {
+            return key.isIntegerValue() && key.getIntegerValue() >= 1 && key.getIntegerValue() <= n;
+        }
+
+        private void value(LuaValue value) throws IOException {
+            switch (value.getType()) {
+                case nil -> out.writeByte(NIL);
+                case bool -> out.writeByte(value.getBoolValue() ? TRUE : FALSE);
+                case integer -> {
+                    out.writeByte(INTEGER);
+                    out.writeLong(value.getIntegerValue());
+                }
+                case real -> {
+                    out.writeByte(REAL);
+                    out.writeDouble(value.getRealValue());
+                }
+                case string -> {
+                    LuaString s = value.getLuaStringValue();
+                    out.writeByte(STRING);
+                    out.writeInt(s.length());
+                    out.write(s.toByteArray());
+                }
+                case table -> {
+                    LuaTable table = value.getTableValue();
+                    Integer id = ids.get(table);
+                    if (id == null) {
+                        id = tables.size();
+                        ids.put(table, id);
+                        tables.add(table);
+                    }
+                    out.writeByte(TABLE);
+                    out.writeInt(id);
+                }
+                default -> throw new RuntimeException("cannot store a " + value.getTypeString() + " value in a snapshot");
+            }
+        }
+
+        // DataOutputStream.size stops at Integer.MAX_VALUE
+        private int position() throws IOException {
+            int position = out.size();
+            if (position == Integer.MAX_VALUE) {
+                throw new IOException("snapshot larger than 2 GB");
+            }
+            return position;
+        }
+    }
+
+    // A mapped snapshot and the tables made for it so far, one per table number.
+    private static final class Snapshot {
+        final ByteBuffer data;
+        private final int index;
+        private final LazyTable[] tables;
+
+        Snapshot(ByteBuffer data) {
+            this.data = data;
+            int limit = data.limit();
+            if (limit < HEADER_SIZE + 9 || data.getInt(0) != MAGIC) {
+                throw new RuntimeException("not a snapshot");
+            }
+            if (data.getInt(4) != VERSION) {
+                throw new RuntimeException("unsupported snapshot version " + data.getInt(4));
+            }
+            index = data.getInt(limit - 4);
+            if (index < HEADER_SIZE || index > limit - 8) {
+                throw new RuntimeException("corrupt snapshot");
+            }
+            int count = data.getInt(index);
+            if (count < 0 || count > (limit - 8 - index) / 4) {
+                throw new RuntimeException("corrupt snapshot");
+            }
+            tables = new LazyTable[count];
+        }
+
+        // reads the value at in's position into into
+        void value(ByteBuffer in, LuaValue into) {
+            byte tag = in.get();
+            switch (tag) {
+                case NIL -> into.setValue(LuaValue.NIL_VALUE);
+                case FALSE -> into.setValue(false);
+                case TRUE -> into.setValue(true);
+                case INTEGER -> into.setValue(in.getLong());
+                case REAL -> into.setValue(in.getDouble());
+                case STRING -> {
+                    byte[] bytes = new byte[in.getInt()];
+                    in.get(bytes);
+                    into.setValue(LuaString.wrap(bytes));
+                }
+                case TABLE -> into.setValue(table(in.getInt()));
+                default -> throw new RuntimeException("corrupt snapshot");
+            }
+        }
+
+        private synchronized LuaTable table(int id) {
+            if (id < 0 || id >= tables.length) {
+                throw new RuntimeException("corrupt snapshot");
+            }
+            LazyTable table = tables[id];
+            if (table == null) {
+                table = new LazyTable(this, id);
+                tables[id] = table;
+            }
+            return table;
+        }
+
+        void fill(LuaTable table, int id) {
+            ByteBuffer in = data.duplicate().position(data.getInt(index + 4 + id * 4));
+            LuaValue key = new LuaValue();
+            LuaValue value = new LuaValue();
+            int n = in.getInt();
+            for (int i = 1; i <= n; i++) {
+                value(in, value);
+                table.rawset(i, value);
+            }
+            int m = in.getInt();
+            for (int i = 0; i < m; i++) {
+                value(in, key);
+                value(in, value);
+                table.rawset(key, value);
+            }
+        }
+    }
+
+    // Table whose entries are still in a snapshot until it is first used.
+    private static final class LazyTable extends LuaLazyTable {
+        private Snapshot snapshot;
+        private final int id;
+
+        LazyTable(Snapshot snapshot, int id) {
+            this.snapshot = snapshot;
+            this.id = id;
+        }
+
+        @Override
+        void fill() {
+            snapshot.fill(this, id);
+            snapshot = null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.luajvm;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+// A global environment. A new state holds the base functions and, as lazy stand-ins, the string, table,
+// math, coroutine and io tables, each built the first time one of its fields is used. String methods
+// (s:upper()) do not go through the state's string table but through a string library shared by all
+// states; see LuaMetatable.StringMetatable.
+//
+// For one isolated state per request, warm up a template once and fork it for every request:
+//     LuaState template = new LuaState();  ...run setup code against template.getGlobals()...
+//     LuaState state = template.fork();
+// The first fork turns the state into a template: every table reachable from its globals is loaded
+// and frozen, so the template stays as it was and can be forked from any thread. A fork costs a few
+// allocations whatever the size of the template. Each of its tables is copied from the template the
+// first time it is used, with shared tables and cycles kept as they were, so changes never leak
+// between forks or back into the template. Functions, coroutines and userdata are shared, not copied,
+// except for the state of library functions: each fork has its own default io files and its own
+// random generator, seeded anew as in a new state. Weak tables, such as memo caches, cannot be
+// frozen: they stay writable and are copied one fork at a time, with the entries they still hold then.
+final public class LuaState {
+    private static final Map<String, LuaValue> BASE_FUNCTIONS = Map.of(
+            "next", new LuaValue(LuaFunction.variadic(LuaFunctions::next)),
+            "pairs", new LuaValue(LuaFunction.variadic(LuaFunctions::pairs)),
+            "ipairs", new LuaValue(LuaFunction.variadic(LuaFunctions::ipairs)),
+            "select", new LuaValue(LuaFunction.variadic(LuaFunctions::select)),
+            "tonumber", new LuaValue(LuaFunction.variadic(LuaFunctions::toNumber)),
+            "tostring", new LuaValue(LuaFunction.variadic(LuaFunctions::toString)),
+            "type", new LuaValue(LuaFunction.variadic(LuaFunctions::type))
+    );
+    private static final Map<String, Supplier<LuaTable>> LIBRARIES = Map.of(
+            "string", LuaStringLibrary::library,
+            "table", LuaTableLibrary::library,
+            "math", LuaMathLibrary::library,
+            "coroutine", LuaCoroutine::library,
+            "io", LuaIoLibrary::library
+    );
+
+    private final LuaTable globals;
+    private volatile boolean template = false;
+
+    public LuaState() {
+        globals = new LuaTable(0, BASE_FUNCTIONS.size() + LIBRARIES.size() + 1);
+        globals.rawset("_G", new LuaValue(globals));
+        for (Map.Entry<String, LuaValue> entry : BASE_FUNCTIONS.entrySet()) {
+            globals.rawset(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Supplier<LuaTable>> entry : LIBRARIES.entrySet()) {
+            globals.rawset(entry.getKey(), new LuaValue(LuaLazyTable.library(entry.getValue())));
+        }
+    }
+
+    private LuaState(LuaTable globals) {
+        this.globals = globals;
+    }
+
+    public LuaTable getGlobals() {
+        return globals;
+    }
+
+    public boolean isTemplate() {
+        return template;
+    }
+
+    // A new state that starts out as a copy of this one, which becomes a template.
+    public LuaState fork() {
+        if (!template) {
+            freezeReachable();
+        }
+        return new LuaState(new Fork().copyOf(globals));
+    }
+
+    private synchronized void freezeReachable() {
+        if (template) {
+            return;
+        }
+        Set<LuaTable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<LuaTable> pending = new ArrayDeque<>();
+        seen.add(globals);
+        pending.add(globals);
+        while (!pending.isEmpty()) {
+            LuaTable table = pending.poll();
+            if (!table.isWeak()) {
+                table.freeze();
+            }
+            LuaTable metatable = table.getMetatable();
+            if (metatable != null && seen.add(metatable)) {
+                pending.add(metatable);
+            }
+            LuaTable.Cursor cursor = table.cursor();
+            while (cursor.next()) {
+                reach(cursor.key(), seen, pending);
+                reach(cursor.value(), seen, pending);
+            }
+        }
+        template = true;
+    }
+
+    private static void reach(LuaValue value, Set<LuaTable> seen, Deque<LuaTable> pending) {
+        LuaTable table = value.isTableValue() ? value.getTableValue()
+                : value.isFunctionValue() ? value.getFunctionValue().getState() : null;
+        if (table != null && seen.add(table)) {
+            pending.add(table);
+        }
+    }
+
+    // The copies made so far for one fork, by template table or function with state.
+    private static final class Fork {
+        private final Map<LuaTable, LuaTable> copies = new IdentityHashMap<>();
+        private final Map<LuaFunction, LuaFunction> functions = new IdentityHashMap<>();
+        private final Map<LuaUserdata, LuaUserdata> userdata = new IdentityHashMap<>();
+
+        synchronized LuaTable copyOf(LuaTable table) {
+            return copies.computeIfAbsent(table, source -> new Copy(this, source));
+        }
+
+        synchronized LuaFunction copyOf(LuaFunction function) {
+            LuaFunction copy = functions.get(function);
+            if (copy == null) {
+                copy = function.withState(copyOf(function.getState()));
+                functions.put(function, copy);
+            }
+            return copy;
+        }
+
+        synchronized LuaUserdata copyOf(LuaUserdata value) {
+            return userdata.computeIfAbsent(value, LuaUserdata::forkCopy);
+        }
+
+        LuaValue copyOf(LuaValue value) {
+            if (value.isTableValue()) {
+                return new LuaValue(copyOf(value.getTableValue()));
+            }
+            if (value.isFunctionValue() && value.getFunctionValue().getState() != null) {
+                return new LuaValue(copyOf(value.getFunctionValue()));
+            }
+            if (value.isUserdataValue()) {
+                LuaUserdata copy = copyOf(value.getUserdataValue());
+                return copy != value.getUserdataValue() ? new LuaValue(copy) : value;
+            }
+            return value;
+        }
+    }
+
+    // Copy of a frozen template table, taken when it is first used.
+    private static final class Copy extends LuaLazyTable {
+        private Fork fork;
+        private LuaTable source;
+
+        Copy(Fork fork, LuaTable source) {
+            this.fork = fork;
+            this.source = source;
+        }
+
+        @Override
+        void fill() {
+            LuaTable metatable = source.getMetatable();
+            if (metatable != null) {
+                setMetatable(fork.copyOf(metatable));
+            }
+            if (source.isWeak()) {
+                // reads of a weak table drop collected entries, so they must not overlap
+                synchronized (source) {
+                    copyEntries();
+                }
+            } else {
+                copyEntries();
+            }
+            fork = null;
+            source = null;
+        }
+
+        private void copyEntries() {
+            LuaTable.Cursor cursor = source.cursor();
+            while (cursor.next()) {
+                rawset(fork.copyOf(cursor.key()), fork.copyOf(cursor.value()));
+            }
+        }
+    }
+}
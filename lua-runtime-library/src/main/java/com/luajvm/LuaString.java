@@ -0,0 +1,199 @@
+package com.luajvm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Immutable Lua string: a byte sequence that may be a view onto a larger shared buffer.
+// Conversion to java.lang.String decodes UTF-8 on first use; strings created from a
+// java.lang.String keep it, so converting back costs nothing.
+final public class LuaString implements Comparable<LuaString> {
+    static final int MAX_INTERNED_LENGTH = 40;
+    private static final int INTERN_CACHE_SIZE = 1 << 12;
+    // Lossy intern cache for short strings: equal short strings usually share one instance,
+    // which makes key comparison a reference check, but equality never relies on it.
+    private static final LuaString[] INTERNED = new LuaString[INTERN_CACHE_SIZE];
+
+    public static final LuaString EMPTY = new LuaString(new byte[0], 0, 0);
+
+    final byte[] bytes;
+    final int offset;
+    final int length;
+    private int hash = 0;
+    private boolean hashIsZero = false;
+    private String string = null;
+
+    private LuaString(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public static LuaString valueOf(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        LuaString result = bytes.length <= MAX_INTERNED_LENGTH ? intern(bytes, 0, bytes.length) : new LuaString(bytes, 0, bytes.length);
+        if (result.string == null) {
+            result.string = value;
+        }
+        return result;
+    }
+
+    public static LuaString valueOf(byte[] bytes) {
+        return valueOf(bytes, 0, bytes.length);
+    }
+
+    public static LuaString valueOf(byte[] bytes, int offset, int length) {
+        if (length <= MAX_INTERNED_LENGTH) {
+            return intern(bytes, offset, length);
+        }
+        return new LuaString(Arrays.copyOfRange(bytes, offset, offset + length), 0, length);
+    }
+
+    // Takes ownership of the buffer without copying it; the caller must not modify it afterwards.
+    static LuaString wrap(byte[] bytes, int offset, int length) {
+        if (length <= MAX_INTERNED_LENGTH) {
+            return intern(bytes, offset, length);
+        }
+        return new LuaString(bytes, offset, length);
+    }
+
+    static LuaString wrap(byte[] bytes) {
+        return wrap(bytes, 0, bytes.length);
+    }
+
+    private static LuaString intern(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        int hash = hash(bytes, offset, length);
+        int slot = (hash ^ (hash >>> 16)) & (INTERN_CACHE_SIZE - 1);
+        LuaString cached = INTERNED[slot];
+        if (cached != null && cached.hashCode() == hash && cached.contentEquals(bytes, offset, length)) {
+            return cached;
+        }
+        LuaString created = new LuaString(Arrays.copyOfRange(bytes, offset, offset + length), 0, length);
+        created.hash = hash;
+        created.hashIsZero = hash == 0;
+        INTERNED[slot] = created;
+        return created;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Byte at the given zero-based position as an unsigned value.
+    public int byteAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return bytes[offset + index] & 0xFF;
+    }
+
+    // Zero-based, end-exclusive view that shares this string's buffer. Short results are copied
+    // so that they can be interned and do not keep a large buffer alive.
+    public LuaString substring(int begin, int end) {
+        if (begin < 0 || end > length || begin > end) {
+            throw new IndexOutOfBoundsException("begin " + begin + ", end " + end + ", length " + length);
+        }
+        if (begin == 0 && end == length) {
+            return this;
+        }
+        int newLength = end - begin;
+        if (newLength <= MAX_INTERNED_LENGTH) {
+            return intern(bytes, offset + begin, newLength);
+        }
+        return new LuaString(bytes, offset + begin, newLength);
+    }
+
+    public LuaString concat(LuaString other) {
+        if (other.length == 0) {
+            return this;
+        }
+        if (length == 0) {
+            return other;
+        }
+        byte[] result = new byte[length + other.length];
+        System.arraycopy(bytes, offset, result, 0, length);
+        System.arraycopy(other.bytes, other.offset, result, length, other.length);
+        return wrap(result);
+    }
+
+    public void copyTo(int sourceOffset, byte[] destination, int destinationOffset, int count) {
+        System.arraycopy(bytes, offset + sourceOffset, destination, destinationOffset, count);
+    }
+
+    void copyTo(int sourceOffset, ByteBuffer destination, int count) {
+        destination.put(bytes, offset + sourceOffset, count);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    public boolean startsWith(LuaString prefix) {
+        return prefix.length <= length
+                && Arrays.equals(bytes, offset, offset + prefix.length, prefix.bytes, prefix.offset, prefix.offset + prefix.length);
+    }
+
+    boolean isMetamethodName() {
+        return length >= 2 && bytes[offset] == '_' && bytes[offset + 1] == '_';
+    }
+
+    @Override
+    public String toString() {
+        String result = string;
+        if (result == null) {
+            result = new String(bytes, offset, length, StandardCharsets.UTF_8);
+            string = result;
+        }
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && !hashIsZero) {
+            h = hash(bytes, offset, length);
+            if (h == 0) {
+                hashIsZero = true;
+            } else {
+                hash = h;
+            }
+        }
+        return h;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof LuaString other) || other.length != length) {
+            return false;
+        }
+        if (hash != 0 && other.hash != 0 && hash != other.hash) {
+            return false;
+        }
+        return other.contentEquals(bytes, offset, length);
+    }
+
+    private boolean contentEquals(byte[] otherBytes, int otherOffset, int otherLength) {
+        return length == otherLength
+                && Arrays.equals(bytes, offset, offset + length, otherBytes, otherOffset, otherOffset + otherLength);
+    }
+
+    // Byte-wise unsigned comparison, the order of the C locale.
+    @Override
+    public int compareTo(LuaString other) {
+        return Arrays.compareUnsigned(bytes, offset, offset + length, other.bytes, other.offset, other.offset + other.length);
+    }
+}
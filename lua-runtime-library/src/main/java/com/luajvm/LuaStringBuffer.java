@@ -0,0 +1,74 @@
+package com.luajvm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Growable byte buffer for building Lua strings; toLuaString hands the bytes over without a copy.
+final class LuaStringBuffer {
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    private byte[] bytes;
+    private int length = 0;
+
+    LuaStringBuffer(int capacity) {
+        bytes = new byte[Math.max(capacity, 16)];
+    }
+
+    int length() {
+        return length;
+    }
+
+    LuaStringBuffer append(int b) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) b;
+        return this;
+    }
+
+    LuaStringBuffer append(LuaString string) {
+        return append(string, 0, string.length());
+    }
+
+    // zero-based, end-exclusive range of string
+    LuaStringBuffer append(LuaString string, int begin, int end) {
+        int count = end - begin;
+        ensureCapacity(count);
+        string.copyTo(begin, bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    // the next count bytes of source
+    LuaStringBuffer append(ByteBuffer source, int count) {
+        ensureCapacity(count);
+        source.get(bytes, length, count);
+        length += count;
+        return this;
+    }
+
+    // for ASCII text such as formatted numbers
+    LuaStringBuffer append(String text) {
+        int count = text.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            bytes[length++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    LuaString toLuaString() {
+        LuaString result = LuaString.wrap(bytes, 0, length);
+        bytes = null;
+        return result;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (extra > MAX_LENGTH - length) {
+            throw new RuntimeException("resulting string too large");
+        }
+        int required = length + extra;
+        if (required > bytes.length) {
+            int capacity = (int) Math.min(MAX_LENGTH, Math.max(required, bytes.length * 2L));
+            bytes = Arrays.copyOf(bytes, capacity);
+        }
+    }
+}
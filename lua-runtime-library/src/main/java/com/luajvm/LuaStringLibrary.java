@@ -0,0 +1,871 @@
+package com.luajvm;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Map;
+
+// The string table. Functions take their arguments as Varargs like the ones in LuaFunctions.
+// Patterns are compiled once and cached by LuaPattern; matching works on the subject's bytes and
+// captures are views into the subject, so no intermediate strings are created.
+final public class LuaStringLibrary {
+    private static final int MAX_FORMAT = 32;
+    private static final String FLAGS_ALL = "-+ #0";
+
+    static public Varargs len(Varargs args) {
+        return new LuaValue(checkString(args, 1, "len").length());
+    }
+
+    static public Varargs sub(Varargs args) {
+        LuaString s = checkString(args, 1, "sub");
+        int length = s.length();
+        long start = startPosition(LuaFunctions.checkInteger(args, 2, "sub"), length);
+        long end = endPosition(optInteger(args, 3, "sub", -1), length);
+        if (start > end) {
+            return new LuaValue(LuaString.EMPTY);
+        }
+        return new LuaValue(s.substring((int) start - 1, (int) end));
+    }
+
+    static public Varargs upper(Varargs args) {
+        LuaString s = checkString(args, 1, "upper");
+        byte[] result = s.toByteArray();
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] >= 'a' && result[i] <= 'z') {
+                result[i] -= 32;
+            }
+        }
+        return new LuaValue(LuaString.wrap(result));
+    }
+
+    static public Varargs lower(Varargs args) {
+        LuaString s = checkString(args, 1, "lower");
+        byte[] result = s.toByteArray();
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] >= 'A' && result[i] <= 'Z') {
+                result[i] += 32;
+            }
+        }
+        return new LuaValue(LuaString.wrap(result));
+    }
+
+    static public Varargs reverse(Varargs args) {
+        LuaString s = checkString(args, 1, "reverse");
+        int length = s.length();
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) s.byteAt(length - 1 - i);
+        }
+        return new LuaValue(LuaString.wrap(result));
+    }
+
+    static public Varargs rep(Varargs args) {
+        LuaString s = checkString(args, 1, "rep");
+        long count = LuaFunctions.checkInteger(args, 2, "rep");
+        LuaString separator = args.arg(3).isNil() ? LuaString.EMPTY : checkString(args, 3, "rep");
+        if (count <= 0) {
+            return new LuaValue(LuaString.EMPTY);
+        }
+        long unit = s.length() + (long) separator.length();
+        if (unit > 0 && count > (Integer.MAX_VALUE - 8) / unit) {
+            throw new RuntimeException("resulting string too large");
+        }
+        long total = unit * count - separator.length();
+        byte[] result = new byte[(int) total];
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (i > 0) {
+                separator.copyTo(0, result, position, separator.length());
+                position += separator.length();
+            }
+            s.copyTo(0, result, position, s.length());
+            position += s.length();
+        }
+        return new LuaValue(LuaString.wrap(result));
+    }
+
+    static public Varargs byteValues(Varargs args) {
+        LuaString s = checkString(args, 1, "byte");
+        int length = s.length();
+        long start = optInteger(args, 2, "byte", 1);
+        long first = startPosition(start, length);
+        // the end defaults to the start as given, so byte(s, 0) is empty
+        long last = endPosition(optInteger(args, 3, "byte", start), length);
+        if (first > last) {
+            return Varargs.NONE;
+        }
+        int count = (int) (last - first + 1);
+        if (count == 1) {
+            return new LuaValue(s.byteAt((int) first - 1));
+        }
+        LuaValue[] values = new LuaValue[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new LuaValue(s.byteAt((int) first - 1 + i));
+        }
+        return Varargs.varargsOf(values);
+    }
+
+    static public Varargs charValues(Varargs args) {
+        int count = args.narg();
+        byte[] result = new byte[count];
+        for (int i = 0; i < count; i++) {
+            long c = LuaFunctions.checkInteger(args, i + 1, "char");
+            if (c < 0 || c > 255) {
+                throw LuaFunctions.argumentError(i + 1, "char", "value out of range");
+            }
+            result[i] = (byte) c;
+        }
+        return new LuaValue(LuaString.wrap(result));
+    }
+
+    // find(s, pattern [, init [, plain]]): start and end of the match followed by the captures, or nil
+    static public Varargs find(Varargs args) {
+        return find(args, true);
+    }
+
+    // match(s, pattern [, init]): the captures of the first match, or the whole match, or nil
+    static public Varargs match(Varargs args) {
+        return find(args, false);
+    }
+
+    // gmatch(s, pattern [, init]): iterator over the captures of successive matches
+    static public Varargs gmatch(Varargs args) {
+        LuaString s = checkString(args, 1, "gmatch");
+        LuaString pattern = checkString(args, 2, "gmatch");
+        long init = startPosition(optInteger(args, 3, "gmatch", 1), s.length()) - 1;
+        // a leading '^' is no anchor here but matches itself
+        if (pattern.length() > 0 && pattern.byteAt(0) == '^') {
+            pattern = new LuaStringBuffer(pattern.length() + 1).append('%').append(pattern).toLuaString();
+        }
+        LuaPattern.Matcher matcher = LuaPattern.compile(pattern).matcher(s);
+        int length = s.length();
+        return new LuaValue(new LuaFunction() {
+            private int position = (int) Math.min(init, length + 1);
+            private int lastMatch = -1;
+
+            @Override
+            public Varargs invoke(Varargs ignored) {
+                for (int start = position; start <= length; start++) {
+                    int end = matcher.match(start);
+                    if (end != -1 && end != lastMatch) {
+                        position = lastMatch = end;
+                        return matcher.captures(start, end, true);
+                    }
+                }
+                position = length + 1;
+                return LuaValue.NIL_VALUE;
+            }
+        });
+    }
+
+    // gsub(s, pattern, replacement [, n]): the string with matches replaced, and the number of matches
+    static public Varargs gsub(Varargs args) {
+        LuaString s = checkString(args, 1, "gsub");
+        LuaString pattern = checkString(args, 2, "gsub");
+        LuaValue replacement = args.arg(3);
+        if (!(replacement.isNumber() || replacement.isStringValue() || replacement.isTableValue() || replacement.isFunctionValue())) {
+            throw LuaFunctions.argumentError(3, "gsub", "string/function/table expected, got " + LuaFunctions.typeName(args, 3));
+        }
+        int length = s.length();
+        long maxCount = optInteger(args, 4, "gsub", length + 1L);
+        LuaString replacementString = replacement.isStringValue() || replacement.isNumber() ? checkString(args, 3, "gsub") : null;
+        LuaPattern compiled = LuaPattern.compile(pattern);
+        LuaPattern.Matcher matcher = compiled.matcher(s);
+        LuaStringBuffer result = null;
+        int position = 0;
+        int copied = 0;
+        int lastMatch = -1;
+        long count = 0;
+        while (count < maxCount) {
+            int end = matcher.match(position);
+            if (end != -1 && end != lastMatch) {
+                count++;
+                if (result == null) {
+                    result = new LuaStringBuffer(length + 16);
+                }
+                result.append(s, copied, position);
+                addReplacement(result, matcher, s, position, end, replacement, replacementString);
+                position = copied = lastMatch = end;
+            } else if (position < length) {
+                position++;
+            } else {
+                break;
+            }
+            if (compiled.isAnchored()) {
+                break;
+            }
+        }
+        if (result == null) {
+            return Varargs.varargsOf(new LuaValue(s), new LuaValue(0));
+        }
+        result.append(s, copied, length);
+        return Varargs.varargsOf(new LuaValue(result.toLuaString()), new LuaValue(count));
+    }
+
+    // format(fmt, ...) with the conversions of C's printf that Lua supports, plus %q
+    static public Varargs format(Varargs args) {
+        LuaString format = checkString(args, 1, "format");
+        int length = format.length();
+        LuaStringBuffer out = new LuaStringBuffer(length + 16);
+        int argument = 1;
+        int i = 0;
+        while (i < length) {
+            int c = format.byteAt(i++);
+            if (c != '%') {
+                out.append(c);
+                continue;
+            }
+            if (i < length && format.byteAt(i) == '%') {
+                out.append('%');
+                i++;
+                continue;
+            }
+            int specStart = i;
+            while (i < length && (FLAGS_ALL.indexOf(format.byteAt(i)) >= 0 || isDigit(format.byteAt(i)) || format.byteAt(i) == '.')) {
+                i++;
+            }
+            if (i - specStart + 1 >= MAX_FORMAT - 10) {
+                throw new RuntimeException("invalid format string to 'format'");
+            }
+            int conversion = i < length ? format.byteAt(i++) : 0;
+            String spec = format.substring(specStart, i).toString();
+            argument++;
+            switch (conversion) {
+                case 'c' -> {
+                    Spec parsed = Spec.parse(spec, "-", false);
+                    byte[] single = {(byte) LuaFunctions.checkInteger(args, argument, "format")};
+                    pad(out, "", LuaString.wrap(single), parsed);
+                }
+                case 'd', 'i' -> formatInteger(out, LuaFunctions.checkInteger(args, argument, "format"), (char) conversion, Spec.parse(spec, "-+ 0", true));
+                case 'u' -> formatInteger(out, LuaFunctions.checkInteger(args, argument, "format"), (char) conversion, Spec.parse(spec, "-0", true));
+                case 'o', 'x', 'X' -> formatInteger(out, LuaFunctions.checkInteger(args, argument, "format"), (char) conversion, Spec.parse(spec, "-#0", true));
+                case 'a', 'A', 'e', 'E', 'f', 'F', 'g', 'G' ->
+                        formatReal(out, checkNumber(args, argument, "format"), (char) conversion, Spec.parse(spec, FLAGS_ALL, true));
+                case 'p' -> {
+                    Spec parsed = Spec.parse(spec, "-", false);
+                    LuaValue value = checkValue(args, argument, "format");
+                    String pointer = LuaWeakStorage.isCollectable(value) ? LuaFunctions.address(value) : "(null)";
+                    pad(out, "", LuaString.valueOf(pointer), parsed);
+                }
+                case 'q' -> {
+                    if (!spec.equals("q")) {
+                        throw new RuntimeException("specifier '%q' cannot have modifiers");
+                    }
+                    addLiteral(out, checkValue(args, argument, "format"), argument);
+                }
+                case 's' -> {
+                    Spec parsed = Spec.parse(spec, "-", true);
+                    LuaString s = LuaFunctions.toStringValue(checkValue(args, argument, "format")).getLuaStringValue();
+                    if (parsed.precision >= 0 && parsed.precision < s.length()) {
+                        s = s.substring(0, parsed.precision);
+                    }
+                    pad(out, "", s, parsed);
+                }
+                default -> throw new RuntimeException("invalid conversion '%" + spec + "' to 'format'");
+            }
+        }
+        return new LuaValue(out.toLuaString());
+    }
+
+    // pack(fmt, v1, ...): the values in the binary form described by fmt
+    static public Varargs pack(Varargs args) {
+        LuaPackFormat format = new LuaPackFormat(checkString(args, 1, "pack"), "pack");
+        LuaStringBuffer out = new LuaStringBuffer(16);
+        int argument = 1;
+        while (format.next(out.length())) {
+            for (int i = 0; i < format.alignment; i++) {
+                out.append(0);
+            }
+            switch (format.kind) {
+                case signed -> {
+                    long value = LuaFunctions.checkInteger(args, ++argument, "pack");
+                    if (format.size < 8) {
+                        long limit = 1L << (format.size * 8 - 1);
+                        if (value < -limit || value >= limit) {
+                            throw LuaFunctions.argumentError(argument, "pack", "integer overflow");
+                        }
+                    }
+                    packInteger(out, value, format.little, format.size, value < 0);
+                }
+                case unsigned -> {
+                    long value = LuaFunctions.checkInteger(args, ++argument, "pack");
+                    if (format.size < 8 && Long.compareUnsigned(value, 1L << (format.size * 8)) >= 0) {
+                        throw LuaFunctions.argumentError(argument, "pack", "unsigned overflow");
+                    }
+                    packInteger(out, value, format.little, format.size, false);
+                }
+                case float32 -> packInteger(out, Float.floatToRawIntBits((float) checkNumber(args, ++argument, "pack")),
+                        format.little, 4, false);
+                case float64 -> packInteger(out, Double.doubleToRawLongBits(checkNumber(args, ++argument, "pack")),
+                        format.little, 8, false);
+                case chars -> {
+                    LuaString s = checkString(args, ++argument, "pack");
+                    if (s.length() > format.size) {
+                        throw LuaFunctions.argumentError(argument, "pack", "string longer than given size");
+                    }
+                    out.append(s);
+                    for (int i = s.length(); i < format.size; i++) {
+                        out.append(0);
+                    }
+                }
+                case string -> {
+                    LuaString s = checkString(args, ++argument, "pack");
+                    if (format.size < 8 && s.length() >= 1L << (format.size * 8)) {
+                        throw LuaFunctions.argumentError(argument, "pack", "string length does not fit in given size");
+                    }
+                    packInteger(out, s.length(), format.little, format.size, false);
+                    out.append(s);
+                }
+                case zeroString -> {
+                    LuaString s = checkString(args, ++argument, "pack");
+                    for (int i = 0; i < s.length(); i++) {
+                        if (s.byteAt(i) == 0) {
+                            throw LuaFunctions.argumentError(argument, "pack", "string contains zeros");
+                        }
+                    }
+                    out.append(s).append(0);
+                }
+                case padding -> out.append(0);
+                case align, nop -> {
+                }
+            }
+        }
+        return new LuaValue(out.toLuaString());
+    }
+
+    // packsize(fmt): the length of the strings pack returns for fmt, which must have no s or z options
+    static public Varargs packsize(Varargs args) {
+        LuaPackFormat format = new LuaPackFormat(checkString(args, 1, "packsize"), "packsize");
+        long total = 0;
+        while (format.next(total)) {
+            if (format.kind == LuaPackFormat.Kind.string || format.kind == LuaPackFormat.Kind.zeroString) {
+                throw LuaFunctions.argumentError(1, "packsize", "variable-length format");
+            }
+            long size = format.alignment + (long) format.size;
+            if (total > Integer.MAX_VALUE - size) {
+                throw LuaFunctions.argumentError(1, "packsize", "format result too large");
+            }
+            total += size;
+        }
+        return new LuaValue(total);
+    }
+
+    // unpack(fmt, s [, pos]): the values packed in s from pos on, followed by the position after them
+    static public Varargs unpack(Varargs args) {
+        LuaString formatString = checkString(args, 1, "unpack");
+        LuaPackFormat format = new LuaPackFormat(formatString, "unpack");
+        LuaString data = checkString(args, 2, "unpack");
+        int length = data.length();
+        long start = startPosition(optInteger(args, 3, "unpack", 1), length) - 1;
+        if (start > length) {
+            throw LuaFunctions.argumentError(3, "unpack", "initial position out of string");
+        }
+        int position = (int) start;
+        LuaValue[] values = new LuaValue[formatString.length() + 1];
+        int count = 0;
+        while (format.next(position)) {
+            if (format.alignment + (long) format.size > length - position) {
+                throw LuaFunctions.argumentError(2, "unpack", "data string too short");
+            }
+            position += format.alignment;
+            switch (format.kind) {
+                case signed, unsigned -> values[count++] = new LuaValue(unpackInteger(data, position, format.little,
+                        format.size, format.kind == LuaPackFormat.Kind.signed));
+                case float32 -> values[count++] = new LuaValue((double) Float.intBitsToFloat(
+                        (int) unpackInteger(data, position, format.little, 4, false)));
+                case float64 -> values[count++] = new LuaValue(Double.longBitsToDouble(
+                        unpackInteger(data, position, format.little, 8, false)));
+                case chars -> values[count++] = new LuaValue(data.substring(position, position + format.size));
+                case string -> {
+                    long size = unpackInteger(data, position, format.little, format.size, false);
+                    int begin = position + format.size;
+                    if (Long.compareUnsigned(size, length - begin) > 0) {
+                        throw LuaFunctions.argumentError(2, "unpack", "data string too short");
+                    }
+                    values[count++] = new LuaValue(data.substring(begin, begin + (int) size));
+                    position += (int) size;
+                }
+                case zeroString -> {
+                    int end = position;
+                    while (end < length && data.byteAt(end) != 0) {
+                        end++;
+                    }
+                    if (end == length) {
+                        throw LuaFunctions.argumentError(2, "unpack", "unfinished string for format 'z'");
+                    }
+                    values[count++] = new LuaValue(data.substring(position, end));
+                    position = end + 1;
+                }
+                case padding, align, nop -> {
+                }
+            }
+            position += format.size;
+        }
+        values[count++] = new LuaValue(position + 1);
+        return Varargs.varargsOf(values, 0, count);
+    }
+
+    // The string table: len, sub, upper, lower, rep, reverse, byte, char, find, match, gmatch, gsub, format,
+    // pack, packsize, unpack
+    static public LuaTable library() {
+        return new LuaTable(Map.ofEntries(
+                Map.entry(new LuaValue("len"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::len))),
+                Map.entry(new LuaValue("sub"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::sub))),
+                Map.entry(new LuaValue("upper"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::upper))),
+                Map.entry(new LuaValue("lower"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::lower))),
+                Map.entry(new LuaValue("rep"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::rep))),
+                Map.entry(new LuaValue("reverse"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::reverse))),
+                Map.entry(new LuaValue("byte"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::byteValues))),
+                Map.entry(new LuaValue("char"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::charValues))),
+                Map.entry(new LuaValue("find"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::find))),
+                Map.entry(new LuaValue("match"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::match))),
+                Map.entry(new LuaValue("gmatch"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::gmatch))),
+                Map.entry(new LuaValue("gsub"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::gsub))),
+                Map.entry(new LuaValue("format"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::format))),
+                Map.entry(new LuaValue("pack"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::pack))),
+                Map.entry(new LuaValue("packsize"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::packsize))),
+                Map.entry(new LuaValue("unpack"), new LuaValue(LuaFunction.variadic(LuaStringLibrary::unpack)))
+        ));
+    }
+
+    private static Varargs find(Varargs args, boolean find) {
+        String name = find ? "find" : "match";
+        LuaString s = checkString(args, 1, name);
+        LuaString pattern = checkString(args, 2, name);
+        int length = s.length();
+        long init = startPosition(optInteger(args, 3, name, 1), length) - 1;
+        if (init > length) {
+            return LuaValue.NIL_VALUE;
+        }
+        if (find && (LuaOps.isTrue(args.arg(4)) || LuaPattern.isPlain(pattern))) {
+            int index = indexOf(s, pattern, (int) init);
+            if (index < 0) {
+                return LuaValue.NIL_VALUE;
+            }
+            return Varargs.varargsOf(new LuaValue(index + 1), new LuaValue(index + pattern.length()));
+        }
+        LuaPattern compiled = LuaPattern.compile(pattern);
+        LuaPattern.Matcher matcher = compiled.matcher(s);
+        int start = (int) init;
+        do {
+            int end = matcher.match(start);
+            if (end != -1) {
+                if (find) {
+                    return Varargs.varargsOf(new LuaValue(start + 1),
+                            Varargs.varargsOf(new LuaValue(end), matcher.captures(start, end, false)));
+                }
+                return matcher.captures(start, end, true);
+            }
+        } while (start++ < length && !compiled.isAnchored());
+        return LuaValue.NIL_VALUE;
+    }
+
+    private static int indexOf(LuaString s, LuaString text, int from) {
+        int count = text.length();
+        if (count == 0) {
+            return from;
+        }
+        byte[] bytes = s.bytes;
+        byte[] textBytes = text.bytes;
+        byte first = textBytes[text.offset];
+        int last = s.offset + s.length() - count;
+        for (int i = s.offset + from; i <= last; i++) {
+            if (bytes[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < count && bytes[i + j] == textBytes[text.offset + j]) {
+                j++;
+            }
+            if (j == count) {
+                return i - s.offset;
+            }
+        }
+        return -1;
+    }
+
+    private static void addReplacement(LuaStringBuffer out, LuaPattern.Matcher matcher, LuaString s, int start, int end,
+                                       LuaValue replacement, LuaString replacementString) {
+        if (replacementString != null) {
+            int length = replacementString.length();
+            for (int i = 0; i < length; i++) {
+                int c = replacementString.byteAt(i);
+                if (c != '%') {
+                    out.append(c);
+                    continue;
+                }
+                i++;
+                int next = i < length ? replacementString.byteAt(i) : -1;
+                if (next == '%') {
+                    out.append('%');
+                } else if (next == '0') {
+                    out.append(s, start, end);
+                } else if (next >= '1' && next <= '9') {
+                    LuaValue capture = matcher.capture(next - '1', start, end);
+                    out.append(capture.isStringValue() ? capture.getLuaStringValue() : LuaMetatable.numberToString(capture));
+                } else {
+                    throw new RuntimeException("invalid use of '%' in replacement string");
+                }
+            }
+            return;
+        }
+        LuaValue value;
+        if (replacement.isTableValue()) {
+            value = LuaOps.index(replacement, matcher.capture(0, start, end));
+        } else {
+            value = LuaOps.call(replacement, matcher.captures(start, end, true)).arg1();
+        }
+        if (!LuaOps.isTrue(value)) {
+            out.append(s, start, end);
+        } else if (value.isStringValue()) {
+            out.append(value.getLuaStringValue());
+        } else if (value.isNumber()) {
+            out.append(LuaMetatable.numberToString(value));
+        } else {
+            throw new RuntimeException("invalid replacement value (a " + value.getTypeString() + ")");
+        }
+    }
+
+    private static void formatInteger(LuaStringBuffer out, long value, char conversion, Spec spec) {
+        String digits = switch (conversion) {
+            case 'o' -> Long.toOctalString(value);
+            case 'x' -> Long.toHexString(value);
+            case 'X' -> Long.toHexString(value).toUpperCase();
+            case 'u' -> Long.toUnsignedString(value);
+            default -> value < 0 ? Long.toString(value).substring(1) : Long.toString(value);
+        };
+        if (spec.precision == 0 && value == 0) {
+            digits = "";
+        } else if (spec.precision > digits.length()) {
+            digits = "0".repeat(spec.precision - digits.length()) + digits;
+        }
+        String prefix = "";
+        if (conversion == 'd' || conversion == 'i') {
+            prefix = value < 0 ? "-" : spec.plus ? "+" : spec.space ? " " : "";
+        } else if (spec.alternate) {
+            if (conversion == 'o' && !digits.startsWith("0")) {
+                digits = "0" + digits;
+            } else if (conversion != 'o' && value != 0) {
+                prefix = conversion == 'x' ? "0x" : "0X";
+            }
+        }
+        pad(out, prefix, digits, spec.precision < 0 && spec.zero, spec);
+    }
+
+    private static void formatReal(LuaStringBuffer out, double value, char conversion, Spec spec) {
+        boolean upper = Character.isUpperCase(conversion);
+        boolean negative = (Double.doubleToRawLongBits(value) < 0) && !Double.isNaN(value);
+        String sign = negative ? "-" : spec.plus ? "+" : spec.space ? " " : "";
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            String text = Double.isNaN(value) ? "nan" : "inf";
+            pad(out, sign, upper ? text.toUpperCase() : text, false, spec);
+            return;
+        }
+        double magnitude = Math.abs(value);
+        String body;
+        String prefix = sign;
+        switch (Character.toLowerCase(conversion)) {
+            case 'a' -> {
+                prefix = sign + (upper ? "0X" : "0x");
+                body = hexBody(magnitude, spec.precision, spec.alternate);
+            }
+            case 'e' -> body = exponential(magnitude, spec.precision < 0 ? 6 : spec.precision, spec.alternate);
+            case 'f' -> body = fixed(magnitude, spec.precision < 0 ? 6 : spec.precision, spec.alternate);
+            default -> body = general(magnitude, spec.precision < 0 ? 6 : Math.max(spec.precision, 1), spec.alternate);
+        }
+        pad(out, prefix, upper ? body.toUpperCase() : body, spec.zero, spec);
+    }
+
+    private static String fixed(double magnitude, int precision, boolean alternate) {
+        String text = new BigDecimal(magnitude).setScale(precision, RoundingMode.HALF_EVEN).toPlainString();
+        return precision == 0 && alternate ? text + "." : text;
+    }
+
+    private static String exponential(double magnitude, int precision, boolean alternate) {
+        String digits;
+        int exponent;
+        if (magnitude == 0) {
+            digits = "0".repeat(precision + 1);
+            exponent = 0;
+        } else {
+            BigDecimal rounded = new BigDecimal(magnitude).round(new MathContext(precision + 1, RoundingMode.HALF_EVEN));
+            String unscaled = rounded.unscaledValue().toString();
+            exponent = unscaled.length() - 1 - rounded.scale();
+            digits = unscaled.length() > precision + 1
+                    ? unscaled.substring(0, precision + 1)
+                    : unscaled + "0".repeat(precision + 1 - unscaled.length());
+        }
+        StringBuilder result = new StringBuilder(precision + 8).append(digits.charAt(0));
+        if (precision > 0 || alternate) {
+            result.append('.').append(digits, 1, digits.length());
+        }
+        result.append(exponent < 0 ? "e-" : "e+");
+        int absolute = Math.abs(exponent);
+        if (absolute < 10) {
+            result.append('0');
+        }
+        return result.append(absolute).toString();
+    }
+
+    // %g: %e or %f depending on the exponent, without trailing zeros unless '#' is given
+    private static String general(double magnitude, int precision, boolean alternate) {
+        int exponent = 0;
+        if (magnitude != 0) {
+            BigDecimal rounded = new BigDecimal(magnitude).round(new MathContext(precision, RoundingMode.HALF_EVEN));
+            exponent = rounded.precision() - 1 - rounded.scale();
+        }
+        if (exponent >= -4 && exponent < precision) {
+            String text = fixed(magnitude, precision - 1 - exponent, alternate);
+            return alternate ? text : stripZeros(text);
+        }
+        String text = exponential(magnitude, precision - 1, alternate);
+        if (alternate) {
+            return text;
+        }
+        int e = text.indexOf('e');
+        return stripZeros(text.substring(0, e)) + text.substring(e);
+    }
+
+    private static String stripZeros(String text) {
+        if (text.indexOf('.') < 0) {
+            return text;
+        }
+        int end = text.length();
+        while (text.charAt(end - 1) == '0') {
+            end--;
+        }
+        if (text.charAt(end - 1) == '.') {
+            end--;
+        }
+        return text.substring(0, end);
+    }
+
+    // %a without the "0x" prefix, e.g. 1.8p+1 for 3.0
+    private static String hexBody(double magnitude, int precision, boolean alternate) {
+        if (magnitude == 0) {
+            String zeros = precision > 0 ? "." + "0".repeat(precision) : alternate ? "." : "";
+            return "0" + zeros + "p+0";
+        }
+        long bits = Double.doubleToRawLongBits(magnitude);
+        int exponent = (int) (bits >>> 52) - 1023;
+        long mantissa = bits & 0xFFFFFFFFFFFFFL;
+        long lead = 1;
+        if (exponent == -1023) {
+            lead = 0;
+            exponent = -1022;
+        }
+        int digits = 13;
+        if (precision >= 0 && precision < 13) {
+            int dropped = (13 - precision) * 4;
+            long full = (lead << 52) | mantissa;
+            long half = 1L << (dropped - 1);
+            long remainder = full & ((1L << dropped) - 1);
+            full >>>= dropped;
+            if (remainder > half || (remainder == half && (full & 1) != 0)) {
+                full++;
+            }
+            lead = full >>> (precision * 4);
+            mantissa = full & ((1L << (precision * 4)) - 1);
+            digits = precision;
+        }
+        String fraction = digits == 0 ? "" : String.format("%0" + digits + "x", mantissa);
+        if (precision < 0) {
+            int end = fraction.length();
+            while (end > 0 && fraction.charAt(end - 1) == '0') {
+                end--;
+            }
+            fraction = fraction.substring(0, end);
+        } else if (precision > 13) {
+            fraction += "0".repeat(precision - 13);
+        }
+        String point = !fraction.isEmpty() || alternate ? "." : "";
+        return Long.toHexString(lead) + point + fraction + "p" + (exponent < 0 ? "" : "+") + exponent;
+    }
+
+    private static void addLiteral(LuaStringBuffer out, LuaValue value, int argument) {
+        switch (value.getType()) {
+            case string -> {
+                LuaString s = value.getLuaStringValue();
+                int length = s.length();
+                out.append('"');
+                for (int i = 0; i < length; i++) {
+                    int c = s.byteAt(i);
+                    if (c == '"' || c == '\\' || c == '\n') {
+                        out.append('\\').append(c);
+                    } else if (c == 0 || c < 32 || c == 127) {
+                        boolean digitFollows = i + 1 < length && isDigit(s.byteAt(i + 1));
+                        out.append(digitFollows ? String.format("\\%03d", c) : "\\" + c);
+                    } else {
+                        out.append(c);
+                    }
+                }
+                out.append('"');
+            }
+            case integer -> {
+                long integer = value.getIntegerValue();
+                out.append(integer == Long.MIN_VALUE ? "0x8000000000000000" : Long.toString(integer));
+            }
+            case real -> {
+                double real = value.getRealValue();
+                if (real == Double.POSITIVE_INFINITY) {
+                    out.append("1e9999");
+                } else if (real == Double.NEGATIVE_INFINITY) {
+                    out.append("-1e9999");
+                } else if (Double.isNaN(real)) {
+                    out.append("(0/0)");
+                } else {
+                    String sign = Double.doubleToRawLongBits(real) < 0 ? "-" : "";
+                    out.append(sign + "0x" + hexBody(Math.abs(real), -1, false));
+                }
+            }
+            case nil, bool -> out.append(LuaFunctions.toStringValue(value).getLuaStringValue());
+            default -> throw LuaFunctions.argumentError(argument, "format", "value has no literal form");
+        }
+    }
+
+    private static void pad(LuaStringBuffer out, String prefix, String body, boolean zeroPad, Spec spec) {
+        int padding = spec.width - prefix.length() - body.length();
+        if (padding <= 0) {
+            out.append(prefix).append(body);
+        } else if (spec.left) {
+            out.append(prefix).append(body).append(" ".repeat(padding));
+        } else if (zeroPad) {
+            out.append(prefix).append("0".repeat(padding)).append(body);
+        } else {
+            out.append(" ".repeat(padding)).append(prefix).append(body);
+        }
+    }
+
+    private static void pad(LuaStringBuffer out, String prefix, LuaString body, Spec spec) {
+        int padding = spec.width - prefix.length() - body.length();
+        if (padding > 0 && !spec.left) {
+            out.append(" ".repeat(padding));
+        }
+        out.append(prefix).append(body);
+        if (padding > 0 && spec.left) {
+            out.append(" ".repeat(padding));
+        }
+    }
+
+    // Flags, width and precision of one conversion; width and precision have at most two digits.
+    private record Spec(boolean left, boolean plus, boolean space, boolean alternate, boolean zero, int width, int precision) {
+        static Spec parse(String spec, String allowedFlags, boolean allowPrecision) {
+            int i = 0;
+            int end = spec.length() - 1;
+            while (i < end && allowedFlags.indexOf(spec.charAt(i)) >= 0) {
+                i++;
+            }
+            String flags = spec.substring(0, i);
+            int width = 0;
+            int precision = -1;
+            if (i < end && spec.charAt(i) != '0') {
+                int digitsStart = i;
+                while (i < end && i - digitsStart < 2 && isDigit(spec.charAt(i))) {
+                    i++;
+                }
+                if (i > digitsStart) {
+                    width = Integer.parseInt(spec.substring(digitsStart, i));
+                }
+                if (i < end && spec.charAt(i) == '.' && allowPrecision) {
+                    i++;
+                    digitsStart = i;
+                    while (i < end && i - digitsStart < 2 && isDigit(spec.charAt(i))) {
+                        i++;
+                    }
+                    precision = i > digitsStart ? Integer.parseInt(spec.substring(digitsStart, i)) : 0;
+                }
+            }
+            if (i != end || !Character.isLetter(spec.charAt(end))) {
+                throw new RuntimeException("invalid conversion '%" + spec + "' to 'format'");
+            }
+            return new Spec(flags.indexOf('-') >= 0, flags.indexOf('+') >= 0, flags.indexOf(' ') >= 0,
+                    flags.indexOf('#') >= 0, flags.indexOf('0') >= 0 && flags.indexOf('-') < 0, width, precision);
+        }
+    }
+
+    // size bytes of value, sign-extended past the eighth
+    private static void packInteger(LuaStringBuffer out, long value, boolean little, int size, boolean negative) {
+        for (int j = 0; j < size; j++) {
+            int i = little ? j : size - 1 - j;
+            out.append(i < 8 ? (int) (value >>> (i * 8)) : negative ? 0xFF : 0);
+        }
+    }
+
+    private static long unpackInteger(LuaString data, int position, boolean little, int size, boolean signed) {
+        long result = 0;
+        int limit = Math.min(size, 8);
+        for (int i = limit - 1; i >= 0; i--) {
+            result = (result << 8) | data.byteAt(position + (little ? i : size - 1 - i));
+        }
+        if (size < 8) {
+            if (signed) {
+                long mask = 1L << (size * 8 - 1);
+                result = (result ^ mask) - mask;
+            }
+        } else if (size > 8) {
+            int extension = signed && result < 0 ? 0xFF : 0;
+            for (int i = limit; i < size; i++) {
+                if (data.byteAt(position + (little ? i : size - 1 - i)) != extension) {
+                    throw new RuntimeException(size + "-byte integer does not fit into Lua Integer");
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // position as in string.sub's first argument: negative counts from the end, clamped to 1
+    private static long startPosition(long position, int length) {
+        if (position > 0) {
+            return position;
+        } else if (position == 0 || position < -(long) length) {
+            return 1;
+        }
+        return length + position + 1;
+    }
+
+    // position as in string.sub's second argument: clamped to [0, length]
+    private static long endPosition(long position, int length) {
+        if (position > length) {
+            return length;
+        } else if (position >= 0) {
+            return position;
+        } else if (position < -(long) length) {
+            return 0;
+        }
+        return length + position + 1;
+    }
+
+    private static LuaValue checkValue(Varargs args, int index, String name) {
+        if (index > args.narg()) {
+            throw LuaFunctions.argumentError(index, name, "no value");
+        }
+        return args.arg(index);
+    }
+
+    private static LuaString checkString(Varargs args, int index, String name) {
+        LuaValue value = args.arg(index);
+        if (value.isStringValue()) {
+            return value.getLuaStringValue();
+        }
+        if (value.isNumber()) {
+            return LuaMetatable.numberToString(value);
+        }
+        throw LuaFunctions.argumentError(index, name, "string expected, got " + LuaFunctions.typeName(args, index));
+    }
+
+    private static double checkNumber(Varargs args, int index, String name) {
+        LuaValue number = LuaFunctions.toNumberValue(args.arg(index));
+        if (number.isNil()) {
+            throw LuaFunctions.argumentError(index, name, "number expected, got " + LuaFunctions.typeName(args, index));
+        }
+        return number.getRealValue();
+    }
+
+    private static long optInteger(Varargs args, int index, String name, long defaultValue) {
+        return args.arg(index).isNil() ? defaultValue : LuaFunctions.checkInteger(args, index, name);
+    }
+}
@@ -0,0 +1,1012 @@
+package com.luajvm;
+
+import java.util.Map;
+
+// Lua table with an array part for the keys 1..n and an open-addressing hash part for everything else.
+// Values returned by rawget belong to the table and must be copied before being mutated.
+// An array part of at least NUMERIC_MIN_SIZE values that are all integers or all floats is kept unboxed
+// in a LuaNumericArray; reads box a fresh value, and the table goes back to cells as soon as a nil
+// lands in the middle or a value of another type is stored.
+// A LuaTable is not thread-safe: share it between threads only after freeze(), or use LuaConcurrentTable.
+public class LuaTable {
+    private static final LuaValue[] EMPTY = new LuaValue[0];
+    private static final int MIN_HASH_CAPACITY = 4;
+    private static final int MAX_ARRAY_BITS = 30;
+    private static final int NUMERIC_MIN_SIZE = 1024;
+
+    // array[i] holds t[i + 1], null means nil
+    private LuaValue[] array = EMPTY;
+    // replaces the array part, which is then empty, while it is numeric
+    private LuaNumericArray numeric = null;
+    // dead entries keep their key and have a null value
+    private LuaValue[] hashKeys = EMPTY;
+    private LuaValue[] hashValues = EMPTY;
+    private int hashUsed = 0;
+    private int lengthHint = 0;
+    private LuaTable metatable = null;
+    // metamethod handlers by LuaMetamethod ordinal, built on first use and dropped when a "__" key is written
+    private LuaValue[] metamethods = null;
+    private int absentMetamethods = 0;
+    // bumped whenever a key appears or disappears, the metatable changes or a "__" key is written
+    private int version = 0;
+    private boolean frozen = false;
+    // set while the metatable has a __mode with 'k' or 'v'; then it holds every entry and the array
+    // and hash parts stay empty
+    private LuaWeakStorage weak = null;
+    // continues next() over weak entries, which have no slot positions
+    private Cursor weakCursor = null;
+
+    public LuaTable() {
+    }
+
+    public LuaTable(int arraySize, int hashSize) {
+        if (arraySize > 0) {
+            array = new LuaValue[arraySize];
+        }
+        if (hashSize > 0) {
+            int capacity = hashCapacityFor(hashSize);
+            hashKeys = new LuaValue[capacity];
+            hashValues = new LuaValue[capacity];
+        }
+    }
+
+    public LuaTable(Map<LuaValue, LuaValue> entries) {
+        this(0, entries.size());
+        for (Map.Entry<LuaValue, LuaValue> entry : entries.entrySet()) {
+            rawset(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public LuaTable getMetatable() {
+        return metatable;
+    }
+
+    public void setMetatable(LuaTable metatable) {
+        checkWritable();
+        this.metatable = metatable;
+        version++;
+        if (metatable != null && metatable.metamethods == null) {
+            metatable.buildMetamethods();
+        }
+        updateMode(metatable);
+    }
+
+    // The weakness of a table is taken from __mode when its metatable is set.
+    private void updateMode(LuaTable metatable) {
+        boolean weakKeys = false;
+        boolean weakValues = false;
+        LuaValue mode = metatable != null ? metatable.getMetamethod(LuaMetamethod.mode) : LuaValue.NIL_VALUE;
+        if (mode.isStringValue()) {
+            LuaString string = mode.getLuaStringValue();
+            for (int i = 0; i < string.length(); i++) {
+                weakKeys |= string.byteAt(i) == 'k';
+                weakValues |= string.byteAt(i) == 'v';
+            }
+        }
+        LuaWeakStorage current = weak;
+        if (current == null ? !weakKeys && !weakValues
+                : current.hasWeakKeys() == weakKeys && current.hasWeakValues() == weakValues) {
+            return;
+        }
+        if (numeric != null) {
+            deoptimize();
+        }
+        LuaWeakStorage storage = weakKeys || weakValues ? new LuaWeakStorage(weakKeys, weakValues) : null;
+        LuaValue[] oldArray = array;
+        LuaValue[] oldKeys = hashKeys;
+        LuaValue[] oldValues = hashValues;
+        array = EMPTY;
+        hashKeys = EMPTY;
+        hashValues = EMPTY;
+        hashUsed = 0;
+        lengthHint = 0;
+        weak = storage;
+        for (int i = 0; i < oldArray.length; i++) {
+            if (oldArray[i] != null) {
+                rawset(i + 1L, oldArray[i]);
+            }
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null && oldValues[i] != null) {
+                rawset(oldKeys[i], oldValues[i]);
+            }
+        }
+        if (current != null) {
+            current.forEach(this::rawset);
+        }
+    }
+
+    boolean isWeak() {
+        return weak != null;
+    }
+
+    public LuaValue getMetamethod(LuaMetamethod event) {
+        if ((absentMetamethods & event.mask) != 0) {
+            return LuaValue.NIL_VALUE;
+        }
+        LuaValue[] slots = metamethods;
+        if (slots == null) {
+            slots = buildMetamethods();
+        }
+        return slots[event.ordinal()];
+    }
+
+    private LuaValue[] buildMetamethods() {
+        LuaValue[] slots = new LuaValue[LuaMetamethod.VALUES.length];
+        int absent = 0;
+        for (LuaMetamethod event : LuaMetamethod.VALUES) {
+            LuaValue handler = rawget(event.keyValue);
+            if (handler.isNil()) {
+                absent |= event.mask;
+            }
+            slots[event.ordinal()] = handler;
+        }
+        metamethods = slots;
+        absentMetamethods = absent;
+        return slots;
+    }
+
+    private void invalidateMetamethods(LuaValue key) {
+        if (key.getLuaStringValue().isMetamethodName()) {
+            metamethods = null;
+            absentMetamethods = 0;
+            version++;
+        }
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    // Makes the table read-only. Everything a read could still update lazily (the metamethod cache,
+    // the length hint, ropes inside string values) is settled here, so a frozen table that is published
+    // safely (final field, volatile, concurrent collection, Thread.start) can be read from any thread
+    // without synchronization. Its metatable, if any, should be frozen too.
+    public void freeze() {
+        if (frozen) {
+            return;
+        }
+        if (weak != null) {
+            throw new RuntimeException("cannot freeze a weak table");
+        }
+        buildMetamethods();
+        for (LuaValue value : array) {
+            settle(value);
+        }
+        for (int i = 0; i < hashKeys.length; i++) {
+            settle(hashKeys[i]);
+            settle(hashValues[i]);
+        }
+        length();
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    void checkWritable() {
+        if (frozen) {
+            throw new RuntimeException("attempt to modify a frozen table");
+        }
+    }
+
+    private static void settle(LuaValue value) {
+        if (value != null && value.isStringValue()) {
+            value.getLuaStringValue();
+        }
+    }
+
+    public LuaValue rawget(LuaValue key) {
+        switch (key.getType()) {
+            case integer:
+                return rawget(key.getIntegerValue());
+            case real:
+                double real = key.getRealValue();
+                long integer = (long) real;
+                if (integer == real && real != 0x1p63) {
+                    return rawget(integer);
+                }
+                break;
+            case nil:
+                return LuaValue.NIL_VALUE;
+        }
+        return hashGet(key);
+    }
+
+    public LuaValue rawget(long key) {
+        LuaValue[] array = this.array;
+        if (key - 1 < array.length && key > 0) {
+            LuaValue value = array[(int) (key - 1)];
+            return value != null ? value : LuaValue.NIL_VALUE;
+        }
+        LuaNumericArray numeric = this.numeric;
+        if (numeric != null && key - 1 < numeric.size() && key > 0) {
+            return numeric.get((int) (key - 1));
+        }
+        if (hashUsed == 0) {
+            return weak == null ? LuaValue.NIL_VALUE : weakStorage().get(new LuaValue(key));
+        }
+        return hashGetInteger(key);
+    }
+
+    public LuaValue rawget(String key) {
+        return rawget(new LuaValue(key));
+    }
+
+    public void rawset(LuaValue key, LuaValue value) {
+        checkWritable();
+        switch (key.getType()) {
+            case integer:
+                rawset(key.getIntegerValue(), value);
+                return;
+            case real:
+                double real = key.getRealValue();
+                if (Double.isNaN(real)) {
+                    throw new RuntimeException("table index is NaN");
+                }
+                long integer = (long) real;
+                if (integer == real && real != 0x1p63) {
+                    rawset(integer, value);
+                    return;
+                }
+                break;
+            case nil:
+                throw new RuntimeException("table index is nil");
+            case string:
+                invalidateMetamethods(key);
+                break;
+        }
+        hashSet(key, value);
+    }
+
+    public void rawset(long key, LuaValue value) {
+        checkWritable();
+        LuaValue[] array = this.array;
+        if (key - 1 < array.length && key > 0) {
+            int index = (int) (key - 1);
+            if (value.isNil()) {
+                if (array[index] != null) {
+                    array[index] = null;
+                    version++;
+                }
+            } else if (array[index] == null) {
+                array[index] = new LuaValue(value);
+                version++;
+            } else {
+                array[index].setValue(value);
+            }
+            return;
+        }
+        if (numeric != null && key - 1 <= numeric.size() && key > 0) {
+            if (setNumeric((int) (key - 1), value)) {
+                return;
+            }
+            if (key - 1 < numeric.size() || !value.isNil()) {
+                deoptimize();
+                rawset(key, value);
+                return;
+            }
+        }
+        if (value.isNil()) {
+            if (hashUsed != 0 || weak != null) {
+                hashSet(new LuaValue(key), value);
+            }
+            return;
+        }
+        if (key == array.length + 1L && key <= 1 << MAX_ARRAY_BITS && weak == null
+                && (array.length == 0 || array[array.length - 1] != null)) {
+            growArray(Math.max(4, array.length * 2));
+            this.array[(int) (key - 1)] = new LuaValue(value);
+            version++;
+            if (key >= NUMERIC_MIN_SIZE && value.isNumber()) {
+                specialize((int) key);
+            }
+            return;
+        }
+        hashSet(new LuaValue(key), value);
+    }
+
+    // t[index + 1] = value on the numeric array part, index being at most its size; false when that
+    // needs cells or, for a nil just past the end, the hash part.
+    private boolean setNumeric(int index, LuaValue value) {
+        LuaNumericArray numeric = this.numeric;
+        int size = numeric.size();
+        if (value.isNil()) {
+            if (index != size - 1) {
+                return false;
+            }
+            numeric.removeLast();
+        } else if (!numeric.accepts(value)) {
+            return false;
+        } else if (index < size) {
+            numeric.set(index, value);
+        } else {
+            numeric.add(value);
+            if (hashUsed != 0) {
+                hashSet(new LuaValue(index + 1L), LuaValue.NIL_VALUE);
+            }
+        }
+        // reads hand out copies, so cached values must be looked up again
+        version++;
+        return true;
+    }
+
+    // Switches to a numeric array part if t[1..size] are all integers or all floats and nothing follows.
+    private void specialize(int size) {
+        LuaValue[] array = this.array;
+        for (int i = size; i < array.length; i++) {
+            if (array[i] != null) {
+                return;
+            }
+        }
+        LuaNumericArray numeric = LuaNumericArray.of(array, size, array.length);
+        if (numeric != null) {
+            this.numeric = numeric;
+            this.array = EMPTY;
+            lengthHint = 0;
+            version++;
+        }
+    }
+
+    // Back to cells for the array part.
+    private void deoptimize() {
+        array = numeric.toCells();
+        numeric = null;
+        lengthHint = 0;
+        version++;
+    }
+
+    public void rawset(String key, LuaValue value) {
+        rawset(new LuaValue(key), value);
+    }
+
+    // next(t, key): the entry after key, the array part first and then the hash part in slot order, or nil
+    // at the end. The position of key is found by its index or its hash slot, so a step costs O(1).
+    // Assigning existing fields during a traversal, nil included, is allowed: a removed hash entry keeps
+    // its key until the next rehash, which only adding a new key can cause.
+    public Varargs next(LuaValue key) {
+        if (weak != null) {
+            if (weakCursor == null) {
+                weakCursor = new Cursor(this);
+            }
+            return weakCursor.continueFrom(key);
+        }
+        LuaValue[] array = this.array;
+        LuaNumericArray numeric = this.numeric;
+        int arraySize = numeric != null ? numeric.size() : array.length;
+        int index = 0;
+        int slot = 0;
+        if (!key.isNil()) {
+            long position = arrayPosition(key);
+            if (position > 0 && position <= arraySize) {
+                index = (int) position;
+            } else {
+                slot = findSlot(key);
+                if (slot < 0) {
+                    throw new RuntimeException("invalid key to 'next'");
+                }
+                index = arraySize;
+                slot++;
+            }
+        }
+        if (numeric != null && index < arraySize) {
+            return Varargs.varargsOf(new LuaValue(index + 1L), numeric.get(index));
+        }
+        for (; index < array.length; index++) {
+            if (array[index] != null) {
+                return Varargs.varargsOf(new LuaValue(index + 1L), array[index]);
+            }
+        }
+        LuaValue[] keys = hashKeys;
+        LuaValue[] values = hashValues;
+        for (; slot < keys.length; slot++) {
+            if (keys[slot] != null && values[slot] != null) {
+                return Varargs.varargsOf(keys[slot], values[slot]);
+            }
+        }
+        return LuaValue.NIL_VALUE;
+    }
+
+    // Allocation-free traversal for compiled code:
+    //     LuaTable.Cursor cursor = table.cursor();
+    //     while (cursor.next()) { ... cursor.key() ... cursor.value() ... }
+    // The order and the rules for assignments during the traversal are those of next.
+    public Cursor cursor() {
+        return new Cursor(this);
+    }
+
+    // Moves the cursor to the following entry; false at the end.
+    boolean advance(Cursor cursor) {
+        if (weak != null) {
+            return weakStorage().advance(cursor);
+        }
+        LuaNumericArray numeric = this.numeric;
+        if (numeric != null && cursor.index < numeric.size()) {
+            numeric.get(cursor.index++, cursor.numericValue);
+            cursor.integerKey.setValue((long) cursor.index);
+            return cursor.found(cursor.integerKey, cursor.numericValue);
+        }
+        LuaValue[] array = this.array;
+        while (cursor.index < array.length) {
+            LuaValue value = array[cursor.index++];
+            if (value != null) {
+                cursor.integerKey.setValue((long) cursor.index);
+                return cursor.found(cursor.integerKey, value);
+            }
+        }
+        LuaValue[] keys = hashKeys;
+        LuaValue[] values = hashValues;
+        while (cursor.slot < keys.length) {
+            int slot = cursor.slot++;
+            if (keys[slot] != null && values[slot] != null) {
+                return cursor.found(keys[slot], values[slot]);
+            }
+        }
+        return cursor.found(null, null);
+    }
+
+    private static long arrayPosition(LuaValue key) {
+        if (key.isIntegerValue()) {
+            return key.getIntegerValue();
+        }
+        if (key.isRealValue()) {
+            double real = key.getRealValue();
+            long integer = (long) real;
+            if (integer == real && real != 0x1p63) {
+                return integer;
+            }
+        }
+        return 0;
+    }
+
+    // Position in a traversal of one table. key() and value() belong to the table or the cursor and stay
+    // valid until the next call of next(); they must not be mutated.
+    public static final class Cursor {
+        final LuaTable table;
+        // scratch key for entries of the array part
+        final LuaValue integerKey = new LuaValue();
+        // scratch value for entries of a numeric array part, which has no cells
+        final LuaValue numericValue = new LuaValue();
+        int index = 0;
+        int slot = 0;
+        // storage specific position, e.g. an iterator of a LuaConcurrentTable
+        Object state = null;
+        private LuaValue key = null;
+        private LuaValue value = null;
+
+        Cursor(LuaTable table) {
+            this.table = table;
+        }
+
+        public boolean next() {
+            return table.advance(this);
+        }
+
+        public LuaValue key() {
+            return key;
+        }
+
+        public LuaValue value() {
+            return value;
+        }
+
+        public void reset() {
+            index = 0;
+            slot = 0;
+            state = null;
+            key = null;
+            value = null;
+        }
+
+        boolean found(LuaValue key, LuaValue value) {
+            this.key = key;
+            this.value = value;
+            return key != null;
+        }
+
+        // next(t, key) for storages that can only be walked forward: continues this cursor when it
+        // stands on key, otherwise walks from the start up to key.
+        Varargs continueFrom(LuaValue key) {
+            if (key.isNil()) {
+                reset();
+            } else if (this.key == null || !this.key.equals(key)) {
+                reset();
+                do {
+                    if (!next()) {
+                        throw new RuntimeException("invalid key to 'next'");
+                    }
+                } while (!this.key.equals(key));
+            }
+            if (!next()) {
+                return LuaValue.NIL_VALUE;
+            }
+            return Varargs.varargsOf(this.key == integerKey ? new LuaValue(integerKey) : this.key,
+                    value == numericValue ? new LuaValue(numericValue) : value);
+        }
+    }
+
+    // Moves the cells of t[first..last] one slot up (distance 1) or down (distance -1) with a single
+    // arraycopy, as table.insert and table.remove do; the slot left behind becomes nil, except in a
+    // numeric part, which has no holes: there it keeps its value until the caller stores into it.
+    // Returns false without changing anything when the range is not in the array part.
+    boolean shiftArray(long first, long last, int distance) {
+        checkWritable();
+        long low = Math.min(first, first + distance);
+        long high = Math.max(last, last + distance);
+        if (weak != null || low < 1 || first > last) {
+            return false;
+        }
+        if (numeric != null) {
+            // the range must run to the end, so that the part stays free of holes
+            if (last != numeric.size()) {
+                return false;
+            }
+            if (distance > 0) {
+                numeric.insert((int) (first - 1));
+            } else {
+                numeric.remove((int) (first - 2));
+            }
+            version++;
+            return true;
+        }
+        if (high == array.length + 1L && high <= 1 << MAX_ARRAY_BITS) {
+            growArray(Math.max(4, array.length * 2));
+        }
+        if (high > array.length) {
+            return false;
+        }
+        int from = (int) (first - 1);
+        int count = (int) (last - first + 1);
+        System.arraycopy(array, from, array, from + distance, count);
+        array[distance > 0 ? from : from + count - 1] = null;
+        // cells now belong to other keys, so anything cached by key is stale
+        version++;
+        return true;
+    }
+
+    // table.move between array parts: target[to..] = t[first..last]. Values are copied into the
+    // target's cells instead of sharing cells, since a cell must belong to a single key. Returns false
+    // without changing anything when a range is not in the array part, or the target has none.
+    boolean moveArray(long first, long last, LuaTable target, long to) {
+        target.checkWritable();
+        long count = last - first + 1;
+        if (target instanceof LuaConcurrentTable || weak != null || target.weak != null || numeric != null || target.numeric != null
+                || first < 1 || last > array.length || to < 1
+                || to - 1 + count > 1 << MAX_ARRAY_BITS) {
+            return false;
+        }
+        if (to - 1 <= target.array.length && to - 1 + count > target.array.length) {
+            target.growArray((int) (to - 1 + count));
+        }
+        if (to - 1 + count > target.array.length) {
+            return false;
+        }
+        LuaValue[] source = array;
+        LuaValue[] destination = target.array;
+        int from = (int) (first - 1);
+        int into = (int) (to - 1);
+        int n = (int) count;
+        boolean backward = target == this && into > from;
+        boolean changed = false;
+        for (int k = 0; k < n; k++) {
+            int i = backward ? n - 1 - k : k;
+            LuaValue value = source[from + i];
+            LuaValue cell = destination[into + i];
+            if (value == null) {
+                if (cell != null) {
+                    destination[into + i] = null;
+                    changed = true;
+                }
+            } else if (cell == null) {
+                destination[into + i] = new LuaValue(value);
+                changed = true;
+            } else {
+                cell.setValue(value);
+            }
+        }
+        if (changed) {
+            target.version++;
+        }
+        return true;
+    }
+
+    // table.sort without a comparator when t[1..n] is exactly the numeric array part: sorts it in place.
+    boolean sortNumeric(long n) {
+        checkWritable();
+        if (numeric == null || numeric.size() != n || !numeric.sort()) {
+            return false;
+        }
+        version++;
+        return true;
+    }
+
+    // table.concat: joins t[first..last] into a single buffer sized up front.
+    public LuaString concat(LuaString separator, long first, long last) {
+        if (first > last) {
+            return LuaString.EMPTY;
+        }
+        if (last - first >= Integer.MAX_VALUE - 8 || last - first < 0) {
+            throw new RuntimeException("string length overflow");
+        }
+        LuaString[] pieces = new LuaString[(int) (last - first + 1)];
+        long total = (long) separator.length() * (pieces.length - 1);
+        for (int i = 0; i < pieces.length; i++) {
+            LuaValue value = rawget(first + i);
+            if (!value.isStringValue() && !value.isNumber()) {
+                throw new RuntimeException("invalid value (at index " + (first + i) + ") in table for 'concat'");
+            }
+            LuaString piece = LuaRope.toLuaString(LuaOps.concatPiece(value));
+            pieces[i] = piece;
+            total += piece.length();
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("string length overflow");
+        }
+        byte[] buffer = new byte[(int) total];
+        int position = 0;
+        for (int i = 0; i < pieces.length; i++) {
+            if (i > 0 && separator.length() > 0) {
+                separator.copyTo(0, buffer, position, separator.length());
+                position += separator.length();
+            }
+            LuaString piece = pieces[i];
+            piece.copyTo(0, buffer, position, piece.length());
+            position += piece.length();
+        }
+        return LuaString.wrap(buffer);
+    }
+
+    // Returns a border: an index n with t[n] ~= nil and t[n + 1] == nil, or 0 when t[1] is nil.
+    public long length() {
+        LuaNumericArray numeric = this.numeric;
+        if (numeric != null) {
+            long size = numeric.size();
+            return hashUsed == 0 || hashGetInteger(size + 1).isNil() ? size : hashSearchBorder(size);
+        }
+        LuaValue[] array = this.array;
+        int size = array.length;
+        int hint = lengthHint;
+        if (hint < size && (hint == 0 || array[hint - 1] != null) && array[hint] == null) {
+            return hint;
+        }
+        if (size > 0 && array[size - 1] == null) {
+            int low = 0;
+            int high = size;
+            if (hint < size && (hint == 0 || array[hint - 1] != null)) {
+                low = hint;
+            }
+            while (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                if (array[middle - 1] == null) {
+                    high = middle;
+                } else {
+                    low = middle;
+                }
+            }
+            lengthHint = low;
+            return low;
+        }
+        lengthHint = size;
+        if (weak != null) {
+            return weakStorage().get(new LuaValue(1)).isNil() ? 0 : searchBorder(this, 1);
+        }
+        if (hashUsed == 0 || hashGetInteger(size + 1L).isNil()) {
+            return size;
+        }
+        return hashSearchBorder(size);
+    }
+
+    // Unbounded search for a border above an index known to be present, through rawget.
+    static long searchBorder(LuaTable table, long present) {
+        long low = present;
+        long high = present + 1;
+        while (!table.rawget(high).isNil()) {
+            low = high;
+            if (high > Long.MAX_VALUE / 2) {
+                while (!table.rawget(low + 1).isNil()) {
+                    low++;
+                }
+                return low;
+            }
+            high *= 2;
+        }
+        while (high - low > 1) {
+            long middle = (low + high) >>> 1;
+            if (table.rawget(middle).isNil()) {
+                high = middle;
+            } else {
+                low = middle;
+            }
+        }
+        return low;
+    }
+
+    // Weak storage with collected entries removed first.
+    private LuaWeakStorage weakStorage() {
+        LuaWeakStorage storage = weak;
+        if (storage.expunge()) {
+            version++;
+        }
+        return storage;
+    }
+
+    private long hashSearchBorder(long present) {
+        long low = present;
+        long high = present + 1;
+        while (!hashGetInteger(high).isNil()) {
+            low = high;
+            if (high > Long.MAX_VALUE / 2) {
+                long border = low;
+                while (!hashGetInteger(border + 1).isNil()) {
+                    border++;
+                }
+                return border;
+            }
+            high *= 2;
+        }
+        while (high - low > 1) {
+            long middle = (low + high) >>> 1;
+            if (hashGetInteger(middle).isNil()) {
+                high = middle;
+            } else {
+                low = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashCapacityFor(int entries) {
+        int capacity = MIN_HASH_CAPACITY;
+        while (capacity * 3 / 4 < entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private LuaValue hashGet(LuaValue key) {
+        if (weak != null) {
+            return weakStorage().get(key);
+        }
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return LuaValue.NIL_VALUE;
+        }
+        LuaValue value = hashValues[slot];
+        return value != null ? value : LuaValue.NIL_VALUE;
+    }
+
+    private LuaValue hashGetInteger(long key) {
+        LuaValue[] keys = hashKeys;
+        if (keys.length == 0) {
+            return LuaValue.NIL_VALUE;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(Long.hashCode(key)) & mask;
+        LuaValue candidate;
+        while ((candidate = keys[slot]) != null) {
+            if (candidate.isIntegerValue() && candidate.getIntegerValue() == key) {
+                LuaValue value = hashValues[slot];
+                return value != null ? value : LuaValue.NIL_VALUE;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return LuaValue.NIL_VALUE;
+    }
+
+    private int findSlot(LuaValue key) {
+        LuaValue[] keys = hashKeys;
+        if (keys.length == 0) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        int slot = mix(key.hashCode()) & mask;
+        LuaValue candidate;
+        while ((candidate = keys[slot]) != null) {
+            if (candidate.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void hashSet(LuaValue key, LuaValue value) {
+        if (weak != null) {
+            weakStorage().set(key, value);
+            // weak entries are replaced rather than updated in place, so every write is a new version
+            version++;
+            return;
+        }
+        LuaValue[] keys = hashKeys;
+        int dead = -1;
+        if (keys.length != 0) {
+            int mask = keys.length - 1;
+            int slot = mix(key.hashCode()) & mask;
+            LuaValue candidate;
+            while ((candidate = keys[slot]) != null) {
+                if (candidate.equals(key)) {
+                    if (value.isNil()) {
+                        if (hashValues[slot] != null) {
+                            hashValues[slot] = null;
+                            version++;
+                        }
+                    } else if (hashValues[slot] == null) {
+                        hashValues[slot] = new LuaValue(value);
+                        version++;
+                    } else {
+                        hashValues[slot].setValue(value);
+                    }
+                    return;
+                }
+                if (dead < 0 && hashValues[slot] == null) {
+                    dead = slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        if (value.isNil()) {
+            return;
+        }
+        if (dead >= 0) {
+            hashKeys[dead] = new LuaValue(key);
+            hashValues[dead] = new LuaValue(value);
+            version++;
+            return;
+        }
+        if ((hashUsed + 1) > keys.length * 3 / 4) {
+            rehash(key);
+            rawset(key, value);
+            return;
+        }
+        insertNew(new LuaValue(key), new LuaValue(value));
+        version++;
+    }
+
+    private void insertNew(LuaValue key, LuaValue value) {
+        LuaValue[] keys = hashKeys;
+        int mask = keys.length - 1;
+        int slot = mix(key.hashCode()) & mask;
+        while (keys[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        hashValues[slot] = value;
+        hashUsed++;
+    }
+
+    private void growArray(int size) {
+        LuaInstrumentation.arrayResized();
+        LuaValue[] grown = new LuaValue[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        int oldSize = array.length;
+        array = grown;
+        if (hashUsed == 0) {
+            return;
+        }
+        // integer keys that now fall into the array part move out of the hash part
+        LuaValue[] keys = hashKeys;
+        LuaValue[] values = hashValues;
+        boolean moved = false;
+        for (int i = 0; i < keys.length; i++) {
+            LuaValue key = keys[i];
+            if (key != null && values[i] != null && key.isIntegerValue()) {
+                long index = key.getIntegerValue();
+                if (index > oldSize && index <= size) {
+                    grown[(int) (index - 1)] = values[i];
+                    values[i] = null;
+                    moved = true;
+                }
+            }
+        }
+        if (moved) {
+            rebuildHash(keys.length);
+        }
+    }
+
+    private static int ceilLog2(long value) {
+        return 64 - Long.numberOfLeadingZeros(value - 1);
+    }
+
+    // Picks the largest array size n (a power of two) such that more than n / 2 of the slots 1..n are in use,
+    // the same rule the reference implementation applies when a table is rehashed.
+    private void rehash(LuaValue extraKey) {
+        LuaInstrumentation.rehashed();
+        int[] counts = new int[MAX_ARRAY_BITS + 1];
+        int totalIntegers = 0;
+        int totalEntries = 0;
+        LuaValue[] array = this.array;
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] != null) {
+                counts[ceilLog2(i + 1)]++;
+                totalIntegers++;
+            }
+        }
+        LuaValue[] keys = hashKeys;
+        LuaValue[] values = hashValues;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && values[i] != null) {
+                totalEntries++;
+                totalIntegers += countIntegerKey(keys[i], counts);
+            }
+        }
+        totalEntries++;
+        totalIntegers += countIntegerKey(extraKey, counts);
+
+        int arraySize = 0;
+        int accumulated = 0;
+        int inArray = 0;
+        for (int bits = 0, twoToBits = 1; bits <= MAX_ARRAY_BITS && twoToBits / 2 < totalIntegers; bits++, twoToBits <<= 1) {
+            accumulated += counts[bits];
+            if (accumulated > twoToBits / 2) {
+                arraySize = twoToBits;
+                inArray = accumulated;
+            }
+        }
+        arraySize = numeric != null ? 0 : Math.max(arraySize, array.length);
+        inArray = numeric != null ? 0 : inArray;
+
+        int liveArray = 0;
+        for (LuaValue value : array) {
+            if (value != null) {
+                liveArray++;
+            }
+        }
+        int hashEntries = totalEntries + liveArray - inArray;
+        if (arraySize != array.length) {
+            LuaInstrumentation.arrayResized();
+            LuaValue[] grown = new LuaValue[arraySize];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            this.array = grown;
+        }
+        hashKeys = hashEntries > 0 ? new LuaValue[hashCapacityFor(hashEntries)] : EMPTY;
+        hashValues = hashEntries > 0 ? new LuaValue[hashKeys.length] : EMPTY;
+        hashUsed = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && values[i] != null) {
+                reinsert(keys[i], values[i]);
+            }
+        }
+    }
+
+    private static int countIntegerKey(LuaValue key, int[] counts) {
+        if (key.isIntegerValue()) {
+            long index = key.getIntegerValue();
+            if (index > 0 && index <= 1L << MAX_ARRAY_BITS) {
+                counts[ceilLog2(index)]++;
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private void rebuildHash(int capacity) {
+        LuaInstrumentation.rehashed();
+        LuaValue[] keys = hashKeys;
+        LuaValue[] values = hashValues;
+        hashKeys = new LuaValue[capacity];
+        hashValues = new LuaValue[capacity];
+        hashUsed = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && values[i] != null) {
+                reinsert(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void reinsert(LuaValue key, LuaValue value) {
+        if (key.isIntegerValue()) {
+            long index = key.getIntegerValue();
+            if (index > 0 && index <= array.length) {
+                array[(int) (index - 1)] = value;
+                return;
+            }
+        }
+        insertNew(key, value);
+    }
+}
@@ -0,0 +1,419 @@
+package com.luajvm;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// The table table. Like Lua 5.4 the functions go through __index, __newindex and __len; a table
+// without __index and __newindex is accessed raw, which lets insert, remove and move work on its
+// array part in bulk.
+// sort reads the elements once into a Java array, or sorts a numeric array part in place. Without a
+// comparator, integers, floats and strings are sorted as primitive keys, in parallel on the fork-join
+// pool for large arrays; anything else is sorted with the reference implementation's quicksort, so
+// comparators and __lt see the same calls.
+final public class LuaTableLibrary {
+    private static final int PARALLEL_SORT_THRESHOLD = 1 << 14;
+    private static final int RANDOM_PIVOT_LIMIT = 100;
+    private static final LuaValue N = new LuaValue("n");
+
+    // insert(list, [pos,] value)
+    static public Varargs insert(Varargs args) {
+        LuaValue list = checkTable(args, "insert");
+        LuaTable table = list.getTableValue();
+        boolean raw = isRaw(table);
+        long end = length(list) + 1;
+        long position;
+        switch (args.narg()) {
+            case 2 -> position = end;
+            case 3 -> {
+                position = LuaFunctions.checkInteger(args, 2, "insert");
+                if (Long.compareUnsigned(position - 1, end) >= 0) {
+                    throw LuaFunctions.argumentError(2, "insert", "position out of bounds");
+                }
+                if (!(raw && position < end && table.shiftArray(position, end - 1, 1))) {
+                    for (long i = end; i > position; i--) {
+                        set(list, raw, i, get(list, raw, i - 1));
+                    }
+                }
+            }
+            default -> throw new RuntimeException("wrong number of arguments to 'insert'");
+        }
+        set(list, raw, position, args.arg(args.narg()));
+        return Varargs.NONE;
+    }
+
+    // remove(list [, pos]): removes and returns list[pos], pos defaulting to #list
+    static public Varargs remove(Varargs args) {
+        LuaValue list = checkTable(args, "remove");
+        LuaTable table = list.getTableValue();
+        boolean raw = isRaw(table);
+        long size = length(list);
+        long position = args.arg(2).isNil() ? size : LuaFunctions.checkInteger(args, 2, "remove");
+        if (position != size && Long.compareUnsigned(position - 1, size) > 0) {
+            throw LuaFunctions.argumentError(2, "remove", "position out of bounds");
+        }
+        LuaValue result = new LuaValue(get(list, raw, position));
+        if (raw && position >= 1 && position < size && table.shiftArray(position + 1, size, -1)) {
+            return result;
+        }
+        for (; position < size; position++) {
+            set(list, raw, position, get(list, raw, position + 1));
+        }
+        set(list, raw, position, LuaValue.NIL_VALUE);
+        return result;
+    }
+
+    // move(a1, f, e, t [, a2]): a2[t..] = a1[f..e], returns a2
+    static public Varargs move(Varargs args) {
+        LuaValue source = checkTable(args, "move");
+        long first = LuaFunctions.checkInteger(args, 2, "move");
+        long last = LuaFunctions.checkInteger(args, 3, "move");
+        long to = LuaFunctions.checkInteger(args, 4, "move");
+        LuaValue target = args.narg() >= 5 && !args.arg(5).isNil() ? checkTable(args, 5, "move") : source;
+        if (last >= first) {
+            if (!(first > 0 || last < Long.MAX_VALUE + first)) {
+                throw LuaFunctions.argumentError(3, "move", "too many elements to move");
+            }
+            long count = last - first;
+            if (to > Long.MAX_VALUE - count) {
+                throw LuaFunctions.argumentError(4, "move", "destination wrap around");
+            }
+            LuaTable sourceTable = source.getTableValue();
+            LuaTable targetTable = target.getTableValue();
+            boolean sourceRaw = isRaw(sourceTable);
+            boolean targetRaw = isRaw(targetTable);
+            if (sourceRaw && targetRaw && sourceTable.moveArray(first, last, targetTable, to)) {
+                return target;
+            }
+            if (to > last || to <= first || sourceTable != targetTable) {
+                for (long i = 0; i <= count; i++) {
+                    set(target, targetRaw, to + i, get(source, sourceRaw, first + i));
+                }
+            } else {
+                for (long i = count; i >= 0; i--) {
+                    set(target, targetRaw, to + i, get(source, sourceRaw, first + i));
+                }
+            }
+        }
+        return target;
+    }
+
+    // concat(list [, sep [, i [, j]]])
+    static public Varargs concat(Varargs args) {
+        LuaValue list = checkTable(args, "concat");
+        LuaTable table = list.getTableValue();
+        LuaValue separatorValue = args.arg(2);
+        LuaString separator = LuaString.EMPTY;
+        if (!separatorValue.isNil()) {
+            if (!separatorValue.isStringValue() && !separatorValue.isNumber()) {
+                throw LuaFunctions.argumentError(2, "concat", "string expected, got " + LuaFunctions.typeName(args, 2));
+            }
+            separator = LuaRope.toLuaString(LuaOps.concatPiece(separatorValue));
+        }
+        long first = args.arg(3).isNil() ? 1 : LuaFunctions.checkInteger(args, 3, "concat");
+        long last = args.arg(4).isNil() ? length(list) : LuaFunctions.checkInteger(args, 4, "concat");
+        if (isRaw(table)) {
+            return new LuaValue(table.concat(separator, first, last));
+        }
+        LuaStringBuffer buffer = new LuaStringBuffer(16);
+        for (long i = first; i <= last; i++) {
+            LuaValue value = LuaOps.index(list, new LuaValue(i));
+            if (!value.isStringValue() && !value.isNumber()) {
+                throw new RuntimeException("invalid value (at index " + i + ") in table for 'concat'");
+            }
+            buffer.append(LuaRope.toLuaString(LuaOps.concatPiece(value)));
+            if (i != last) {
+                buffer.append(separator);
+            }
+            if (i == Long.MAX_VALUE) {
+                break;
+            }
+        }
+        return new LuaValue(buffer.toLuaString());
+    }
+
+    // pack(...): the arguments in a new table, with their count in field n
+    static public Varargs pack(Varargs args) {
+        int count = args.narg();
+        LuaTable table = new LuaTable(count, 1);
+        for (int i = 1; i <= count; i++) {
+            table.rawset(i, args.arg(i));
+        }
+        table.rawset(N, new LuaValue(count));
+        return new LuaValue(table);
+    }
+
+    // unpack(list [, i [, j]]): list[i], ..., list[j]
+    static public Varargs unpack(Varargs args) {
+        LuaValue list = args.arg1();
+        long first = args.arg(2).isNil() ? 1 : LuaFunctions.checkInteger(args, 2, "unpack");
+        long last = args.arg(3).isNil() ? length(list) : LuaFunctions.checkInteger(args, 3, "unpack");
+        if (first > last) {
+            return Varargs.NONE;
+        }
+        long count = last - first + 1;
+        if (count <= 0 || count >= Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("too many results to unpack");
+        }
+        boolean raw = list.isTableValue() && isRaw(list.getTableValue());
+        LuaValue[] values = new LuaValue[(int) count];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = get(list, raw, first + i);
+        }
+        return Varargs.varargsOf(values);
+    }
+
+    // sort(list [, comp])
+    static public Varargs sort(Varargs args) {
+        LuaValue list = checkTable(args, "sort");
+        long n = length(list);
+        if (n <= 1) {
+            return Varargs.NONE;
+        }
+        if (n >= Integer.MAX_VALUE) {
+            throw LuaFunctions.argumentError(1, "sort", "array too big");
+        }
+        LuaValue comparator = args.arg(2);
+        if (!comparator.isNil() && !comparator.isFunctionValue()) {
+            throw LuaFunctions.argumentError(2, "sort", "function expected, got " + LuaFunctions.typeName(args, 2));
+        }
+        boolean raw = isRaw(list.getTableValue());
+        if (comparator.isNil() && raw && list.getTableValue().sortNumeric(n)) {
+            return Varargs.NONE;
+        }
+        LuaValue[] values = new LuaValue[(int) n];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = get(list, raw, i + 1);
+        }
+        if (comparator.isNil() && sortPrimitives(list, raw, values)) {
+            return Varargs.NONE;
+        }
+        // the values are still the table's cells; copy them before the table is rewritten
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new LuaValue(values[i]);
+        }
+        if (comparator.isNil()) {
+            quicksort(values, 0, values.length - 1, LuaOps::lessThan, 0);
+        } else {
+            LuaFunction function = comparator.getFunctionValue();
+            quicksort(values, 0, values.length - 1, (a, b) -> LuaOps.isTrue(function.call(a, b)), 0);
+        }
+        for (int i = 0; i < values.length; i++) {
+            set(list, raw, i + 1, values[i]);
+        }
+        return Varargs.NONE;
+    }
+
+    // The table table: insert, remove, move, concat, pack, unpack, sort
+    static public LuaTable library() {
+        return new LuaTable(Map.of(
+                new LuaValue("insert"), new LuaValue(LuaFunction.variadic(LuaTableLibrary::insert)),
+                new LuaValue("remove"), new LuaValue(LuaFunction.variadic(LuaTableLibrary::remove)),
+                new LuaValue("move"), new LuaValue(LuaFunction.variadic(LuaTableLibrary::move)),
+                new LuaValue("concat"), new LuaValue(LuaFunction.variadic(LuaTableLibrary::concat)),
+                new LuaValue("pack"), new LuaValue(LuaFunction.variadic(LuaTableLibrary::pack)),
+                new LuaValue("unpack"), new LuaValue(LuaFunction.variadic(LuaTableLibrary::unpack)),
+                new LuaValue("sort"), new LuaValue(LuaFunction.variadic(LuaTableLibrary::sort))
+        ));
+    }
+
+    // Sorts arrays made only of integers, only of floats without NaN, or only of strings as primitive keys.
+    private static boolean sortPrimitives(LuaValue list, boolean raw, LuaValue[] values) {
+        LuaValue.Type type = values[0].getType();
+        for (LuaValue value : values) {
+            if (value.getType() != type || (type == LuaValue.Type.real && Double.isNaN(value.getRealValue()))) {
+                return false;
+            }
+        }
+        boolean parallel = values.length >= PARALLEL_SORT_THRESHOLD;
+        LuaValue scratch = new LuaValue();
+        switch (type) {
+            case integer -> {
+                long[] keys = new long[values.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = values[i].getIntegerValue();
+                }
+                if (parallel) {
+                    Arrays.parallelSort(keys);
+                } else {
+                    Arrays.sort(keys);
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    scratch.setValue(keys[i]);
+                    set(list, raw, i + 1, scratch);
+                }
+            }
+            case real -> {
+                double[] keys = new double[values.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = values[i].getRealValue();
+                }
+                if (parallel) {
+                    Arrays.parallelSort(keys);
+                } else {
+                    Arrays.sort(keys);
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    scratch.setValue(keys[i]);
+                    set(list, raw, i + 1, scratch);
+                }
+            }
+            case string -> {
+                StringKey[] keys = new StringKey[values.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = new StringKey(values[i].getLuaStringValue());
+                }
+                if (parallel) {
+                    Arrays.parallelSort(keys);
+                } else {
+                    Arrays.sort(keys);
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    scratch.setValue(keys[i].string);
+                    set(list, raw, i + 1, scratch);
+                }
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A string with its first eight bytes packed big-endian into a long, so that most comparisons are
+    // decided by one unsigned long comparison without touching the string's bytes.
+    private static final class StringKey implements Comparable<StringKey> {
+        final long prefix;
+        final LuaString string;
+
+        StringKey(LuaString string) {
+            long prefix = 0;
+            int length = Math.min(8, string.length());
+            for (int i = 0; i < length; i++) {
+                prefix |= (long) string.byteAt(i) << (56 - 8 * i);
+            }
+            this.prefix = prefix;
+            this.string = string;
+        }
+
+        @Override
+        public int compareTo(StringKey other) {
+            int result = Long.compareUnsigned(prefix, other.prefix);
+            return result != 0 ? result : string.compareTo(other.string);
+        }
+    }
+
+    private interface Order {
+        boolean lessThan(LuaValue a, LuaValue b);
+    }
+
+    // auxsort from the reference implementation: median of three, tail call on the larger half,
+    // and a random pivot once a partition turns out badly unbalanced.
+    private static void quicksort(LuaValue[] a, int lo, int up, Order order, int random) {
+        while (lo < up) {
+            if (order.lessThan(a[up], a[lo])) {
+                swap(a, lo, up);
+            }
+            if (up - lo == 1) {
+                break;
+            }
+            int p;
+            if (up - lo < RANDOM_PIVOT_LIMIT || random == 0) {
+                p = (lo + up) >>> 1;
+            } else {
+                int quarter = (up - lo) / 4;
+                p = Integer.remainderUnsigned(random, quarter * 2) + lo + quarter;
+            }
+            if (order.lessThan(a[p], a[lo])) {
+                swap(a, p, lo);
+            } else if (order.lessThan(a[up], a[p])) {
+                swap(a, p, up);
+            }
+            if (up - lo == 2) {
+                break;
+            }
+            LuaValue pivot = a[p];
+            swap(a, p, up - 1);
+            p = partition(a, lo, up, pivot, order);
+            int smaller;
+            if (p - lo < up - p) {
+                quicksort(a, lo, p - 1, order, random);
+                smaller = p - lo;
+                lo = p + 1;
+            } else {
+                quicksort(a, p + 1, up, order, random);
+                smaller = up - p;
+                up = p - 1;
+            }
+            if ((up - lo) / 128 > smaller) {
+                random = ThreadLocalRandom.current().nextInt() | 1;
+            }
+        }
+    }
+
+    private static int partition(LuaValue[] a, int lo, int up, LuaValue pivot, Order order) {
+        int i = lo;
+        int j = up - 1;
+        while (true) {
+            while (order.lessThan(a[++i], pivot)) {
+                if (i == up - 1) {
+                    throw new RuntimeException("invalid order function for sorting");
+                }
+            }
+            while (order.lessThan(pivot, a[--j])) {
+                if (j < i) {
+                    throw new RuntimeException("invalid order function for sorting");
+                }
+            }
+            if (j < i) {
+                swap(a, up - 1, i);
+                return i;
+            }
+            swap(a, i, j);
+        }
+    }
+
+    private static void swap(LuaValue[] a, int i, int j) {
+        LuaValue value = a[i];
+        a[i] = a[j];
+        a[j] = value;
+    }
+
+    private static boolean isRaw(LuaTable table) {
+        LuaTable metatable = table.getMetatable();
+        return metatable == null
+                || metatable.getMetamethod(LuaMetamethod.index).isNil() && metatable.getMetamethod(LuaMetamethod.newindex).isNil();
+    }
+
+    private static LuaValue get(LuaValue list, boolean raw, long index) {
+        return raw ? list.getTableValue().rawget(index) : LuaOps.index(list, new LuaValue(index));
+    }
+
+    private static void set(LuaValue list, boolean raw, long index, LuaValue value) {
+        if (raw) {
+            list.getTableValue().rawset(index, value);
+        } else {
+            LuaOps.newindex(list, new LuaValue(index), value);
+        }
+    }
+
+    private static long length(LuaValue list) {
+        LuaValue length = LuaOps.len(list);
+        if (!length.isIntegerValue()) {
+            throw new RuntimeException("object length is not an integer");
+        }
+        return length.getIntegerValue();
+    }
+
+    private static LuaValue checkTable(Varargs args, String name) {
+        return checkTable(args, 1, name);
+    }
+
+    private static LuaValue checkTable(Varargs args, int index, String name) {
+        LuaValue value = args.arg(index);
+        if (!value.isTableValue()) {
+            throw LuaFunctions.argumentError(index, name, "table expected, got " + LuaFunctions.typeName(args, index));
+        }
+        return value;
+    }
+}
@@ -0,0 +1,24 @@
+package com.luajvm;
+
+// Full userdata: a host object that scripts see as a value of type "userdata". Unlike a table it has no
+// entries, and every operation on it goes through its own metatable.
+public class LuaUserdata {
+    private LuaTable metatable;
+
+    public LuaUserdata(LuaTable metatable) {
+        this.metatable = metatable;
+    }
+
+    public LuaTable getMetatable() {
+        return metatable;
+    }
+
+    public void setMetatable(LuaTable metatable) {
+        this.metatable = metatable;
+    }
+
+    // what a state forked from one holding this userdata gets in its place; shared by default
+    LuaUserdata forkCopy() {
+        return this;
+    }
+}
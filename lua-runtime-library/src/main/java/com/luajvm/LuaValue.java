@@ -0,0 +1,441 @@
+package com.luajvm;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+
+class LuaValue extends Varargs {
+    private static final String NIL = "nil";
+    private static final String BOOL = "boolean";
+    private static final String NUMBER = "number";
+    private static final String STRING = "string";
+    private static final String FUNCTION = "function";
+    private static final String TABLE = "table";
+    private static final String THREAD = "thread";
+    private static final String USERDATA = "userdata";
+
+    // Shared nil returned for absent table entries; setValue on it fails instead of changing every nil.
+    static final LuaValue NIL_VALUE = new LuaValue();
+
+    // Multiple assignment: missing values are nil and extra ones are dropped. All values are read
+    // before any target is written, so a, b = b, a swaps.
+    public static void assignment(List<LuaValue> left, Varargs right) {
+        int size = left.size();
+        if (size == 1) {
+            left.getFirst().setValue(right.arg1());
+            return;
+        }
+        LuaValue[] values = new LuaValue[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = new LuaValue(right.arg(i + 1));
+        }
+        for (int i = 0; i < size; i++) {
+            left.get(i).setValue(values[i]);
+        }
+    }
+
+    public static void assignment(List<LuaValue> left, List<LuaValue> right) {
+        assignment(left, Varargs.valueOf(right));
+    }
+
+    LuaValue() {
+        type = Type.nil;
+    }
+
+    LuaValue(LuaValue value) {
+        setValue(value);
+    }
+
+    LuaValue(boolean value) {
+        setValue(value);
+    }
+
+    LuaValue(int value) {
+        setValue(value);
+    }
+
+    LuaValue(long value) {
+        setValue(value);
+    }
+
+    LuaValue(float value) {
+        setValue(value);
+    }
+
+    LuaValue(double value) {
+        setValue(value);
+    }
+
+    LuaValue(String value) {
+        setValue(value);
+    }
+
+    LuaValue(LuaString value) {
+        setValue(value);
+    }
+
+    LuaValue(Function<List<LuaValue>, List<LuaValue>> value) {
+        setValue(value);
+    }
+
+    LuaValue(LuaFunction value) {
+        setValue(value);
+    }
+
+    LuaValue(LuaTable value) {
+        setValue(value);
+    }
+
+    LuaValue(LuaCoroutine value) {
+        setValue(value);
+    }
+
+    LuaValue(LuaUserdata value) {
+        setValue(value);
+    }
+
+    LuaValue(Map<LuaValue, LuaValue> value) {
+        setValue(value);
+    }
+
+    @Override
+    public int narg() {
+        return 1;
+    }
+
+    @Override
+    public LuaValue arg(int index) {
+        return index == 1 ? this : NIL_VALUE;
+    }
+
+    @Override
+    public LuaValue arg1() {
+        return this;
+    }
+
+    @Override
+    public Varargs subargs(int start) {
+        checkStart(start);
+        return start == 1 ? this : Varargs.NONE;
+    }
+
+    public boolean isNil() {
+        return type == Type.nil;
+    }
+
+    public boolean isBoolValue() {
+        return type == Type.bool;
+    }
+
+    public boolean isIntegerValue() {
+        return type == Type.integer;
+    }
+
+    public boolean isRealValue() {
+        return type == Type.real;
+    }
+
+    public boolean isNumber() {
+        return isIntegerValue() || isRealValue();
+    }
+
+    public boolean isStringValue() {
+        return type == Type.string;
+    }
+
+    public boolean isFunctionValue() {
+        return type == Type.function;
+    }
+
+    public boolean isTableValue() {
+        return type == Type.table;
+    }
+
+    public boolean isThreadValue() {
+        return type == Type.thread;
+    }
+
+    public boolean isUserdataValue() {
+        return type == Type.userdata;
+    }
+
+    public void setValue(LuaValue value) {
+        checkNotShared();
+        type = value.type;
+        bits = value.bits;
+        ref = value.ref;
+    }
+
+    public void setValue(boolean value) {
+        checkNotShared();
+        type = Type.bool;
+        bits = value ? 1 : 0;
+        ref = null;
+    }
+
+    public void setValue(long value) {
+        checkNotShared();
+        type = Type.integer;
+        bits = value;
+        ref = null;
+    }
+
+    public void setValue(double value) {
+        checkNotShared();
+        type = Type.real;
+        bits = Double.doubleToRawLongBits(value);
+        ref = null;
+    }
+
+    public void setValue(String value) {
+        setValue(LuaString.valueOf(value));
+    }
+
+    public void setValue(LuaString value) {
+        checkNotShared();
+        type = Type.string;
+        bits = 0;
+        ref = value;
+    }
+
+    public void setValue(Function<List<LuaValue>, List<LuaValue>> value) {
+        setValue(LuaFunction.adapt(value));
+    }
+
+    public void setValue(LuaFunction value) {
+        checkNotShared();
+        type = Type.function;
+        bits = 0;
+        ref = value;
+    }
+
+    public void setValue(LuaTable value) {
+        checkNotShared();
+        type = Type.table;
+        bits = 0;
+        ref = value;
+    }
+
+    public void setValue(LuaCoroutine value) {
+        checkNotShared();
+        type = Type.thread;
+        bits = 0;
+        ref = value;
+    }
+
+    public void setValue(LuaUserdata value) {
+        checkNotShared();
+        type = Type.userdata;
+        bits = 0;
+        ref = value;
+    }
+
+    public void setValue(Map<LuaValue, LuaValue> value) {
+        setValue(new LuaTable(value));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    String getTypeString() {
+        return switch (type) {
+            case nil -> NIL;
+            case bool -> BOOL;
+            case integer, real -> NUMBER;
+            case string -> STRING;
+            case function -> FUNCTION;
+            case table -> TABLE;
+            case thread -> THREAD;
+            case userdata -> USERDATA;
+        };
+    }
+
+    public boolean getBoolValue() {
+        if (!isBoolValue()) {
+            throwCantGetPrimitiveValue(BOOL);
+        }
+        return bits != 0;
+    }
+
+    public long getIntegerValue() {
+        if (!isIntegerValue()) {
+            throwCantGetPrimitiveValue(NUMBER);
+        }
+        return bits;
+    }
+
+    public double getRealValue() {
+        if (!isNumber()) {
+            throwCantGetPrimitiveValue(NUMBER);
+        }
+        if (type == Type.integer) {
+            return bits;
+        } else {
+            return Double.longBitsToDouble(bits);
+        }
+    }
+
+    public String getStringValue() {
+        if (!isStringValue()) {
+            throwCantGetPrimitiveValue(STRING);
+        }
+        return getLuaStringValue().toString();
+    }
+
+    public LuaString getLuaStringValue() {
+        if (!isStringValue()) {
+            throwCantGetPrimitiveValue(STRING);
+        }
+        Object value = ref;
+        if (value instanceof LuaRope rope) {
+            LuaString flat = rope.flatten();
+            ref = flat;
+            return flat;
+        }
+        return (LuaString) value;
+    }
+
+    // LuaString or a not yet flattened LuaRope
+    Object getStringPiece() {
+        if (!isStringValue()) {
+            throwCantGetPrimitiveValue(STRING);
+        }
+        return ref;
+    }
+
+    static LuaValue valueOfStringPiece(Object piece) {
+        LuaValue value = new LuaValue();
+        value.type = Type.string;
+        value.ref = piece;
+        return value;
+    }
+
+    // table, function or coroutine behind the value
+    Object getReference() {
+        return ref;
+    }
+
+    static LuaValue valueOfReference(Type type, Object reference) {
+        LuaValue value = new LuaValue();
+        value.type = type;
+        value.ref = reference;
+        return value;
+    }
+
+    public LuaFunction getFunctionValue() {
+        if (!isFunctionValue()) {
+            throwCantGetPrimitiveValue(FUNCTION);
+        }
+        return (LuaFunction) ref;
+    }
+
+    public LuaTable getTableValue() {
+        if (!isTableValue()) {
+            throwCantGetPrimitiveValue(TABLE);
+        }
+        return (LuaTable) ref;
+    }
+
+    public LuaCoroutine getThreadValue() {
+        if (!isThreadValue()) {
+            throwCantGetPrimitiveValue(THREAD);
+        }
+        return (LuaCoroutine) ref;
+    }
+
+    public LuaUserdata getUserdataValue() {
+        if (!isUserdataValue()) {
+            throwCantGetPrimitiveValue(USERDATA);
+        }
+        return (LuaUserdata) ref;
+    }
+
+    public LuaValue getMetatable() {
+        if (isTableValue()) {
+            LuaTable metatable = ((LuaTable) ref).getMetatable();
+            return metatable != null ? new LuaValue(metatable) : new LuaValue();
+        }
+        return new LuaValue(LuaMetatable.metatableOf(this));
+    }
+
+    // Raw equality: integers and floats with the same mathematical value are equal,
+    // strings compare by content, functions and tables by reference.
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof LuaValue other)) {
+            return false;
+        }
+        return switch (type) {
+            case nil -> other.type == Type.nil;
+            case bool, function, table, thread, userdata -> type == other.type && bits == other.bits && ref == other.ref;
+            case integer -> switch (other.type) {
+                case integer -> bits == other.bits;
+                case real -> integerEqualsReal(bits, Double.longBitsToDouble(other.bits));
+                default -> false;
+            };
+            case real -> switch (other.type) {
+                case integer -> integerEqualsReal(other.bits, Double.longBitsToDouble(bits));
+                case real -> Double.longBitsToDouble(bits) == Double.longBitsToDouble(other.bits);
+                default -> false;
+            };
+            case string -> other.type == Type.string && getLuaStringValue().equals(other.getLuaStringValue());
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        return switch (type) {
+            case nil -> 0;
+            case bool, integer -> Long.hashCode(bits);
+            case real -> {
+                double real = Double.longBitsToDouble(bits);
+                long integer = (long) real;
+                if (integer == real && real != 0x1p63) {
+                    yield Long.hashCode(integer);
+                }
+                yield Double.hashCode(real);
+            }
+            case string -> getLuaStringValue().hashCode();
+            case function, table, thread, userdata -> System.identityHashCode(ref);
+        };
+    }
+
+    static boolean integerEqualsReal(long integer, double real) {
+        long truncated = (long) real;
+        return truncated == real && real != 0x1p63 && truncated == integer;
+    }
+
+    private void checkNotShared() {
+        if (this == NIL_VALUE) {
+            throw new IllegalStateException("Can't assign to the shared nil value.");
+        }
+    }
+
+    private void throwCantGetPrimitiveValue(String primitive) {
+        throw new IllegalStateException("Can't return " + primitive + "value for'" + getTypeString() + "'.");
+    }
+
+    enum Type {
+        nil,
+        bool,
+        integer,
+        real,
+        string,
+        function,
+        table,
+        thread,
+        userdata,
+    }
+
+    // One primitive slot and one reference slot shared by all types instead of a field per type.
+    private Type type = Type.nil;
+    // integer value, raw bits of a real value, or 0/1 for a boolean
+    private long bits = 0;
+    // LuaString, LuaRope, LuaFunction, LuaTable, LuaCoroutine or LuaUserdata
+    private Object ref = null;
+}
@@ -0,0 +1,193 @@
+package com.luajvm;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Entries of a table whose metatable has __mode "k", "v" or "kv". Only tables, functions and coroutines
+// are held weakly; numbers, booleans and strings are values and stay. References cleared by the
+// collector are enqueued and their entries removed on the next access, so the cost of a collection
+// is paid per cleared entry instead of by scanning the table.
+// The JVM has no ephemerons: in "k" mode a value that refers back to its own key keeps the entry alive.
+final class LuaWeakStorage {
+    private final boolean weakKeys;
+    private final boolean weakValues;
+    // keys are LuaValue copies or WeakKeys; values are LuaValue copies or WeakValues
+    private final HashMap<Object, Object> entries = new HashMap<>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    LuaWeakStorage(boolean weakKeys, boolean weakValues) {
+        this.weakKeys = weakKeys;
+        this.weakValues = weakValues;
+    }
+
+    boolean hasWeakKeys() {
+        return weakKeys;
+    }
+
+    boolean hasWeakValues() {
+        return weakValues;
+    }
+
+    static boolean isCollectable(LuaValue value) {
+        return value.isTableValue() || value.isFunctionValue() || value.isThreadValue() || value.isUserdataValue();
+    }
+
+    // Removes entries whose key or value was collected; returns true if anything was removed.
+    boolean expunge() {
+        boolean removed = false;
+        Reference<?> reference;
+        while ((reference = queue.poll()) != null) {
+            if (reference instanceof WeakKey key) {
+                removed |= entries.remove(key) != null;
+            } else {
+                WeakValue value = (WeakValue) reference;
+                removed |= entries.remove(value.mapKey, value);
+            }
+        }
+        return removed;
+    }
+
+    LuaValue get(LuaValue key) {
+        Object value = entries.get(lookupKey(key));
+        if (value == null) {
+            return LuaValue.NIL_VALUE;
+        }
+        if (value instanceof WeakValue weak) {
+            LuaValue referent = weak.toValue();
+            return referent != null ? referent : LuaValue.NIL_VALUE;
+        }
+        return (LuaValue) value;
+    }
+
+    void set(LuaValue key, LuaValue value) {
+        // a stale WeakKey or WeakValue of the removed entry may still be enqueued later;
+        // expunge ignores it because it no longer matches the current mapping
+        entries.remove(lookupKey(key));
+        if (value.isNil()) {
+            return;
+        }
+        Object mapKey = weakKeys && isCollectable(key)
+                ? new WeakKey(key.getType(), key.getReference(), queue)
+                : new LuaValue(key);
+        Object mapValue = weakValues && isCollectable(value)
+                ? new WeakValue(value.getType(), value.getReference(), mapKey, queue)
+                : new LuaValue(value);
+        entries.put(mapKey, mapValue);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void forEach(BiConsumer<LuaValue, LuaValue> action) {
+        expunge();
+        for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+            LuaValue key = entry.getKey() instanceof WeakKey weakKey ? weakKey.toValue() : (LuaValue) entry.getKey();
+            LuaValue value = entry.getValue() instanceof WeakValue weakValue ? weakValue.toValue() : (LuaValue) entry.getValue();
+            if (key != null && value != null) {
+                action.accept(key, value);
+            }
+        }
+    }
+
+    // Walks a copy of the map keys taken when the traversal starts, so that assigning existing
+    // fields, which replaces their entries, does not disturb it.
+    boolean advance(LuaTable.Cursor cursor) {
+        Object[] keys = (Object[]) cursor.state;
+        if (keys == null) {
+            keys = entries.keySet().toArray();
+            cursor.state = keys;
+        }
+        while (cursor.index < keys.length) {
+            Object mapKey = keys[cursor.index++];
+            Object mapValue = entries.get(mapKey);
+            if (mapValue == null) {
+                continue;
+            }
+            LuaValue key = mapKey instanceof WeakKey weakKey ? weakKey.toValue() : (LuaValue) mapKey;
+            LuaValue value = mapValue instanceof WeakValue weakValue ? weakValue.toValue() : (LuaValue) mapValue;
+            if (key != null && value != null) {
+                return cursor.found(key, value);
+            }
+        }
+        return cursor.found(null, null);
+    }
+
+    private Object lookupKey(LuaValue key) {
+        return weakKeys && isCollectable(key) ? new IdentityKey(key.getReference()) : key;
+    }
+
+    // Both key forms of a collectable key hash and compare by the identity of the referent.
+    private interface ReferenceKey {
+        Object referent();
+    }
+
+    private record IdentityKey(Object referent) implements ReferenceKey {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ReferenceKey key && key.referent() == referent;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(referent);
+        }
+    }
+
+    private static final class WeakKey extends WeakReference<Object> implements ReferenceKey {
+        final LuaValue.Type type;
+        private final int hash;
+
+        WeakKey(LuaValue.Type type, Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.type = type;
+            this.hash = System.identityHashCode(referent);
+        }
+
+        // null once collected
+        LuaValue toValue() {
+            Object referent = get();
+            return referent != null ? LuaValue.valueOfReference(type, referent) : null;
+        }
+
+        @Override
+        public Object referent() {
+            return get();
+        }
+
+        // a cleared key is only equal to itself, which is how expunge finds it
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            Object referent = get();
+            return referent != null && other instanceof ReferenceKey key && key.referent() == referent;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class WeakValue extends WeakReference<Object> {
+        final LuaValue.Type type;
+        final Object mapKey;
+
+        WeakValue(LuaValue.Type type, Object referent, Object mapKey, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.type = type;
+            this.mapKey = mapKey;
+        }
+
+        LuaValue toValue() {
+            Object referent = get();
+            return referent != null ? LuaValue.valueOfReference(type, referent) : null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.luajvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Argument and result lists. A LuaValue is itself a Varargs of one value, so single results
+// are returned without a wrapper. Indices are 1-based and reading past the end yields nil.
+public abstract class Varargs {
+    public static final Varargs NONE = new None();
+
+    private static final LuaValue[] NO_VALUES = new LuaValue[0];
+
+    public static Varargs varargsOf(LuaValue... values) {
+        return varargsOf(values, 0, values.length);
+    }
+
+    public static Varargs varargsOf(LuaValue value1, LuaValue value2) {
+        return new Pair(value1, value2);
+    }
+
+    // The array is not copied.
+    public static Varargs varargsOf(LuaValue[] values, int offset, int count) {
+        return switch (count) {
+            case 0 -> NONE;
+            case 1 -> values[offset];
+            case 2 -> new Pair(values[offset], values[offset + 1]);
+            default -> new ArrayVarargs(values, offset, count);
+        };
+    }
+
+    // first followed by all of rest, e.g. the callee prepended for a __call handler
+    public static Varargs varargsOf(LuaValue first, Varargs rest) {
+        int count = rest.narg();
+        if (count == 0) {
+            return first;
+        }
+        if (count == 1) {
+            return new Pair(first, rest.arg1());
+        }
+        LuaValue[] values = new LuaValue[count + 1];
+        values[0] = first;
+        rest.copyTo(values, 1);
+        return new ArrayVarargs(values, 0, values.length);
+    }
+
+    public static Varargs valueOf(List<LuaValue> values) {
+        return varargsOf(values.toArray(NO_VALUES));
+    }
+
+    public abstract int narg();
+
+    public abstract LuaValue arg(int index);
+
+    public LuaValue arg1() {
+        return arg(1);
+    }
+
+    // View of the values from start on; select(n, ...) without copying.
+    public abstract Varargs subargs(int start);
+
+    public void copyTo(LuaValue[] destination, int offset) {
+        int count = narg();
+        for (int i = 0; i < count; i++) {
+            destination[offset + i] = arg(i + 1);
+        }
+    }
+
+    public List<LuaValue> toList() {
+        int count = narg();
+        List<LuaValue> list = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            list.add(arg(i));
+        }
+        return list;
+    }
+
+    static void checkStart(int start) {
+        if (start < 1) {
+            throw new IllegalArgumentException("start must be positive: " + start);
+        }
+    }
+
+    private static final class None extends Varargs {
+        @Override
+        public int narg() {
+            return 0;
+        }
+
+        @Override
+        public LuaValue arg(int index) {
+            return LuaValue.NIL_VALUE;
+        }
+
+        @Override
+        public Varargs subargs(int start) {
+            checkStart(start);
+            return this;
+        }
+
+        @Override
+        public List<LuaValue> toList() {
+            return List.of();
+        }
+    }
+
+    private static final class Pair extends Varargs {
+        private final LuaValue value1;
+        private final LuaValue value2;
+
+        Pair(LuaValue value1, LuaValue value2) {
+            this.value1 = value1;
+            this.value2 = value2;
+        }
+
+        @Override
+        public int narg() {
+            return 2;
+        }
+
+        @Override
+        public LuaValue arg(int index) {
+            return switch (index) {
+                case 1 -> value1;
+                case 2 -> value2;
+                default -> LuaValue.NIL_VALUE;
+            };
+        }
+
+        @Override
+        public LuaValue arg1() {
+            return value1;
+        }
+
+        @Override
+        public Varargs subargs(int start) {
+            checkStart(start);
+            return switch (start) {
+                case 1 -> this;
+                case 2 -> value2;
+                default -> NONE;
+            };
+        }
+    }
+
+    private static final class ArrayVarargs extends Varargs {
+        private final LuaValue[] values;
+        private final int offset;
+        private final int count;
+
+        ArrayVarargs(LuaValue[] values, int offset, int count) {
+            this.values = values;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        public int narg() {
+            return count;
+        }
+
+        @Override
+        public LuaValue arg(int index) {
+            return index >= 1 && index <= count ? values[offset + index - 1] : LuaValue.NIL_VALUE;
+        }
+
+        @Override
+        public LuaValue arg1() {
+            return values[offset];
+        }
+
+        @Override
+        public Varargs subargs(int start) {
+            checkStart(start);
+            if (start > count) {
+                return NONE;
+            }
+            return varargsOf(values, offset + start - 1, count - start + 1);
+        }
+
+        @Override
+        public void copyTo(LuaValue[] destination, int offset) {
+            System.arraycopy(values, this.offset, destination, offset, count);
+        }
+
+        @Override
+        public List<LuaValue> toList() {
+            // read-only, as a set() would write through to the array, which may be shared
+            return Collections.unmodifiableList(Arrays.asList(values).subList(offset, offset + count));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.luajvm;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Expected values are the output of the reference Lua 5.4 interpreter for the same calls.
+class LuaFunctionsTest {
+    @Test
+    void tonumberOfDecimalAndHexStrings() {
+        assertEquals("10", tonumber("  10  "));
+        assertEquals("-7", tonumber("-7"));
+        assertEquals("7", tonumber("+7"));
+        assertEquals("100.0", tonumber("1e2"));
+        assertEquals("0.5", tonumber(".5"));
+        assertEquals("16", tonumber("0x10"));
+        assertEquals("-1", tonumber("0xffffffffffffffff"));
+        assertEquals("9223372036854775807", tonumber("9223372036854775807"));
+        assertEquals("9.2233720368548e+18", tonumber("9223372036854775808"));
+        assertEquals("1.0", tonumber("0x.1p4"));
+        assertEquals("nil", tonumber(""));
+        assertEquals("nil", tonumber("0x"));
+        assertEquals("nil", tonumber("1 2"));
+        assertEquals("nil", tonumber("1e"));
+    }
+
+    @Test
+    void tonumberWithBase() {
+        assertEquals("2", tonumber("10", new LuaValue(2L)));
+        assertEquals("255", tonumber("ff", new LuaValue(16L)));
+        assertEquals("255", tonumber("+ff", new LuaValue(16L)));
+        assertEquals("-255", tonumber(" -FF ", new LuaValue(16L)));
+        assertEquals("1295", tonumber("zz", new LuaValue(36L)));
+        assertEquals("nil", tonumber("8", new LuaValue(8L)));
+        assertEquals("nil", tonumber("+", new LuaValue(16L)));
+        assertEquals("nil", tonumber("+-1", new LuaValue(10L)));
+        assertEquals("nil", tonumber("1.0", new LuaValue(10L)));
+    }
+
+    @Test
+    void tonumberAcceptsAnyBaseWithAnIntegerValue() {
+        assertEquals("10", tonumber("10", new LuaValue(10.0)));
+        assertEquals("8", tonumber("10", new LuaValue("8")));
+        assertEquals("bad argument #2 to 'tonumber' (number has no integer representation)",
+                assertThrows(RuntimeException.class, () -> tonumber("10", new LuaValue(10.5))).getMessage());
+        assertEquals("bad argument #2 to 'tonumber' (base out of range)",
+                assertThrows(RuntimeException.class, () -> tonumber("10", new LuaValue(1L))).getMessage());
+        assertEquals("bad argument #2 to 'tonumber' (base out of range)",
+                assertThrows(RuntimeException.class, () -> tonumber("10", new LuaValue(37L))).getMessage());
+        assertEquals("bad argument #1 to 'tonumber' (string expected, got number)",
+                assertThrows(RuntimeException.class, () -> LuaFunctions.toNumberValue(new LuaValue(10L), new LuaValue(16L))).getMessage());
+    }
+
+    private static String tonumber(String s) {
+        return LuaFunctions.toStringValue(LuaFunctions.toNumberValue(new LuaValue(s))).getStringValue();
+    }
+
+    private static String tonumber(String s, LuaValue base) {
+        return LuaFunctions.toStringValue(LuaFunctions.toNumberValue(new LuaValue(s), base)).getStringValue();
+    }
+}
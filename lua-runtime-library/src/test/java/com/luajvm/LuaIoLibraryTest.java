@@ -0,0 +1,105 @@
+package com.luajvm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Round trips through files, checked against what the reference Lua 5.4 interpreter reads back.
+class LuaIoLibraryTest {
+    private static final LuaTable IO = LuaIoLibrary.library();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void writeThenReadWithFormats() throws IOException {
+        String path = directory.resolve("formats.txt").toString();
+        LuaValue file = open(path, "w");
+        method(file, "write", "line1\n", 42L, " ", 1.5, "\n", "0x10 tail");
+        assertEquals(List.of("true"), method(file, "close"));
+        assertEquals("line1\n42 1.5\n0x10 tail", Files.readString(Path.of(path)));
+
+        file = open(path, "r");
+        assertEquals(List.of("line1"), method(file, "read", "l"));
+        assertEquals(List.of("42", "1.5"), method(file, "read", "n", "n"));
+        assertEquals(List.of("\n"), method(file, "read", "L"));
+        assertEquals(List.of("16", " tail"), method(file, "read", "n", "a"));
+        assertEquals(List.of(""), method(file, "read", "a"));
+        assertEquals(List.of("nil"), method(file, "read", "l"));
+        assertEquals(List.of("nil"), method(file, "read", 1L));
+        method(file, "close");
+    }
+
+    @Test
+    void appendSeekAndCount() throws IOException {
+        String path = directory.resolve("append.txt").toString();
+        Files.writeString(Path.of(path), "abc");
+        LuaValue file = open(path, "a");
+        method(file, "write", "def");
+        method(file, "close");
+
+        file = open(path, "r");
+        assertEquals(List.of("6"), method(file, "seek", "end"));
+        assertEquals(List.of("2"), method(file, "seek", "set", 2L));
+        assertEquals(List.of("cde"), method(file, "read", 3L));
+        assertEquals(List.of("5"), method(file, "seek"));
+        assertEquals(List.of(""), method(file, "read", 0L));
+        assertEquals(List.of("f", "nil"), method(file, "read", 5L, 0L));
+        method(file, "close");
+    }
+
+    @Test
+    void linesReadsEveryLine() throws IOException {
+        Path path = directory.resolve("lines.txt");
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        text.append("last without newline");
+        Files.writeString(path, text);
+
+        LuaValue iterator = LuaOps.call(IO.rawget("lines"), Varargs.varargsOf(new LuaValue(path.toString()))).arg1();
+        List<String> lines = new ArrayList<>();
+        for (LuaValue line; !(line = LuaOps.call(iterator, Varargs.NONE).arg1()).isNil(); ) {
+            lines.add(line.getStringValue());
+        }
+        assertEquals(1001, lines.size());
+        assertEquals("line 1", lines.getFirst());
+        assertEquals("line 1000", lines.get(999));
+        assertEquals("last without newline", lines.getLast());
+    }
+
+    @Test
+    void failuresReturnNilMessageAndErrorNumber() throws IOException {
+        String missing = directory.resolve("missing.txt").toString();
+        assertEquals(List.of("nil", missing + ": No such file or directory", "2"),
+                LuaStringLibraryTest.strings(LuaOps.call(IO.rawget("open"), Varargs.varargsOf(new LuaValue(missing)))));
+
+        Path path = directory.resolve("readonly.txt");
+        Files.writeString(path, "x");
+        LuaValue file = open(path.toString(), "r");
+        assertEquals(List.of("nil", "Bad file descriptor", "9"), method(file, "write", "y"));
+        method(file, "close");
+        assertEquals(List.of("closed file"), LuaStringLibraryTest.strings(LuaOps.call(IO.rawget("type"), file)));
+    }
+
+    private static LuaValue open(String path, String mode) {
+        return LuaOps.call(IO.rawget("open"), Varargs.varargsOf(new LuaValue(path), new LuaValue(mode))).arg1();
+    }
+
+    private static List<String> method(LuaValue file, String name, Object... args) {
+        LuaValue[] values = LuaStringLibraryTest.values(args);
+        LuaValue[] withSelf = new LuaValue[values.length + 1];
+        withSelf[0] = file;
+        System.arraycopy(values, 0, withSelf, 1, values.length);
+        Varargs results = LuaOps.call(LuaOps.index(file, new LuaValue(name)), Varargs.varargsOf(withSelf));
+        return LuaStringLibraryTest.strings(results);
+    }
+}
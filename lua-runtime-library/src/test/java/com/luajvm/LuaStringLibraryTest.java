@@ -0,0 +1,144 @@
+package com.luajvm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Expected values are the output of the reference Lua 5.4 interpreter for the same calls.
+class LuaStringLibraryTest {
+    private static final LuaTable STRING = LuaStringLibrary.library();
+
+    @Test
+    void find() {
+        assertEquals(List.of("5", "7"), call("find", "hello world", "o w"));
+        assertEquals(List.of("3", "4"), call("find", "hello", "l+"));
+        assertEquals(List.of("2", "3", "bc"), call("find", "abcd", "(b%a)"));
+        assertEquals(List.of("2", "3"), call("find", "a.b.c", ".b", 1L, true));
+        assertEquals(List.of("nil"), call("find", "hello", "l", 5L));
+        assertEquals(List.of("1", "0"), call("find", "", ""));
+    }
+
+    @Test
+    void match() {
+        assertEquals(List.of("key", "value"), call("match", "key = value", "(%w+)%s*=%s*(%w+)"));
+        assertEquals(List.of("2024", "01", "15"), call("match", "2024-01-15", "(%d+)-(%d+)-(%d+)"));
+        assertEquals(List.of("trim"), call("match", "  trim  ", "^%s*(.-)%s*$"));
+        assertEquals(List.of("3", "5"), call("match", "hello", "()ll()"));
+        assertEquals(List.of("(a(b)c)"), call("match", "f(a(b)c)d", "%b()"));
+        assertEquals(List.of("nil"), call("match", "hello", "^ello"));
+        assertEquals(List.of("abab", "ab"), call("match", "xababy", "((ab)%2)"));
+        assertEquals(List.of("[x]"), call("match", "a[x]b", "%[.-%]"));
+    }
+
+    @Test
+    void gsub() {
+        assertEquals(List.of("hell0 w0rld", "2"), call("gsub", "hello world", "o", "0"));
+        assertEquals(List.of("-h-e-l-l-o-", "6"), call("gsub", "hello", "", "-"));
+        assertEquals(List.of("aabbcc", "3"), call("gsub", "abc", "%w", "%0%0"));
+        assertEquals(List.of("bba", "2"), call("gsub", "aaa", "a", "b", 2L));
+        assertEquals(List.of("world hello", "1"), call("gsub", "hello world", "(%w+) (%w+)", "%2 %1"));
+        assertEquals(List.of("X (X) X", "3"), call("gsub", "THE (quick) fox", "%f[%a]%a+", "X"));
+        LuaTable names = new LuaTable(Map.of(new LuaValue("name"), new LuaValue("Bob"), new LuaValue("age"), new LuaValue(42L)));
+        assertEquals(List.of("Bob is 42 $unknown", "3"),
+                call("gsub", "$name is $age $unknown", "%$(%w+)", new LuaValue(names)));
+        LuaValue half = new LuaValue(LuaFunction.unary(value -> new LuaValue(value.getLuaStringValue().length() / 2.0)));
+        assertEquals(List.of("1.0 2.5", "2"), call("gsub", "ab abcde", "%a+", half));
+    }
+
+    @Test
+    void gmatchTreatsLeadingCaretAsLiteral() {
+        assertEquals(List.of("one", "two", "three"), gmatch("one two three", "%a+"));
+        assertEquals(List.of("^a", "^b"), gmatch("x^a^b", "^%a"));
+        assertEquals(List.of("k=1", "v=22"), gmatch("k=1, v=22", "%a=%d+"));
+    }
+
+    @Test
+    void format() {
+        assertEquals(List.of(" 3.14"), call("format", "%5.2f", 3.14159));
+        assertEquals(List.of("42 ff FF 10"), call("format", "%d %x %X %o", 42L, 255L, 255L, 8L));
+        assertEquals(List.of("   ab|cd   |"), call("format", "%5s|%-5s|", "ab", "cd"));
+        assertEquals(List.of("abc"), call("format", "%.3s", "abcdef"));
+        assertEquals(List.of("1e+20 1.234568e+04"), call("format", "%g %e", 1e20, 12345.678));
+        assertEquals(List.of("3 A %"), call("format", "%i %c %%", 3.0, 65L));
+        assertEquals(List.of("1.5 5.0 10"), call("format", "%s %s %s", 1.5, 5.0, 10L));
+        assertEquals(List.of("+005|  -3"), call("format", "%+04d|%4d", 5L, -3L));
+        assertEquals(List.of("\"a\\\nb\\\"c\\0\\13\\0001\""), call("format", "%q", "a\nb\"c\0\r\0" + "1"));
+        assertEquals(List.of("9223372036854775807 0x8000000000000000"),
+                call("format", "%q %q", Long.MAX_VALUE, Long.MIN_VALUE));
+        RuntimeException error = assertThrows(RuntimeException.class, () -> call("format", "%d", 3.5));
+        assertEquals("bad argument #2 to 'format' (number has no integer representation)", error.getMessage());
+    }
+
+    @Test
+    void formatRejectsTooLongSpecs() {
+        assertEquals(List.of("         1"), call("format", "%10d", 1L));
+        assertThrows(RuntimeException.class, () -> call("format", "%123d", 1L));
+        assertThrows(RuntimeException.class, () -> call("format", "%10.123f", 1.0));
+    }
+
+    @Test
+    void tostringOfFloats() {
+        assertEquals("1e+15", LuaFunctions.toStringValue(new LuaValue(1e15)).getStringValue());
+        assertEquals("0.1", LuaFunctions.toStringValue(new LuaValue(0.1)).getStringValue());
+        assertEquals("100.0", LuaFunctions.toStringValue(new LuaValue(100.0)).getStringValue());
+        assertEquals("-0.0", LuaFunctions.toStringValue(new LuaValue(-0.0)).getStringValue());
+        assertEquals("3.1415926535898", LuaFunctions.toStringValue(new LuaValue(Math.PI)).getStringValue());
+        assertEquals("9.2233720368548e+18", LuaFunctions.toStringValue(new LuaValue(0x1p63)).getStringValue());
+        assertEquals("1e-05", LuaFunctions.toStringValue(new LuaValue(1e-5)).getStringValue());
+        assertEquals("inf", LuaFunctions.toStringValue(new LuaValue(Double.POSITIVE_INFINITY)).getStringValue());
+        assertEquals("-inf", LuaFunctions.toStringValue(new LuaValue(Double.NEGATIVE_INFINITY)).getStringValue());
+    }
+
+    @Test
+    void byteAndSub() {
+        assertEquals(List.of(), call("byte", "ABC", 0L));
+        assertEquals(List.of("65"), call("byte", "ABC"));
+        assertEquals(List.of("67"), call("byte", "ABC", -1L));
+        assertEquals(List.of("65", "66", "67"), call("byte", "ABC", 1L, -1L));
+        assertEquals(List.of("ell"), call("sub", "hello", 2L, -2L));
+        assertEquals(List.of(""), call("sub", "hello", 4L, 2L));
+        assertEquals(List.of("hello"), call("sub", "hello", -100L, 100L));
+    }
+
+    static List<String> call(String name, Object... args) {
+        return strings(LuaOps.call(STRING.rawget(name), Varargs.varargsOf(values(args))));
+    }
+
+    private static List<String> gmatch(String subject, String pattern) {
+        LuaValue iterator = LuaOps.call(STRING.rawget("gmatch"), Varargs.varargsOf(new LuaValue(subject), new LuaValue(pattern))).arg1();
+        List<String> matches = new ArrayList<>();
+        for (LuaValue match; !(match = LuaOps.call(iterator, Varargs.NONE).arg1()).isNil(); ) {
+            matches.add(match.getStringValue());
+        }
+        return matches;
+    }
+
+    static LuaValue[] values(Object... args) {
+        LuaValue[] values = new LuaValue[args.length];
+        for (int i = 0; i < args.length; i++) {
+            values[i] = switch (args[i]) {
+                case null -> new LuaValue();
+                case LuaValue value -> value;
+                case String s -> new LuaValue(s);
+                case Long l -> new LuaValue((long) l);
+                case Double d -> new LuaValue((double) d);
+                case Boolean b -> new LuaValue((boolean) b);
+                default -> throw new IllegalArgumentException(String.valueOf(args[i]));
+            };
+        }
+        return values;
+    }
+
+    static List<String> strings(Varargs results) {
+        List<String> strings = new ArrayList<>();
+        for (int i = 1; i <= results.narg(); i++) {
+            strings.add(LuaFunctions.toStringValue(results.arg(i)).getStringValue());
+        }
+        return strings;
+    }
+}